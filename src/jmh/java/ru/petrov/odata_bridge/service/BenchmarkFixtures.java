@@ -0,0 +1,160 @@
+package ru.petrov.odata_bridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Данные для бенчмарков — записанные ответы 1С из тестовых ресурсов ({@value #METADATA_RESOURCE},
+ * {@value #RESPONSE_RESOURCE}), размноженные до нужного числа таблиц и строк: копии получают
+ * новые имена таблиц и ключи строк, а структура документа остается такой, какой ее отдает 1С.
+ * Выгрузку реальной базы можно подставить системными свойствами:
+ * {@code -Dfixtures.metadata=путь/к/$metadata.xml} и {@code -Dfixtures.response=путь/к/ответу.json}.
+ */
+final class BenchmarkFixtures {
+    // Системные поля 1С: исключаются из индекса так же, как в application.yaml
+    static final List<String> EXCLUDE_FIELDS = List.of("Ref_Key", "DataVersion", "DeletionMark", "Predefined", "PredefinedDataName");
+
+    static final String METADATA_RESOURCE = "/metadata/odata-metadata.xml";
+    static final String RESPONSE_RESOURCE = "/odata/catalog-response.json";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Pattern ENTITY_TYPE = Pattern.compile("<EntityType\\s+Name=\"([^\"]+)\"");
+    private static final String RECORD_TYPE_SUFFIX = "_RecordType";
+    private static final String NAVIGATION_LINK_SUFFIX = "@navigationLinkUrl";
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Документ $metadata не меньше чем на {@code entities} таблиц. Описания типов записи
+     * (EntityType, ComplexType, Association) повторяются с номером копии в именах таблиц,
+     * EntityContainer остается исходным — разбор индекса его не читает.
+     */
+    static byte[] metadata(int entities) {
+        String recorded = System.getProperty("fixtures.metadata");
+        String xml = recorded != null
+                ? new String(read(recorded), StandardCharsets.UTF_8)
+                : resource(METADATA_RESOURCE);
+        return scaleMetadata(xml, entities).getBytes(StandardCharsets.UTF_8);
+    }
+
+    static String scaleMetadata(String xml, int entities) {
+        Set<String> names = new LinkedHashSet<>();
+        Matcher matcher = ENTITY_TYPE.matcher(xml);
+        while (matcher.find()) {
+            // Имя регистра — без суффикса _RecordType: под ним таблица видна в EntitySet и ссылках
+            String name = matcher.group(1);
+            names.add(name.endsWith(RECORD_TYPE_SUFFIX) ? name.substring(0, name.length() - RECORD_TYPE_SUFFIX.length()) : name);
+        }
+        if (names.isEmpty() || names.size() >= entities) {
+            return xml;
+        }
+        int schemaStart = xml.indexOf('>', xml.indexOf("<Schema")) + 1;
+        int containerStart = xml.indexOf("<EntityContainer", schemaStart);
+        int typesEnd = containerStart < 0 ? xml.indexOf("</Schema>") : containerStart;
+        String types = xml.substring(schemaStart, typesEnd);
+
+        // Длинные имена первыми, чтобы Catalog_Товары не перехватывал Catalog_ТоварыНаСкладах
+        Pattern name = Pattern.compile("(?<![\\p{L}\\p{N}_])(" + names.stream()
+                .sorted(Comparator.comparingInt(String::length).reversed())
+                .map(Pattern::quote)
+                .collect(Collectors.joining("|")) + ")(?![\\p{L}\\p{N}])");
+        int copies = (entities + names.size() - 1) / names.size();
+        StringBuilder sb = new StringBuilder(xml.length() * copies);
+        sb.append(xml, 0, typesEnd);
+        for (int copy = 1; copy < copies; copy++) {
+            String suffix = String.valueOf(copy);
+            sb.append(name.matcher(types).replaceAll(match -> Matcher.quoteReplacement(match.group(1) + suffix)));
+        }
+        sb.append(xml, typesEnd, xml.length());
+        return sb.toString();
+    }
+
+    /**
+     * Ответ 1С на запрос к таблице ровно из {@code rows} строк. Недостающие строки — копии записанных
+     * с новыми Ref_Key и Code (в навигационных ссылках ключ заменяется тоже).
+     */
+    static String response(int rows) {
+        String recorded = System.getProperty("fixtures.response");
+        String json = recorded != null
+                ? new String(read(recorded), StandardCharsets.UTF_8)
+                : resource(RESPONSE_RESOURCE);
+        return scaleResponse(json, rows);
+    }
+
+    static String scaleResponse(String json, int rows) {
+        try {
+            ObjectNode root = (ObjectNode) MAPPER.readTree(json);
+            List<JsonNode> recorded = new ArrayList<>();
+            root.path("value").forEach(recorded::add);
+            if (recorded.isEmpty()) {
+                throw new IllegalStateException("В записанном ответе 1С нет строк");
+            }
+            ArrayNode value = MAPPER.createArrayNode();
+            for (int r = 0; r < rows; r++) {
+                JsonNode source = recorded.get(r % recorded.size());
+                value.add(r < recorded.size() ? source : copyRow((ObjectNode) source, r));
+            }
+            root.set("value", value);
+            return MAPPER.writeValueAsString(root);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static ObjectNode copyRow(ObjectNode source, int index) {
+        ObjectNode row = source.deepCopy();
+        String oldKey = source.path("Ref_Key").asText(null);
+        String newKey = UUID.nameUUIDFromBytes(("row-" + index).getBytes(StandardCharsets.UTF_8)).toString();
+        if (row.has("Code")) {
+            row.put("Code", String.format("%09d", index + 1));
+        }
+        if (oldKey != null) {
+            row.put("Ref_Key", newKey);
+            for (Map.Entry<String, JsonNode> field : source.properties()) {
+                if (field.getKey().endsWith(NAVIGATION_LINK_SUFFIX) && field.getValue().isTextual()) {
+                    row.put(field.getKey(), field.getValue().asText().replace(oldKey, newKey));
+                }
+            }
+        }
+        return row;
+    }
+
+    private static String resource(String name) {
+        try (InputStream in = BenchmarkFixtures.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IllegalStateException("Нет ресурса " + name + " на classpath (профиль jmh запускается с тестовыми ресурсами)");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] read(String path) {
+        try {
+            return Files.readAllBytes(Path.of(path));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
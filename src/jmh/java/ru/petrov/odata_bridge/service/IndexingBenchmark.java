@@ -0,0 +1,96 @@
+package ru.petrov.odata_bridge.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.petrov.odata_bridge.model.EntityMetadata;
+import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подготовка документов для индекса и строки контекста для модели:
+ * {@link IndexingService#toDocument}, отпечаток сущности, справочник метаданных,
+ * списки заголовков (этап 1) и полей (этап 2).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexingBenchmark {
+
+    @Param({"2000"})
+    int entities;
+
+    private List<EntityMetadata> tables;
+    private List<FieldInfo> fields;
+    private MetadataCatalog catalog;
+    private MetadataCatalog.EntityFields widest;
+    private List<HeaderVectorIndex.Hit> hits;
+
+    @Setup
+    public void setUp() throws Exception {
+        tables = new ArrayList<>();
+        try (MetadataXmlReader reader = new MetadataXmlReader(
+                new ByteArrayInputStream(BenchmarkFixtures.metadata(entities)), name -> true, BenchmarkFixtures.EXCLUDE_FIELDS)) {
+            EntityMetadata entity;
+            while ((entity = reader.nextEntity()) != null) {
+                tables.add(entity);
+            }
+        }
+        fields = tables.stream().flatMap(table -> table.fields().stream()).toList();
+        catalog = MetadataCatalog.of(fields);
+        widest = tables.stream()
+                .map(table -> catalog.entity(table.entity()).orElseThrow())
+                .max((a, b) -> Integer.compare(a.size(), b.size()))
+                .orElseThrow();
+        hits = tables.stream().limit(20)
+                .map(table -> new HeaderVectorIndex.Hit(table.entity(), table.fields().get(0).description(), 0.8f))
+                .toList();
+    }
+
+    /** Все документы одной переиндексации (без векторизации). */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void buildDocuments(Blackhole blackhole) {
+        for (EntityMetadata table : tables) {
+            String fingerprint = IndexingService.fingerprint(table.fields());
+            for (FieldInfo field : table.fields()) {
+                blackhole.consume(IndexingService.toDocument(field, fingerprint, "generation"));
+            }
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public MetadataCatalog buildCatalog() {
+        return MetadataCatalog.of(fields);
+    }
+
+    /** Контекст этапа 1: кандидаты-заголовки. */
+    @Benchmark
+    public String headerContext() {
+        return IndexingService.formatHeaders(hits);
+    }
+
+    /** Контекст этапа 2: поля самой широкой таблицы. */
+    @Benchmark
+    public String fieldContext() {
+        return IndexingService.formatFields(widest);
+    }
+}
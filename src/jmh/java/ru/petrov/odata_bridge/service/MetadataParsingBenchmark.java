@@ -0,0 +1,52 @@
+package ru.petrov.odata_bridge.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.petrov.odata_bridge.model.EntityMetadata;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор $metadata — то, что делает {@link ODataService#streamMetadata()} после получения тела от 1С.
+ * Сетевая часть не измеряется: документ читается из памяти.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataParsingBenchmark {
+
+    @Param({"200", "2000"})
+    int entities;
+
+    private byte[] metadata;
+
+    @Setup
+    public void setUp() {
+        metadata = BenchmarkFixtures.metadata(entities);
+    }
+
+    @Benchmark
+    public void parseMetadata(Blackhole blackhole) throws Exception {
+        try (MetadataXmlReader reader = new MetadataXmlReader(
+                new ByteArrayInputStream(metadata), name -> true, BenchmarkFixtures.EXCLUDE_FIELDS)) {
+            EntityMetadata entity;
+            while ((entity = reader.nextEntity()) != null) {
+                blackhole.consume(entity);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.config.ODataConfig;
+import ru.petrov.odata_bridge.model.QueryResult;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Подготовка ответа 1С для модели в executeSmartQuery: повторный разбор и форматирование JSON
+ * ({@link ODataService#formatResult}) против потокового {@link ResultShaper}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResultFormattingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int rows;
+
+    private String body;
+    private ResultShaper shaper;
+
+    @Setup
+    public void setUp() {
+        body = BenchmarkFixtures.response(rows);
+        ODataConfig config = new ODataConfig("http://1c", "user", "password",
+                new ODataConfig.Cache(false, 0, Duration.ZERO, null, false),
+                new ODataConfig.Shaping(true, false, 16384, List.of(), 1024),
+                new ODataConfig.Batch(false, 0),
+                null);
+        IndexingConfig indexingConfig = new IndexingConfig(100, 10, 0.75, null, BenchmarkFixtures.EXCLUDE_FIELDS,
+                null, true, 2, 3, Duration.ofSeconds(2));
+        shaper = new ResultShaper(config, indexingConfig, new MetadataCatalogService(null), new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public QueryResult prettyPrint() {
+        return ODataService.formatResult(body, null);
+    }
+
+    @Benchmark
+    public QueryResult shape() {
+        return shaper.shape(body, null);
+    }
+}
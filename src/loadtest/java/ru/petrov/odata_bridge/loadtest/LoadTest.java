@@ -0,0 +1,294 @@
+package ru.petrov.odata_bridge.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Нагрузочный прогон без сети: заглушки 1С и Ollama на localhost, приложение в отдельной JVM
+ * (или уже запущенное, {@code --app=http://...}), набор вопросов к /api/ai/ask и периодическая
+ * переиндексация. В конце — пропускная способность, p50/p99 по каждому эндпоинту и пик кучи приложения
+ * (по /actuator/metrics). Postgres с pgvector нужен локальный, как и при обычном запуске.
+ *
+ * <p>Параметры ({@code --имя=значение}): duration (60s), warmup (10s), concurrency (16),
+ * reindex-interval (0 — только в начале), odata-latency (50ms), chat-latency (300ms), embed-latency (20ms),
+ * entities (200), rows (50), dimensions (1024), fixtures (каталог записанных ответов 1С),
+ * questions (файл вопросов, по одному в строке), app, app-jvm (-Xmx1g).
+ */
+public final class LoadTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String APPLICATION_CLASS = "ru.petrov.odata_bridge.OdataBridgeApplication";
+
+    private final Map<String, String> options;
+    private final HttpClient http = HttpClient.newBuilder()
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final Map<String, Recorder> recorders = new LinkedHashMap<>();
+    private final AtomicLong maxHeap = new AtomicLong();
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+        recorders.put("ask", new Recorder());
+        recorders.put("reindex", new Recorder());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.contains("=")) {
+                options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            }
+        }
+        new LoadTest(options).run();
+    }
+
+    /** Задержки одного эндпоинта в наносекундах; копятся только после прогрева. */
+    private static final class Recorder {
+        final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+        final AtomicLong errors = new AtomicLong();
+        volatile boolean recording;
+
+        void record(long nanos, boolean success) {
+            if (!recording) {
+                return;
+            }
+            latencies.add(nanos);
+            if (!success) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        Path fixtures = options.containsKey("fixtures") ? Path.of(options.get("fixtures")) : null;
+        try (StubOneCServer oneC = new StubOneCServer(0, fixtures, duration("odata-latency", "50ms"),
+                integer("entities", 200), integer("rows", 50));
+             StubOllamaServer ollama = new StubOllamaServer(0, duration("chat-latency", "300ms"),
+                     duration("embed-latency", "20ms"), integer("dimensions", 1024), oneC.entityNames().get(0))) {
+            System.out.printf("Заглушка 1С: %s%nЗаглушка Ollama: %s%n", oneC.baseUrl(), ollama.baseUrl());
+
+            Process app = null;
+            String appUrl = options.get("app");
+            if (appUrl == null) {
+                int port = freePort();
+                app = startApplication(port, oneC, ollama);
+                appUrl = "http://127.0.0.1:" + port;
+            }
+            try {
+                awaitHealthy(appUrl);
+                drive(appUrl, questions(oneC.entityNames()));
+            } finally {
+                if (app != null) {
+                    app.destroy();
+                    app.waitFor();
+                }
+            }
+        }
+    }
+
+    private void drive(String appUrl, List<String> questions) throws Exception {
+        // Первая индексация наполняет векторную таблицу из заглушки
+        Recorder reindex = recorders.get("reindex");
+        reindex.recording = true;
+        timed(reindex, appUrl + "/api/admin/reindex?full=true");
+        System.out.printf("Начальная индексация: %d мс%n", reindex.latencies.peek() / 1_000_000);
+
+        Duration warmup = duration("warmup", "10s");
+        Duration length = duration("duration", "60s");
+        Duration reindexInterval = duration("reindex-interval", "0s");
+        int concurrency = integer("concurrency", 16);
+        long start = System.nanoTime();
+        long recordFrom = start + warmup.toNanos();
+        long end = recordFrom + length.toNanos();
+        Recorder ask = recorders.get("ask");
+        reindex.latencies.clear();
+        reindex.recording = false;
+
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                workers.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        String question = questions.get(ThreadLocalRandom.current().nextInt(questions.size()));
+                        timed(ask, appUrl + "/api/ai/ask?prompt=" + URLEncoder.encode(question, StandardCharsets.UTF_8));
+                    }
+                    return null;
+                });
+            }
+            if (!reindexInterval.isZero()) {
+                workers.submit(() -> {
+                    while (System.nanoTime() + reindexInterval.toNanos() < end) {
+                        Thread.sleep(reindexInterval);
+                        timed(reindex, appUrl + "/api/admin/reindex");
+                    }
+                    return null;
+                });
+            }
+            workers.submit(() -> {
+                while (System.nanoTime() < end) {
+                    sampleHeap(appUrl);
+                    Thread.sleep(1000);
+                }
+                return null;
+            });
+            Thread.sleep(Duration.ofNanos(Math.max(0, recordFrom - System.nanoTime())));
+            ask.recording = true;
+            reindex.recording = true;
+        }
+        report(length);
+    }
+
+    private void timed(Recorder recorder, String url) {
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(url))
+                    .timeout(Duration.ofMinutes(5))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            // Ошибки пайплайна контроллеры отдают текстом со статусом 200
+            success = response.statusCode() == 200 && !response.body().startsWith("Ошибка");
+        } catch (IOException e) {
+            success = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        recorder.record(System.nanoTime() - start, success);
+    }
+
+    private void sampleHeap(String appUrl) {
+        try {
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(
+                            URI.create(appUrl + "/actuator/metrics/jvm.memory.used?tag=area:heap")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() == 200) {
+                JsonNode value = MAPPER.readTree(response.body()).path("measurements").path(0).path("value");
+                maxHeap.accumulateAndGet(value.asLong(), Math::max);
+            }
+        } catch (IOException e) {
+            // Пропущенный замер не влияет на прогон
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void report(Duration length) {
+        System.out.println();
+        System.out.printf("%-10s %8s %8s %10s %10s %10s %10s%n", "endpoint", "requests", "errors", "rps", "p50, мс", "p99, мс", "max, мс");
+        recorders.forEach((name, recorder) -> {
+            long[] sorted = recorder.latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+            if (sorted.length == 0) {
+                return;
+            }
+            System.out.printf("%-10s %8d %8d %10.1f %10.1f %10.1f %10.1f%n", name, sorted.length, recorder.errors.get(),
+                    sorted.length / (length.toMillis() / 1000.0),
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6);
+        });
+        System.out.printf("Пик кучи приложения: %d МБ%n", maxHeap.get() / (1024 * 1024));
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private List<String> questions(List<String> entities) throws IOException {
+        if (options.containsKey("questions")) {
+            return Files.readAllLines(Path.of(options.get("questions"))).stream().filter(line -> !line.isBlank()).toList();
+        }
+        // Смесь: выборки, подсчеты, фильтры и немного справки
+        List<String> questions = new ArrayList<>();
+        for (String entity : entities) {
+            String human = entity.replace("Catalog_", "справочник ").replace("Document_", "документы ");
+            questions.add("Покажи 5 записей: " + human);
+            questions.add("Сколько всего: " + human + "?");
+            questions.add("Найди " + human + " с ИНН 7700000001");
+        }
+        questions.add("Что ты умеешь?");
+        return questions;
+    }
+
+    private Process startApplication(int port, StubOneCServer oneC, StubOllamaServer ollama) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>();
+        command.add(java);
+        command.addAll(List.of(options.getOrDefault("app-jvm", "-Xmx1g").split(" ")));
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), APPLICATION_CLASS,
+                "--server.port=" + port,
+                "--app.odata.base-url=" + oneC.baseUrl(),
+                "--app.odata.username=stub",
+                "--app.odata.password=stub",
+                "--spring.ai.ollama.base-url=" + ollama.baseUrl(),
+                "--spring.ai.vectorstore.pgvector.dimensions=" + integer("dimensions", 1024),
+                "--management.endpoints.web.exposure.include=health,metrics,prometheus"));
+        File log = Path.of("target", "loadtest-app.log").toFile();
+        log.getParentFile().mkdirs();
+        System.out.printf("Запуск приложения на порту %d, журнал: %s%n", port, log);
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    private void awaitHealthy(String appUrl) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofMinutes(3).toNanos();
+        while (System.nanoTime() < deadline) {
+            try {
+                HttpResponse<String> response = http.send(HttpRequest.newBuilder(URI.create(appUrl + "/actuator/health"))
+                        .GET().build(), HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Приложение еще стартует
+            }
+            Thread.sleep(1000);
+        }
+        throw new IllegalStateException("Приложение " + appUrl + " не поднялось за 3 минуты");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private Duration duration(String name, String defaultValue) {
+        String value = options.getOrDefault(name, defaultValue).trim().toLowerCase(Locale.ROOT);
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        if (value.endsWith("m")) {
+            return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        return Duration.ofMillis(Long.parseLong(value));
+    }
+
+    private int integer(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+}
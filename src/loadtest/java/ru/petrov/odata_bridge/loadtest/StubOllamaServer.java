@@ -0,0 +1,230 @@
+package ru.petrov.odata_bridge.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Заглушка Ollama: /api/embed и /api/chat с настраиваемой задержкой.
+ * Векторы детерминированные (хеширование слов и триграмм), поэтому похожие тексты остаются близкими
+ * и поиск заголовков работает как с настоящей моделью. Чат отвечает по сценарию пайплайна:
+ * классификатору — первым [ID: ...] из списка категорий, этапу 2 — вызовом executeSmartQuery,
+ * планировщику пакета — вызовом planQuery на каждый вопрос, после результата инструмента — коротким текстом.
+ */
+public final class StubOllamaServer implements AutoCloseable {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final Pattern CATEGORY = Pattern.compile("\\[ID: ([^\\]]+)]");
+    private static final Pattern TARGET = Pattern.compile("executeSmartQuery для сущности (\\S+?)[.\\s]");
+    private static final Pattern ENTITY = Pattern.compile("(?:Catalog|Document)_[\\p{L}\\d_]+");
+    private static final Pattern QUESTION = Pattern.compile("(?m)^(\\d+)\\. ");
+
+    private final HttpServer server;
+    private final Duration chatLatency;
+    private final Duration embedLatency;
+    private final int dimensions;
+    private final String fallbackEntity;
+
+    /**
+     * @param port           Порт (0 — любой свободный)
+     * @param chatLatency    Задержка ответа чата (время генерации)
+     * @param embedLatency   Задержка векторизации одной порции
+     * @param dimensions     Размерность векторов (как у настроенной модели эмбеддингов)
+     * @param fallbackEntity Сущность для этапа 2, если в промпте ее не удалось найти
+     */
+    public StubOllamaServer(int port, Duration chatLatency, Duration embedLatency, int dimensions,
+                            String fallbackEntity) throws IOException {
+        this.chatLatency = chatLatency;
+        this.embedLatency = embedLatency;
+        this.dimensions = dimensions;
+        this.fallbackEntity = fallbackEntity;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext("/api/embed", this::embed);
+        this.server.createContext("/api/chat", this::chat);
+        this.server.createContext("/api/tags", exchange -> {
+            try (exchange) {
+                StubOneCServer.send(exchange, 200, "application/json", "{\"models\":[]}".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        this.server.start();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private void embed(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            JsonNode request = MAPPER.readTree(exchange.getRequestBody());
+            StubOneCServer.sleep(embedLatency);
+            ObjectNode response = MAPPER.createObjectNode();
+            response.put("model", request.path("model").asText());
+            ArrayNode embeddings = response.putArray("embeddings");
+            JsonNode input = request.path("input");
+            if (input.isArray()) {
+                for (JsonNode text : input) {
+                    addVector(embeddings.addArray(), text.asText());
+                }
+            } else {
+                addVector(embeddings.addArray(), input.asText());
+            }
+            StubOneCServer.send(exchange, 200, "application/json", MAPPER.writeValueAsBytes(response));
+        }
+    }
+
+    // Хеширование признаков: слова и символьные триграммы в фиксированное число измерений
+    private void addVector(ArrayNode target, String text) {
+        float[] vector = new float[dimensions];
+        String normalized = text.toLowerCase(Locale.ROOT);
+        for (String word : normalized.split("[^\\p{L}\\d]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            vector[Math.floorMod(word.hashCode(), dimensions)] += 2;
+            String padded = " " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                vector[Math.floorMod(padded.substring(i, i + 3).hashCode(), dimensions)] += 1;
+            }
+        }
+        double norm = 0;
+        for (float x : vector) {
+            norm += x * x;
+        }
+        float scale = norm == 0 ? 0 : (float) (1 / Math.sqrt(norm));
+        for (float x : vector) {
+            target.add(x * scale);
+        }
+    }
+
+    private void chat(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            JsonNode request = MAPPER.readTree(exchange.getRequestBody());
+            StubOneCServer.sleep(chatLatency);
+            ObjectNode message = reply(request);
+            String model = request.path("model").asText();
+            if (request.path("stream").asBoolean(false)) {
+                stream(exchange, model, message);
+                return;
+            }
+            ObjectNode response = chunk(model, message, true);
+            StubOneCServer.send(exchange, 200, "application/json", MAPPER.writeValueAsBytes(response));
+        }
+    }
+
+    private ObjectNode reply(JsonNode request) {
+        ObjectNode message = MAPPER.createObjectNode();
+        message.put("role", "assistant");
+        JsonNode messages = request.path("messages");
+        JsonNode last = messages.isEmpty() ? MAPPER.createObjectNode() : messages.get(messages.size() - 1);
+        if ("tool".equals(last.path("role").asText())) {
+            message.put("content", "Готово.");
+            return message;
+        }
+
+        List<String> tools = new ArrayList<>();
+        request.path("tools").forEach(tool -> tools.add(tool.path("function").path("name").asText()));
+        String text = allText(messages);
+        if (tools.contains("planQuery")) {
+            message.put("content", "");
+            ArrayNode calls = message.putArray("tool_calls");
+            Matcher question = QUESTION.matcher(text.substring(Math.max(0, text.lastIndexOf("ВОПРОСЫ:"))));
+            while (question.find()) {
+                ObjectNode arguments = toolCall(calls, "planQuery");
+                arguments.put("question", Integer.parseInt(question.group(1)));
+                arguments.put("top", 5);
+            }
+            return message;
+        }
+        if (tools.contains("executeSmartQuery")) {
+            message.put("content", "");
+            ObjectNode arguments = toolCall(message.putArray("tool_calls"), "executeSmartQuery");
+            arguments.put("entity", targetEntity(text));
+            arguments.put("top", 5);
+            arguments.put("countOnly", false);
+            return message;
+        }
+        Matcher category = CATEGORY.matcher(text);
+        message.put("content", category.find() ? category.group(1) : fallbackEntity);
+        return message;
+    }
+
+    private String targetEntity(String text) {
+        Matcher target = TARGET.matcher(text);
+        if (target.find()) {
+            return target.group(1);
+        }
+        String entity = fallbackEntity;
+        Matcher any = ENTITY.matcher(text);
+        while (any.find()) {
+            entity = any.group();
+        }
+        return entity;
+    }
+
+    private static ObjectNode toolCall(ArrayNode calls, String name) {
+        ObjectNode function = calls.addObject().putObject("function");
+        function.put("name", name);
+        return function.putObject("arguments");
+    }
+
+    private static String allText(JsonNode messages) {
+        StringBuilder sb = new StringBuilder();
+        messages.forEach(message -> sb.append(message.path("content").asText()).append('\n'));
+        return sb.toString();
+    }
+
+    private static ObjectNode chunk(String model, ObjectNode message, boolean done) {
+        ObjectNode response = MAPPER.createObjectNode();
+        response.put("model", model);
+        response.put("created_at", Instant.now().toString());
+        response.set("message", message);
+        response.put("done", done);
+        if (done) {
+            response.put("done_reason", "stop");
+            response.put("prompt_eval_count", 0);
+            response.put("eval_count", 0);
+        }
+        return response;
+    }
+
+    // Потоковый ответ: NDJSON, текст по словам, последний фрагмент с done=true
+    private void stream(HttpExchange exchange, String model, ObjectNode message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (!message.has("tool_calls")) {
+                for (String word : message.path("content").asText().split("(?<= )")) {
+                    ObjectNode part = MAPPER.createObjectNode();
+                    part.put("role", "assistant");
+                    part.put("content", word);
+                    out.write(MAPPER.writeValueAsBytes(chunk(model, part, false)));
+                    out.write('\n');
+                }
+                message = MAPPER.createObjectNode().put("role", "assistant").put("content", "");
+            }
+            out.write(MAPPER.writeValueAsBytes(chunk(model, message, true)));
+            out.write('\n');
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
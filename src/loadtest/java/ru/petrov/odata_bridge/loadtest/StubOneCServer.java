@@ -0,0 +1,218 @@
+package ru.petrov.odata_bridge.loadtest;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Заглушка OData 1С: $metadata, выборки из таблиц, $count и $batch с настраиваемой задержкой.
+ * Ответы берутся из каталога с записанными ответами реальной базы ({@code $metadata.xml},
+ * {@code <Таблица>.json}, {@code <Таблица>.count}), а если его нет или файла нет — генерируются
+ * детерминированно в том же виде.
+ */
+public final class StubOneCServer implements AutoCloseable {
+    public static final String BASE_PATH = "/base/odata/standard.odata/";
+
+    private static final String[] PREFIXES = {"Catalog_", "Document_"};
+    private static final String[] WORDS = {
+            "Контрагенты", "Номенклатура", "Склады", "Организации", "Договоры", "Валюты", "Сотрудники",
+            "Подразделения", "Партнеры", "ЗаказыКлиентов", "ПоступленияТоваров", "РеализацииТоваров"};
+    private static final String[] FIELDS = {
+            "Наименование", "Код", "ИНН", "КПП", "Комментарий", "Сумма", "Количество", "Дата", "Номер", "Ответственный"};
+    private static final Pattern TOP = Pattern.compile("\\$top=(\\d+)");
+    private static final Pattern BATCH_GET = Pattern.compile("GET (\\S+) HTTP/1\\.1");
+
+    private final HttpServer server;
+    private final Path fixtures;
+    private final Duration latency;
+    private final int entities;
+    private final int rowsPerEntity;
+    private final byte[] metadata;
+
+    /**
+     * @param port          Порт (0 — любой свободный)
+     * @param fixtures      Каталог с записанными ответами или null
+     * @param latency       Задержка каждого ответа (время выполнения запроса в 1С)
+     * @param entities      Сколько таблиц генерировать в $metadata
+     * @param rowsPerEntity Сколько строк в каждой сгенерированной таблице
+     */
+    public StubOneCServer(int port, Path fixtures, Duration latency, int entities, int rowsPerEntity) throws IOException {
+        this.fixtures = fixtures;
+        this.latency = latency;
+        this.entities = entities;
+        this.rowsPerEntity = rowsPerEntity;
+        this.metadata = recorded("$metadata.xml").orElseGet(() -> generateMetadata().getBytes(StandardCharsets.UTF_8));
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        // Задержка не должна занимать поток на каждый запрос
+        this.server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        this.server.createContext(BASE_PATH, this::handle);
+        this.server.start();
+    }
+
+    public String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + BASE_PATH;
+    }
+
+    /** Имена таблиц сгенерированного $metadata — из них составляется набор вопросов. */
+    public List<String> entityNames() {
+        List<String> names = new ArrayList<>(entities);
+        for (int i = 0; i < entities; i++) {
+            names.add(entityName(i));
+        }
+        return names;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            sleep(latency);
+            String path = exchange.getRequestURI().getRawPath().substring(BASE_PATH.length());
+            String query = exchange.getRequestURI().getRawQuery();
+            if ("$metadata".equals(path)) {
+                send(exchange, 200, "application/xml", metadata);
+            } else if ("$batch".equals(path) && "POST".equals(exchange.getRequestMethod())) {
+                handleBatch(exchange);
+            } else {
+                Response response = answer(URLDecoder.decode(path, StandardCharsets.UTF_8), query);
+                send(exchange, response.status(), response.contentType(), response.body().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private record Response(int status, String contentType, String body) {}
+
+    private Response answer(String path, String rawQuery) {
+        if (path.endsWith("/$count")) {
+            String entity = path.substring(0, path.length() - "/$count".length());
+            String count = recordedText(entity + ".count").orElse(Integer.toString(rowsPerEntity));
+            return new Response(200, "text/plain", count.strip());
+        }
+        String query = rawQuery == null ? "" : URLDecoder.decode(rawQuery, StandardCharsets.UTF_8);
+        Matcher top = TOP.matcher(query);
+        int limit = top.find() ? Integer.parseInt(top.group(1)) : rowsPerEntity;
+        String body = recordedText(path + ".json").orElseGet(() -> generateRows(path, Math.min(limit, rowsPerEntity)));
+        return new Response(200, "application/json", body);
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String boundary = "batchresponse_" + UUID.randomUUID();
+        StringBuilder sb = new StringBuilder();
+        Matcher get = BATCH_GET.matcher(request);
+        while (get.find()) {
+            URI uri = URI.create(get.group(1));
+            Response part = answer(URLDecoder.decode(uri.getRawPath(), StandardCharsets.UTF_8), uri.getRawQuery());
+            sb.append("--").append(boundary).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-Transfer-Encoding: binary\r\n\r\n")
+                    .append("HTTP/1.1 ").append(part.status()).append(" OK\r\n")
+                    .append("Content-Type: ").append(part.contentType()).append("\r\n\r\n")
+                    .append(part.body()).append("\r\n");
+        }
+        sb.append("--").append(boundary).append("--\r\n");
+        send(exchange, 202, "multipart/mixed; boundary=" + boundary, sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String generateMetadata() {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(entities * 2048);
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<edmx:Edmx xmlns:edmx=\"http://schemas.microsoft.com/ado/2007/06/edmx\" Version=\"1.0\">\n")
+                .append("<edmx:DataServices>\n<Schema xmlns=\"http://schemas.microsoft.com/ado/2009/11/edm\" Namespace=\"StandardODATA\">\n");
+        for (int e = 0; e < entities; e++) {
+            sb.append("<EntityType Name=\"").append(entityName(e)).append("\">\n")
+                    .append("<Key><PropertyRef Name=\"Ref_Key\"/></Key>\n")
+                    .append("<Property Name=\"Ref_Key\" Type=\"Edm.Guid\" Nullable=\"false\"/>\n")
+                    .append("<Property Name=\"DataVersion\" Type=\"Edm.String\" Nullable=\"true\"/>\n")
+                    .append("<Property Name=\"DeletionMark\" Type=\"Edm.Boolean\" Nullable=\"true\"/>\n");
+            int fields = 5 + random.nextInt(FIELDS.length - 4);
+            for (int f = 0; f < fields; f++) {
+                sb.append("<Property Name=\"").append(FIELDS[f]).append("\" Type=\"Edm.String\" Nullable=\"true\"/>\n");
+            }
+            sb.append("</EntityType>\n");
+        }
+        sb.append("</Schema>\n</edmx:DataServices>\n</edmx:Edmx>\n");
+        return sb.toString();
+    }
+
+    private String generateRows(String entity, int rows) {
+        Random random = new Random(entity.hashCode());
+        StringBuilder sb = new StringBuilder(rows * 256);
+        sb.append("{\"odata.metadata\":\"").append(baseUrl()).append("$metadata#").append(entity).append("\",\"value\":[");
+        for (int r = 0; r < rows; r++) {
+            if (r > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"Ref_Key\":\"").append(new UUID(entity.hashCode(), r)).append('"')
+                    .append(",\"DataVersion\":\"AAAAAA").append(Integer.toHexString(r)).append('"')
+                    .append(",\"DeletionMark\":false");
+            for (String field : FIELDS) {
+                sb.append(",\"").append(field).append("\":\"").append(field).append(' ').append(random.nextInt(100_000)).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static String entityName(int index) {
+        return PREFIXES[index % PREFIXES.length] + WORDS[index % WORDS.length] + (index < WORDS.length ? "" : index / WORDS.length);
+    }
+
+    private Optional<byte[]> recorded(String name) {
+        if (fixtures == null) {
+            return Optional.empty();
+        }
+        Path file = fixtures.resolve(name);
+        try {
+            return Files.exists(file) ? Optional.of(Files.readAllBytes(file)) : Optional.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Optional<String> recordedText(String name) {
+        return recorded(name).map(bytes -> new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    static void sleep(Duration latency) {
+        if (latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
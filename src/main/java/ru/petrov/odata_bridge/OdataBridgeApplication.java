@@ -3,12 +3,25 @@ package ru.petrov.odata_bridge;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import ru.petrov.odata_bridge.config.AiConfig;
+import ru.petrov.odata_bridge.config.BulkheadConfig;
+import ru.petrov.odata_bridge.config.ChatMemoryConfig;
+import ru.petrov.odata_bridge.config.ClassificationCacheConfig;
+import ru.petrov.odata_bridge.config.CountConfig;
+import ru.petrov.odata_bridge.config.EmbeddingCacheConfig;
 import ru.petrov.odata_bridge.config.IndexingConfig;
 import ru.petrov.odata_bridge.config.ODataConfig;
+import ru.petrov.odata_bridge.config.ReplicaConfig;
+import ru.petrov.odata_bridge.config.RoutingConfig;
+import ru.petrov.odata_bridge.config.SnapshotConfig;
 
 @SpringBootApplication
-@EnableConfigurationProperties({IndexingConfig.class, AiConfig.class, ODataConfig.class})
+@EnableConfigurationProperties({IndexingConfig.class, AiConfig.class, ODataConfig.class, EmbeddingCacheConfig.class,
+		RoutingConfig.class, ClassificationCacheConfig.class,
+		BulkheadConfig.class, ReplicaConfig.class, CountConfig.class,
+		SnapshotConfig.class, ChatMemoryConfig.class})
+@EnableScheduling
 public class OdataBridgeApplication {
 
 	public static void main(String[] args) {
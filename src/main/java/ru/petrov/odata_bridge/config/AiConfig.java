@@ -2,12 +2,18 @@ package ru.petrov.odata_bridge.config;
 
 import jakarta.validation.constraints.NotBlank;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.validation.annotation.Validated;
 
 @Validated
 @ConfigurationProperties(prefix = "app.ai")
 public record AiConfig(
         @NotBlank
-        String systemPrompt
+        String systemPrompt,
+
+        @DefaultValue("10") int batchPlanSize, // Вопросов к одной сущности в одном запросе планировщика пакета
+        @DefaultValue("500") int batchMaxPrompts, // Максимум вопросов в /api/ai/ask/batch
+        @DefaultValue("false") boolean speculativePrefetch, // Пока работает классификатор, готовить контекст полей лучшего кандидата
+        @DefaultValue("false") boolean speculativeSample // Вместе с контекстом полей запрашивать в 1С выборку кандидата ($top без фильтра)
 ) {
 }
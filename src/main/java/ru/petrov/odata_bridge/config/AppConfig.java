@@ -1,18 +1,78 @@
 package ru.petrov.odata_bridge.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.springframework.ai.chat.memory.ChatMemory;
-import org.springframework.ai.chat.memory.InMemoryChatMemoryRepository;
 import org.springframework.ai.chat.memory.MessageWindowChatMemory;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.ollama.OllamaEmbeddingModel;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import ru.petrov.odata_bridge.repository.ChatMemoryStoreRepository;
+import ru.petrov.odata_bridge.repository.EmbeddingCacheRepository;
+import ru.petrov.odata_bridge.service.Bulkhead;
+import ru.petrov.odata_bridge.service.CachingEmbeddingModel;
+import ru.petrov.odata_bridge.service.OllamaScheduler;
+import ru.petrov.odata_bridge.service.ScheduledEmbeddingModel;
+import ru.petrov.odata_bridge.service.TieredChatMemoryRepository;
 
 @Configuration
 public class AppConfig {
     @Bean
-    public ChatMemory chatMemory() {
+    public ChatMemory chatMemory(TieredChatMemoryRepository chatMemoryRepository, ChatMemoryConfig chatMemoryConfig) {
         return MessageWindowChatMemory.builder()
-                .chatMemoryRepository(new InMemoryChatMemoryRepository())
-                .maxMessages(50)
+                .chatMemoryRepository(chatMemoryRepository)
+                .maxMessages(chatMemoryConfig.maxMessages())
                 .build();
     }
-}
\ No newline at end of file
+
+    /**
+     * История диалогов: активные в памяти, неактивные в Postgres; объем памяти ограничен.
+     */
+    @Bean
+    public TieredChatMemoryRepository chatMemoryRepository(ChatMemoryConfig chatMemoryConfig,
+                                                           ChatMemoryStoreRepository chatMemoryStoreRepository,
+                                                           MeterRegistry meterRegistry) {
+        return new TieredChatMemoryRepository(chatMemoryConfig, chatMemoryStoreRepository, meterRegistry);
+    }
+
+    /**
+     * Основная модель векторизации приложения: VectorStore, индексация и поиск получают ее вместо "голой" Ollama.
+     * Кеш стоит перед очередью Ollama: попадания в кеш места в очереди не занимают.
+     */
+    @Bean
+    @Primary
+    public EmbeddingModel embeddingModel(OllamaEmbeddingModel ollamaEmbeddingModel,
+                                         OllamaScheduler ollamaScheduler,
+                                         EmbeddingCacheRepository embeddingCacheRepository,
+                                         EmbeddingCacheConfig embeddingCacheConfig,
+                                         @Value("${spring.ai.ollama.embedding.options.model:mxbai-embed-large}") String model) {
+        EmbeddingModel scheduled = new ScheduledEmbeddingModel(ollamaEmbeddingModel, ollamaScheduler);
+        if (!embeddingCacheConfig.enabled()) {
+            return scheduled;
+        }
+        return new CachingEmbeddingModel(scheduled, embeddingCacheRepository, model,
+                embeddingCacheConfig.memorySize());
+    }
+
+    /**
+     * Общая очередь всех вызовов Ollama: диалог, векторизация вопросов и индексация с разными приоритетами.
+     */
+    @Bean
+    public OllamaScheduler ollamaScheduler(BulkheadConfig bulkheadConfig, MeterRegistry meterRegistry) {
+        return new OllamaScheduler(bulkheadConfig.ollamaMaxConcurrent(),
+                bulkheadConfig.ollamaQueryEmbeddingMaxConcurrent(),
+                bulkheadConfig.ollamaBatchMaxConcurrent(),
+                bulkheadConfig.ollamaIndexingMaxConcurrent(),
+                bulkheadConfig.indexingPauseQueueDepth(),
+                bulkheadConfig.acquireTimeout(),
+                bulkheadConfig.indexingAcquireTimeout(),
+                meterRegistry);
+    }
+
+    @Bean
+    public Bulkhead odataBulkhead(BulkheadConfig bulkheadConfig, MeterRegistry meterRegistry) {
+        return new Bulkhead("1c", bulkheadConfig.odataMaxConcurrent(), bulkheadConfig.acquireTimeout(), meterRegistry);
+    }
+}
@@ -0,0 +1,18 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.bulkhead")
+public record BulkheadConfig(
+        @DefaultValue("4") int ollamaMaxConcurrent, // Одновременных вызовов LLM (согласуйте с OLLAMA_NUM_PARALLEL)
+        @DefaultValue("8") int odataMaxConcurrent, // Одновременных HTTP-запросов к 1С
+        @DefaultValue("60s") Duration acquireTimeout, // Сколько запрос ждет свободного места, прежде чем получить 503
+        @DefaultValue("2") int ollamaQueryEmbeddingMaxConcurrent, // Из ollamaMaxConcurrent — векторизаций вопросов
+        @DefaultValue("2") int ollamaBatchMaxConcurrent, // Из ollamaMaxConcurrent — вызовов пакетных вопросов (/api/ai/ask/batch)
+        @DefaultValue("2") int ollamaIndexingMaxConcurrent, // Из ollamaMaxConcurrent — порций индексации
+        @DefaultValue("1") int indexingPauseQueueDepth, // Вопросов в очереди к Ollama, при котором новые порции индексации ждут
+        @DefaultValue("30m") Duration indexingAcquireTimeout // Сколько порция индексации может ждать места
+) {}
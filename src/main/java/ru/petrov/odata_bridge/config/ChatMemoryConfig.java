@@ -0,0 +1,16 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.chat-memory")
+public record ChatMemoryConfig(
+        @DefaultValue("50") int maxMessages, // Окно сообщений одного диалога
+        @DefaultValue("20000") int maxHotMessages, // Общий предел сообщений в памяти; сверх него вытесняются давно неактивные диалоги
+        @DefaultValue("30m") Duration idleTtl, // Диалог без обращений дольше этого уходит из памяти
+        @DefaultValue("true") boolean persist, // Вытесненные диалоги сохраняются в Postgres, иначе удаляются
+        @DefaultValue("7d") Duration retention, // Сохраненный диалог без обращений дольше этого удаляется
+        @DefaultValue("chat_memory") String tableName
+) {}
@@ -0,0 +1,15 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.classification-cache")
+public record ClassificationCacheConfig(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("1000") int maxSize, // Вытеснение самых давно использованных вопросов (LRU)
+        @DefaultValue("1h") Duration ttl,
+        @DefaultValue("false") boolean approximate, // Поиск похожего вопроса по вектору, если точного нет
+        @DefaultValue("0.95") double similarityThreshold // Порог косинусной близости для приближенного режима
+) {}
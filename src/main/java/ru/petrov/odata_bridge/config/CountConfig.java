@@ -0,0 +1,14 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+@ConfigurationProperties(prefix = "app.counts")
+public record CountConfig(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("1m") Duration initialDelay, // Задержка первого обхода после старта (справочник метаданных успевает загрузиться)
+        @DefaultValue("10m") Duration refreshInterval, // Пауза между обходами индексированных таблиц
+        @DefaultValue("30m") Duration maxStaleness // Количество старше этого не используется, запрос идет в 1С
+) {}
@@ -0,0 +1,11 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConfigurationProperties(prefix = "app.embedding-cache")
+public record EmbeddingCacheConfig(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("embedding_cache") String tableName, // Таблица Postgres с готовыми векторами
+        @DefaultValue("2000") int memorySize // Горячие векторы в памяти (повторяющиеся вопросы пользователей)
+) {}
@@ -3,6 +3,7 @@ package ru.petrov.odata_bridge.config;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.bind.DefaultValue;
 
+import java.time.Duration;
 import java.util.List;
 
 @ConfigurationProperties(prefix = "app.indexing")
@@ -12,5 +13,9 @@ public record IndexingConfig(
         @DefaultValue("0.75") double similarityThreshold,
         List<String> excludeEntities,
         List<String> excludeFields,
-        List<String> includeOnly // Добавляем белый список на период MVP
+        List<String> includeOnly, // Добавляем белый список на период MVP
+        @DefaultValue("true") boolean incremental, // Переиндексировать только измененные сущности
+        @DefaultValue("2") int embeddingConcurrency, // Порций одновременно в работе у Ollama
+        @DefaultValue("3") int maxRetries, // Повторов на порцию до прерывания индексации
+        @DefaultValue("2s") Duration retryBackoff // Начальная пауза перед повтором, дальше растет экспоненциально
 ) {}
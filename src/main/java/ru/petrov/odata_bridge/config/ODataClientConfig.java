@@ -0,0 +1,120 @@
+package ru.petrov.odata_bridge.config;
+
+import io.netty.channel.ChannelOption;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import ru.petrov.odata_bridge.service.PipelineMetrics;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP-клиент OData 1С, общий для запросов инструмента, выгрузки и чтения метаданных.
+ */
+@Configuration
+public class ODataClientConfig {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ODataClientConfig.class);
+
+    /**
+     * Отдельный пул соединений к 1С: размер, очередь ожидания и вытеснение простаивающих соединений
+     * настраиваются в app.odata.connection, а не берутся из общего пула reactor-netty.
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider odataConnectionProvider(ODataConfig oDataConfig) {
+        ODataConfig.Connection connection = oDataConfig.connection();
+        return ConnectionProvider.builder("odata")
+                .maxConnections(connection.maxConnections())
+                .pendingAcquireMaxCount(connection.pendingAcquireMaxCount())
+                .pendingAcquireTimeout(connection.pendingAcquireTimeout())
+                .maxIdleTime(connection.maxIdleTime())
+                .maxLifeTime(connection.maxLifeTime())
+                .evictInBackground(connection.evictInterval())
+                .metrics(connection.metrics())
+                .build();
+    }
+
+    @Bean
+    public WebClient odataWebClient(ODataConfig oDataConfig, ConnectionProvider odataConnectionProvider, PipelineMetrics metrics) {
+        ODataConfig.Connection connection = oDataConfig.connection();
+        HttpClient httpClient = HttpClient.create(odataConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connection.connectTimeout().toMillis())
+                .responseTimeout(connection.responseTimeout())
+                .compress(connection.compress());
+        String auth = oDataConfig.username() + ":" + oDataConfig.password();
+        String encodedAuth = Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
+        // Устанавливаем лимит, например, 50 МБ (50 * 1024 * 1024).
+        // Нужен только для JSON-ответов executeSmartQuery: $metadata и выгрузка читаются потоково и под лимит не попадают
+        ExchangeStrategies strategies = ExchangeStrategies.builder()
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(50 * 1024 * 1024))
+                .build();
+        return WebClient.builder()
+                .baseUrl(oDataConfig.baseUrl())
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .defaultHeader("Authorization", "Basic " + encodedAuth)
+                .exchangeStrategies(strategies) // Применяем стратегию
+                .filter(logRequest())
+                .filter(measure(metrics, URI.create(oDataConfig.baseUrl()).getPath()))
+                .build();
+    }
+
+    /**
+     * Длительность обращения к 1С до конца чтения тела и размер ответа — вместо логирования тел запросов.
+     */
+    private ExchangeFilterFunction measure(PipelineMetrics metrics, String basePath) {
+        return (request, next) -> {
+            long start = System.nanoTime();
+            String target = target(request.url().getPath(), basePath);
+            String method = request.method().name();
+            return next.exchange(request)
+                    .map(response -> {
+                        AtomicLong bytes = new AtomicLong();
+                        int status = response.statusCode().value();
+                        return response.mutate()
+                                .body(body -> body
+                                        .doOnNext(buffer -> bytes.addAndGet(buffer.readableByteCount()))
+                                        .doFinally(signal -> metrics.recordODataCall(
+                                                target, method, status, System.nanoTime() - start, bytes.get())))
+                                .build();
+                    })
+                    .doOnError(e -> metrics.recordODataCall(target, method, 0, System.nanoTime() - start, 0));
+        };
+    }
+
+    // Первый сегмент пути после адреса сервиса: имя сущности, $metadata или $batch
+    private static String target(String path, String basePath) {
+        String relative = path != null && basePath != null && path.startsWith(basePath)
+                ? path.substring(basePath.length())
+                : path;
+        if (relative == null) {
+            return null;
+        }
+        if (relative.startsWith("/")) {
+            relative = relative.substring(1);
+        }
+        int end = relative.length();
+        for (int i = 0; i < relative.length(); i++) {
+            char c = relative.charAt(i);
+            if (c == '/' || c == '(') {
+                end = i;
+                break;
+            }
+        }
+        return relative.substring(0, end);
+    }
+
+    private ExchangeFilterFunction logRequest() {
+        return ExchangeFilterFunction.ofRequestProcessor(clientRequest -> {
+            log.debug(">>>> ЗАПРОС К 1С: {} {}", clientRequest.method(), clientRequest.url());
+            return Mono.just(clientRequest);
+        });
+    }
+}
@@ -2,8 +2,13 @@ package ru.petrov.odata_bridge.config;
 
 import jakarta.validation.constraints.NotBlank;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
 import org.springframework.validation.annotation.Validated;
 
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
 @Validated
 @ConfigurationProperties(prefix = "app.odata")
 public record ODataConfig(
@@ -14,5 +19,84 @@ public record ODataConfig(
         String username,
 
         @NotBlank(message = "Пароль обязателен")
-        String password
-) {}
+        String password,
+
+        @DefaultValue
+        Cache cache,
+
+        @DefaultValue
+        Shaping shaping,
+
+        @DefaultValue
+        Batch batch,
+
+        @DefaultValue
+        Connection connection
+) {
+    /**
+     * Кеш результатов executeSmartQuery.
+     * @param ttl        Время жизни по префиксу имени сущности (напр. "Catalog_" → 10m); самый длинный префикс побеждает
+     * @param revalidate По истечении TTL сначала проверить ETag или DataVersion, а не перечитывать данные целиком
+     */
+    public record Cache(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("500") int maxSize,
+            @DefaultValue("30s") Duration defaultTtl,
+            Map<String, Duration> ttl,
+            @DefaultValue("true") boolean revalidate
+    ) {}
+
+    /**
+     * Подготовка ответа 1С для модели.
+     * @param autoSelect      Запрашивать только нужные поля ($select): найденные по вопросу в индексе метаданных,
+     *                        поля из фильтра и поля представления
+     * @param maxBytes        Бюджет ответа в байтах UTF-8; строки сверх бюджета не выводятся, в конце добавляется отметка об усечении
+     * @param selectFields    Поля представления, которые запрашиваются всегда, если они есть у сущности
+     * @param maxSelectLength Предел длины $select после percent-кодирования; длиннее — $select не передается
+     *                        (IIS по умолчанию ограничивает строку запроса 2048 байтами, кириллическая буква — 6 байт)
+     */
+    public record Shaping(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("true") boolean autoSelect,
+            @DefaultValue("16384") int maxBytes,
+            @DefaultValue({"Description", "Code", "Number", "Date", "Наименование", "Код", "Номер", "Дата"})
+            List<String> selectFields,
+            @DefaultValue("1024") int maxSelectLength
+    ) {}
+
+    /**
+     * Пакетные запросы через $batch.
+     * @param enabled  false — запросы пакета выполняются по одному (для баз 1С без поддержки $batch)
+     * @param maxParts Запросов в одном $batch; больший пакет делится на несколько
+     */
+    public record Batch(
+            @DefaultValue("true") boolean enabled,
+            @DefaultValue("50") int maxParts
+    ) {}
+
+    /**
+     * Пул соединений HTTP-клиента 1С.
+     * @param maxConnections         Соединений в пуле; держите не меньше app.bulkhead.odata-max-concurrent плюс фоновые задачи
+     * @param pendingAcquireMaxCount Запросов в очереди за соединением; сверх этого — немедленная ошибка
+     * @param pendingAcquireTimeout  Сколько запрос ждет свободного соединения
+     * @param maxIdleTime            Простаивающее соединение закрывается раньше, чем его закроет IIS (по умолчанию 120 с)
+     * @param maxLifeTime            Соединение пересоздается по возрасту, чтобы нагрузка перераспределялась между узлами
+     * @param evictInterval          Период фоновой очистки простаивающих и старых соединений
+     * @param connectTimeout         Таймаут установки TCP-соединения
+     * @param responseTimeout        Сколько ждать ответа (и каждой следующей порции тела) от 1С
+     * @param compress               Запрашивать gzip-сжатие ответов (Accept-Encoding)
+     * @param metrics                Метрики пула reactor.netty.connection.provider.* (active/idle/pending/total)
+     */
+    public record Connection(
+            @DefaultValue("16") int maxConnections,
+            @DefaultValue("100") int pendingAcquireMaxCount,
+            @DefaultValue("30s") Duration pendingAcquireTimeout,
+            @DefaultValue("60s") Duration maxIdleTime,
+            @DefaultValue("10m") Duration maxLifeTime,
+            @DefaultValue("30s") Duration evictInterval,
+            @DefaultValue("5s") Duration connectTimeout,
+            @DefaultValue("120s") Duration responseTimeout,
+            @DefaultValue("true") boolean compress,
+            @DefaultValue("true") boolean metrics
+    ) {}
+}
@@ -0,0 +1,18 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
+
+@ConfigurationProperties(prefix = "app.replica")
+public record ReplicaConfig(
+        @DefaultValue("false") boolean enabled,
+        List<String> entities, // Реплицируемые таблицы; пусто — справочники (Catalog_) из app.indexing.include-only
+        @DefaultValue("30s") Duration initialDelay, // Задержка первой загрузки после старта
+        @DefaultValue("5m") Duration syncInterval, // Пауза между синхронизациями по DataVersion
+        @DefaultValue("15m") Duration maxStaleness, // Реплика старше этого не используется, запросы идут в 1С
+        @DefaultValue("1000") int pageSize, // Строк на страницу при первой загрузке и при сверке DataVersion
+        @DefaultValue("50000") int maxRows // Таблица больше этого не реплицируется
+) {}
@@ -0,0 +1,13 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.util.List;
+import java.util.Map;
+
+@ConfigurationProperties(prefix = "app.routing")
+public record RoutingConfig(
+        @DefaultValue("true") boolean enabled, // Лексический выбор сущности до вызова классификатора LLM
+        Map<String, List<String>> synonyms // Техническое имя сущности → синонимы из вопросов пользователей
+) {}
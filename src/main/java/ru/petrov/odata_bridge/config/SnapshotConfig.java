@@ -0,0 +1,11 @@
+package ru.petrov.odata_bridge.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+@ConfigurationProperties(prefix = "app.snapshot")
+public record SnapshotConfig(
+        @DefaultValue("true") boolean enabled,
+        @DefaultValue("data/metadata-index.snapshot") String path,
+        @DefaultValue("false") boolean quantize // int8 вместо float: файл в ~4 раза меньше, векторы чуть грубее
+) {}
@@ -1,26 +1,44 @@
 package ru.petrov.odata_bridge.controller;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import reactor.core.publisher.Flux;
+import ru.petrov.odata_bridge.model.AskEvent;
+import ru.petrov.odata_bridge.model.BatchAnswer;
+import ru.petrov.odata_bridge.model.ReindexReport;
 import ru.petrov.odata_bridge.service.AIService;
 import ru.petrov.odata_bridge.service.IndexingService;
+import ru.petrov.odata_bridge.service.ODataExportService;
 import ru.petrov.odata_bridge.service.ODataService;
 
+import java.util.List;
+
 @RestController
 public class HelloController {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(HelloController.class);
     private ODataService oDataService;
     private AIService aiService;
     private IndexingService indexingService;
+    private ODataExportService exportService;
+    private static final int MAX_EXPORT_PAGE_SIZE = 5000;
 
 
     public HelloController(
-            IndexingService indexingService, AIService aiService, ODataService oDataService) {
+            IndexingService indexingService, AIService aiService, ODataService oDataService,
+            ODataExportService exportService) {
         this.indexingService = indexingService;
         this.aiService = aiService;
         this.oDataService = oDataService;
+        this.exportService = exportService;
     }
 
 
@@ -32,22 +50,78 @@ public class HelloController {
     @GetMapping(value = "/api/ai/ask", produces = MediaType.APPLICATION_JSON_VALUE)
     public String smartAsk(@RequestParam String prompt) {
         // 1. Быстрая проверка на запрос справки
-        String cleanPrompt = prompt.toLowerCase().trim();
-        if (cleanPrompt.matches(".*(помощь|умеешь|справка|таблицы|что делать).*")) {
-            return "### 📚 Доступные данные в 1С:\n" +
-                    indexingService.getAllEntitiesHelp() +
-                    "\n\n*Пример запроса: 'Покажи 5 складов' или 'Сколько в базе контрагентов'*";
+        if (isHelpRequest(prompt)) {
+            return helpText();
         }
         // 2. Если не справка — то ответ ИИ
         return aiService.getSmartResponse(prompt);
     }
 
+    /**
+     * Тот же Smart-запрос, но ответ приходит событиями SSE: stage1 (сущность), token (фрагменты), done.
+     */
+    @GetMapping(value = "/api/ai/ask/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<String>> smartAskStream(@RequestParam String prompt) {
+        Flux<AskEvent> events = isHelpRequest(prompt)
+                ? Flux.just(AskEvent.token(helpText()), AskEvent.done())
+                : aiService.streamSmartResponse(prompt);
+        return events.map(event -> ServerSentEvent.builder(event.data()).event(event.type()).build());
+    }
+
+    private static boolean isHelpRequest(String prompt) {
+        String cleanPrompt = prompt.toLowerCase().trim();
+        return cleanPrompt.matches(".*(помощь|умеешь|справка|таблицы|что делать).*");
+    }
+
+    private String helpText() {
+        return "### 📚 Доступные данные в 1С:\n" +
+                indexingService.getAllEntitiesHelp() +
+                "\n\n*Пример запроса: 'Покажи 5 складов' или 'Сколько в базе контрагентов'*";
+    }
+
+    /**
+     * Пакетный вопрос: список вопросов в теле запроса, ответы в том же порядке.
+     */
+    @PostMapping(value = "/api/ai/ask/batch", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<BatchAnswer> smartAskBatch(@RequestBody List<String> prompts) {
+        try {
+            return aiService.getSmartResponses(prompts);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Выгрузка строк таблицы 1С в NDJSON постранично, без накопления в памяти.
+     */
+    @GetMapping(value = "/api/odata/export", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> exportRows(
+            @RequestParam String entity,
+            @RequestParam(required = false) String filter,
+            @RequestParam(defaultValue = "500") int pageSize,
+            @RequestParam(defaultValue = "0") long maxRows) {
+        String validationError = oDataService.validateQuery(entity, filter);
+        if (validationError != null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, validationError);
+        }
+        int page = Math.max(1, Math.min(pageSize, MAX_EXPORT_PAGE_SIZE));
+        log.info("Выгрузка {} (фильтр: {}, страница: {}, максимум строк: {})", entity, filter, page, maxRows);
+        StreamingResponseBody body = out -> exportService.exportRows(entity, filter, page, maxRows, out);
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType("application/x-ndjson"))
+                .body(body);
+    }
+
     @GetMapping("/api/admin/reindex")
-    public String reindexMetadata() {
-        log.info("Запущен ручной процесс переиндексации метаданных 1С");
+    public String reindexMetadata(@RequestParam(value = "full", defaultValue = "false") boolean full) {
+        log.info("Запущен ручной процесс переиндексации метаданных 1С (полная: {})", full);
         try {
-            indexingService.updateMetadataIndex();
-            return "Индексация успешно завершена. Проверьте логи для деталей.";
+            // Повторный вызов во время индексации дождется текущей и вернет ее итог
+            ReindexReport report = full
+                    ? indexingService.updateMetadataIndex(true)
+                    : indexingService.updateMetadataIndex();
+            return String.format("Индексация успешно завершена. Сущностей: %d, обновлено: %d, удалено: %d, документов записано: %d.",
+                    report.entities(), report.changed(), report.removed(), report.documents());
         } catch (Exception e) {
             log.error("Ошибка при индексации: ", e);
             return "Ошибка при индексации: " + e.getMessage();
@@ -0,0 +1,27 @@
+package ru.petrov.odata_bridge.model;
+
+/**
+ * Событие потокового ответа на вопрос.
+ * @param type Тип события: stage1 (выбранная сущность), token (фрагмент ответа), done, error
+ * @param data Содержимое события
+ */
+public record AskEvent(
+        String type,
+        String data
+) {
+    public static AskEvent stage1(String targetEntity) {
+        return new AskEvent("stage1", targetEntity);
+    }
+
+    public static AskEvent token(String chunk) {
+        return new AskEvent("token", chunk);
+    }
+
+    public static AskEvent done() {
+        return new AskEvent("done", "");
+    }
+
+    public static AskEvent error(String message) {
+        return new AskEvent("error", message);
+    }
+}
@@ -0,0 +1,14 @@
+package ru.petrov.odata_bridge.model;
+
+/**
+ * Ответ на один вопрос пакетного запроса.
+ * @param prompt Вопрос пользователя
+ * @param entity Сущность 1С, выбранная на этапе 1 (null, если выбрать не удалось)
+ * @param answer Данные из 1С или текст ошибки
+ */
+public record BatchAnswer(
+        String prompt,
+        String entity,
+        String answer
+) {
+}
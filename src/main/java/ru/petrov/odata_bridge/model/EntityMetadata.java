@@ -0,0 +1,13 @@
+package ru.petrov.odata_bridge.model;
+
+import java.util.List;
+
+/**
+ * Метаданные одной таблицы 1С, выделенные из потока $metadata.
+ * @param entity Техническое имя таблицы (напр. Catalog_Контрагенты)
+ * @param fields Мастер-запись таблицы (первой) и ее поля
+ */
+public record EntityMetadata(
+        String entity,
+        List<FieldInfo> fields
+) {}
@@ -0,0 +1,141 @@
+package ru.petrov.odata_bridge.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Неизменяемый справочник метаданных 1С: сущность → поля, типы и описания.
+ * Поля сущности хранятся в параллельных массивах, строки интернированы —
+ * одинаковые типы и имена полей разных таблиц занимают память один раз.
+ */
+public final class MetadataCatalog {
+    public static final MetadataCatalog EMPTY = new MetadataCatalog(Map.of());
+
+    private final Map<String, EntityFields> entities;
+
+    private MetadataCatalog(Map<String, EntityFields> entities) {
+        this.entities = entities;
+    }
+
+    /**
+     * Поля одной таблицы. Массивы не копируются наружу — доступ только по индексу.
+     */
+    public static final class EntityFields {
+        private final String entity;
+        private final String description;
+        private final String[] names;
+        private final String[] types;
+        private final String[] descriptions;
+
+        private EntityFields(String entity, String description, String[] names, String[] types, String[] descriptions) {
+            this.entity = entity;
+            this.description = description;
+            this.names = names;
+            this.types = types;
+            this.descriptions = descriptions;
+        }
+
+        public String entity() {
+            return entity;
+        }
+
+        /** Текст мастер-записи таблицы (напр. "[СУЩНОСТЬ] Справочник Контрагенты"). */
+        public String description() {
+            return description;
+        }
+
+        public int size() {
+            return names.length;
+        }
+
+        public String name(int i) {
+            return names[i];
+        }
+
+        public String type(int i) {
+            return types[i];
+        }
+
+        public String description(int i) {
+            return descriptions[i];
+        }
+
+        public boolean hasField(String name) {
+            for (String candidate : names) {
+                if (candidate.equals(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public List<String> names() {
+            return List.of(names);
+        }
+    }
+
+    /**
+     * Строит справочник из плоского списка элементов метаданных (порядок полей сохраняется).
+     */
+    public static MetadataCatalog of(Collection<FieldInfo> fields) {
+        Map<String, List<FieldInfo>> byEntity = new LinkedHashMap<>();
+        for (FieldInfo field : fields) {
+            byEntity.computeIfAbsent(field.entity(), k -> new ArrayList<>()).add(field);
+        }
+
+        Map<String, EntityFields> entities = new LinkedHashMap<>();
+        byEntity.forEach((entity, entityFields) -> {
+            String header = null;
+            List<FieldInfo> columns = new ArrayList<>(entityFields.size());
+            for (FieldInfo field : entityFields) {
+                if (field.isHeader()) {
+                    header = field.description();
+                } else {
+                    columns.add(field);
+                }
+            }
+            String[] names = new String[columns.size()];
+            String[] types = new String[columns.size()];
+            String[] descriptions = new String[columns.size()];
+            for (int i = 0; i < columns.size(); i++) {
+                FieldInfo column = columns.get(i);
+                names[i] = intern(column.name());
+                types[i] = intern(column.type());
+                descriptions[i] = column.description();
+            }
+            String internedEntity = intern(entity);
+            entities.put(internedEntity, new EntityFields(internedEntity, header, names, types, descriptions));
+        });
+        return new MetadataCatalog(Collections.unmodifiableMap(entities));
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
+    }
+
+    public Optional<EntityFields> entity(String name) {
+        return Optional.ofNullable(name == null ? null : entities.get(name));
+    }
+
+    public boolean contains(String entity) {
+        return entity != null && entities.containsKey(entity);
+    }
+
+    public Set<String> entityNames() {
+        return entities.keySet();
+    }
+
+    public boolean isEmpty() {
+        return entities.isEmpty();
+    }
+
+    public int size() {
+        return entities.size();
+    }
+}
@@ -0,0 +1,48 @@
+package ru.petrov.odata_bridge.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Нормализованные параметры запроса executeSmartQuery — ключ кеша и объединения одинаковых запросов.
+ * @param entity    Техническое имя таблицы
+ * @param filter    Фильтр OData или null
+ * @param top       Лимит записей (0 для подсчета количества)
+ * @param countOnly Запрос только количества через /$count
+ * @param fields    Поля, найденные в индексе метаданных по вопросу, — основа $select; null — состав полей не сужается
+ */
+public record ODataQuery(
+        String entity,
+        String filter,
+        int top,
+        boolean countOnly,
+        Set<String> fields
+) {
+    public static final int DEFAULT_TOP = 5;
+
+    public static ODataQuery of(String entity, String filter, Integer top, Boolean countOnly) {
+        boolean isCount = Boolean.TRUE.equals(countOnly);
+        String cleanFilter = filter == null || filter.isBlank() ? null : filter.trim();
+        int limit = isCount ? 0 : (top != null ? top : DEFAULT_TOP);
+        return new ODataQuery(entity, cleanFilter, limit, isCount, null);
+    }
+
+    /**
+     * Тот же запрос с полями, относящимися к вопросу. Подсчету количества поля не нужны.
+     * Поля упорядочиваются, чтобы одинаковые запросы давали одинаковый $select.
+     *
+     * @param relevant Поля вопроса или null/пусто, если их не удалось определить.
+     */
+    public ODataQuery withFields(Collection<String> relevant) {
+        Set<String> normalized = countOnly || relevant == null || relevant.isEmpty()
+                ? null
+                : Collections.unmodifiableSet(new TreeSet<>(relevant));
+        return new ODataQuery(entity, filter, top, countOnly, normalized);
+    }
+
+    public boolean hasFilter() {
+        return filter != null;
+    }
+}
@@ -0,0 +1,13 @@
+package ru.petrov.odata_bridge.model;
+
+/**
+ * Результат запроса к 1С в том виде, в котором он отдается модели, и признаки версии для перепроверки.
+ * @param body         Готовый ответ (JSON или число)
+ * @param etag         ETag ответа 1С, если сервер его прислал
+ * @param versionStamp Отпечаток пар Ref_Key/DataVersion строк ответа или null
+ */
+public record QueryResult(
+        String body,
+        String etag,
+        String versionStamp
+) {}
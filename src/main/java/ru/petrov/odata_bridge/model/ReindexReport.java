@@ -0,0 +1,17 @@
+package ru.petrov.odata_bridge.model;
+
+/**
+ * Итог переиндексации метаданных.
+ * @param entities  Сущностей в метаданных 1С после фильтрации
+ * @param changed   Переиндексировано (добавлены или изменены)
+ * @param removed   Удалено из индекса
+ * @param documents Записано векторных документов
+ */
+public record ReindexReport(
+        int entities,
+        int changed,
+        int removed,
+        int documents
+) {
+    public static final ReindexReport EMPTY = new ReindexReport(0, 0, 0, 0);
+}
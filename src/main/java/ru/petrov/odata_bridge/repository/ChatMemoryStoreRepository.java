@@ -0,0 +1,68 @@
+package ru.petrov.odata_bridge.repository;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.petrov.odata_bridge.config.ChatMemoryConfig;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Хранилище вытесненных из памяти диалогов: история сообщений сериализована и сжата в bytea.
+ */
+@Repository
+public class ChatMemoryStoreRepository {
+    private final JdbcTemplate jdbcTemplate;
+    private final ChatMemoryConfig config;
+
+    public ChatMemoryStoreRepository(JdbcTemplate jdbcTemplate, ChatMemoryConfig config) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.config = config;
+    }
+
+    @PostConstruct
+    void initializeSchema() {
+        if (!config.persist()) {
+            return;
+        }
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + config.tableName() + " (" +
+                "conversation_id text PRIMARY KEY, " +
+                "messages bytea NOT NULL, " +
+                "updated_at timestamptz NOT NULL DEFAULT now())");
+    }
+
+    public Optional<byte[]> find(String conversationId) {
+        return jdbcTemplate.query(
+                        "SELECT messages FROM " + config.tableName() + " WHERE conversation_id = ?",
+                        (rs, rowNum) -> rs.getBytes("messages"),
+                        conversationId)
+                .stream()
+                .findFirst();
+    }
+
+    public List<String> findIds() {
+        return jdbcTemplate.queryForList("SELECT conversation_id FROM " + config.tableName(), String.class);
+    }
+
+    public void save(String conversationId, byte[] messages) {
+        jdbcTemplate.update(
+                "INSERT INTO " + config.tableName() + " (conversation_id, messages, updated_at) VALUES (?, ?, now()) " +
+                        "ON CONFLICT (conversation_id) DO UPDATE SET messages = EXCLUDED.messages, updated_at = now()",
+                conversationId, messages);
+    }
+
+    public void delete(String conversationId) {
+        jdbcTemplate.update("DELETE FROM " + config.tableName() + " WHERE conversation_id = ?", conversationId);
+    }
+
+    /**
+     * @return Количество удаленных диалогов, не обновлявшихся с указанного момента.
+     */
+    public int deleteOlderThan(Instant threshold) {
+        return jdbcTemplate.update("DELETE FROM " + config.tableName() + " WHERE updated_at < ?",
+                Timestamp.from(threshold));
+    }
+}
@@ -0,0 +1,87 @@
+package ru.petrov.odata_bridge.repository;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import ru.petrov.odata_bridge.config.EmbeddingCacheConfig;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Постоянное хранилище векторов, адресуемое хешем (модель + текст).
+ * Векторы хранятся в bytea как float32 little-endian — вдвое компактнее текстового представления.
+ */
+@Repository
+public class EmbeddingCacheRepository {
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final EmbeddingCacheConfig config;
+
+    public EmbeddingCacheRepository(JdbcTemplate jdbcTemplate, EmbeddingCacheConfig config) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.config = config;
+    }
+
+    @PostConstruct
+    void initializeSchema() {
+        if (!config.enabled()) {
+            return;
+        }
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + config.tableName() + " (" +
+                "hash text PRIMARY KEY, " +
+                "model text NOT NULL, " +
+                "embedding bytea NOT NULL, " +
+                "created_at timestamptz NOT NULL DEFAULT now())");
+    }
+
+    /**
+     * @param hashes Ключи кеша.
+     * @return Найденные векторы по ключам; отсутствующих ключей в карте нет.
+     */
+    public Map<String, float[]> findAll(Collection<String> hashes) {
+        Map<String, float[]> result = new HashMap<>();
+        if (hashes.isEmpty()) {
+            return result;
+        }
+        namedJdbcTemplate.query(
+                "SELECT hash, embedding FROM " + config.tableName() + " WHERE hash IN (:hashes)",
+                new MapSqlParameterSource("hashes", hashes),
+                rs -> {
+                    result.put(rs.getString("hash"), fromBytes(rs.getBytes("embedding")));
+                });
+        return result;
+    }
+
+    public void saveAll(String model, Map<String, float[]> embeddings) {
+        if (embeddings.isEmpty()) {
+            return;
+        }
+        List<Object[]> rows = new ArrayList<>(embeddings.size());
+        embeddings.forEach((hash, vector) -> rows.add(new Object[]{hash, model, toBytes(vector)}));
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO " + config.tableName() + " (hash, model, embedding) VALUES (?, ?, ?) " +
+                        "ON CONFLICT (hash) DO NOTHING",
+                rows);
+    }
+
+    private static byte[] toBytes(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+
+    private static float[] fromBytes(byte[] bytes) {
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+}
@@ -0,0 +1,238 @@
+package ru.petrov.odata_bridge.repository;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pgvector.PGvector;
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.petrov.odata_bridge.model.FieldInfo;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Прямой JDBC-доступ к таблице pgvector для операций, которых нет в {@link org.springframework.ai.vectorstore.VectorStore}:
+ * чтение отпечатков сущностей, пакетная запись готовых векторов и точечное удаление устаревших строк.
+ * Индексация пишет новые строки в промежуточную таблицу (имя основной с суффиксом _staging) и переносит их
+ * в основную по одной сущности в транзакции — поиск никогда не видит две версии полей одной таблицы.
+ */
+@Repository
+public class VectorStoreRepository {
+    @Value("${spring.ai.vectorstore.pgvector.table-name}")
+    private String tableName;
+    private final JdbcTemplate jdbcTemplate;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public VectorStoreRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Возвращает сохраненные отпечатки наборов полей по сущностям.
+     * Если у сущности в таблице несколько разных отпечатков (прерванная индексация)
+     * или строки записаны до появления отпечатков, возвращается пустая строка — сущность будет переиндексирована.
+     *
+     * @return Карта "техническое имя сущности → отпечаток".
+     */
+    public Map<String, String> loadFingerprints() {
+        Map<String, String> result = new HashMap<>();
+        jdbcTemplate.query(
+                "SELECT metadata->>'entity' AS entity, " +
+                        "MIN(COALESCE(metadata->>'fingerprint', '')) AS fingerprint, " +
+                        "COUNT(DISTINCT COALESCE(metadata->>'fingerprint', '')) AS variants " +
+                        "FROM " + tableName + " GROUP BY metadata->>'entity'",
+                rs -> {
+                    String entity = rs.getString("entity");
+                    if (entity != null) {
+                        result.put(entity, rs.getInt("variants") == 1 ? rs.getString("fingerprint") : "");
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Мастер-запись таблицы вместе с ее вектором.
+     */
+    public record HeaderRow(String entity, String text, float[] embedding) {}
+
+    /**
+     * Читает мастер-записи всех таблиц (is_header = true) с векторами.
+     */
+    public List<HeaderRow> loadHeaders() {
+        return jdbcTemplate.query(
+                "SELECT metadata->>'entity' AS entity, content, embedding::text AS embedding FROM " + tableName +
+                        " WHERE metadata->>'is_header' = 'true'",
+                (rs, rowNum) -> new HeaderRow(
+                        rs.getString("entity"),
+                        rs.getString("content"),
+                        new PGvector(rs.getString("embedding")).toArray()));
+    }
+
+    /**
+     * Строка таблицы целиком — для снимка индекса на диске.
+     */
+    public record StoredRow(String id, String content, Map<String, Object> metadata, float[] embedding) {}
+
+    /**
+     * Передает все строки таблицы вместе с метаданными и векторами по одной, не накапливая их в памяти:
+     * драйвер Postgres читает результат порциями по fetchSize строк (курсор работает только внутри транзакции).
+     */
+    @Transactional(readOnly = true)
+    public void forEachRow(int fetchSize, Consumer<StoredRow> consumer) {
+        jdbcTemplate.query(connection -> {
+                    PreparedStatement ps = connection.prepareStatement(
+                            "SELECT id::text AS id, content, metadata::text AS metadata, embedding::text AS embedding FROM " +
+                                    tableName + " ORDER BY metadata->>'entity', (metadata->>'is_header') DESC");
+                    ps.setFetchSize(fetchSize);
+                    return ps;
+                },
+                (RowCallbackHandler) rs -> consumer.accept(new StoredRow(
+                        rs.getString("id"),
+                        rs.getString("content"),
+                        fromJson(rs.getString("metadata")),
+                        new PGvector(rs.getString("embedding")).toArray())));
+    }
+
+    public long count() {
+        Long count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + tableName, Long.class);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Читает все элементы метаданных без векторов, сгруппированными по сущностям.
+     */
+    public List<FieldInfo> loadFieldInfos() {
+        return jdbcTemplate.query(
+                "SELECT metadata->>'entity' AS entity, metadata->>'field' AS field, metadata->>'type' AS type, " +
+                        "content, metadata->>'is_header' AS is_header FROM " + tableName +
+                        " ORDER BY metadata->>'entity', (metadata->>'is_header') DESC",
+                (rs, rowNum) -> new FieldInfo(
+                        rs.getString("entity"),
+                        rs.getString("field"),
+                        rs.getString("type"),
+                        rs.getString("content"),
+                        Boolean.parseBoolean(rs.getString("is_header"))));
+    }
+
+    /**
+     * Записывает уже векторизованные документы одним JDBC-батчем.
+     * Формат строк совпадает с тем, что пишет {@code PgVectorStore}, поэтому поиск через VectorStore их видит.
+     *
+     * @param documents  Документы порции.
+     * @param embeddings Векторы в том же порядке, что и документы.
+     * @return Количество записанных строк.
+     */
+    public int insertBatch(List<Document> documents, List<float[]> embeddings) {
+        return insert(tableName, documents, embeddings);
+    }
+
+    /**
+     * Как {@link #insertBatch}, но в промежуточную таблицу: строки не видны поиску до {@link #publishEntity}.
+     */
+    public int stageBatch(List<Document> documents, List<float[]> embeddings) {
+        return insert(stagingTable(), documents, embeddings);
+    }
+
+    private int insert(String table, List<Document> documents, List<float[]> embeddings) {
+        if (documents.size() != embeddings.size()) {
+            throw new IllegalArgumentException("Количество векторов не совпадает с количеством документов: "
+                    + embeddings.size() + " / " + documents.size());
+        }
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO " + table + " (id, content, metadata, embedding) VALUES (?, ?, ?::json, ?) " +
+                        "ON CONFLICT (id) DO UPDATE SET content = EXCLUDED.content, " +
+                        "metadata = EXCLUDED.metadata, embedding = EXCLUDED.embedding",
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        Document document = documents.get(i);
+                        ps.setObject(1, UUID.fromString(document.getId()));
+                        ps.setString(2, document.getText());
+                        ps.setString(3, toJson(document.getMetadata()));
+                        ps.setObject(4, new PGvector(embeddings.get(i)));
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return documents.size();
+                    }
+                });
+        return documents.size();
+    }
+
+    private String toJson(Map<String, Object> metadata) {
+        try {
+            return mapper.writeValueAsString(metadata);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Не удалось сериализовать метаданные документа", e);
+        }
+    }
+
+    private Map<String, Object> fromJson(String json) {
+        try {
+            return json == null ? Map.of() : mapper.readValue(json, new TypeReference<>() {});
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Не удалось разобрать метаданные строки", e);
+        }
+    }
+
+    private String stagingTable() {
+        return tableName + "_staging";
+    }
+
+    /**
+     * Готовит промежуточную таблицу к новому запуску индексации: создает по образцу основной
+     * и удаляет строки, оставшиеся от прерванных запусков.
+     * Из индексов нужен только уникальный по id (для ON CONFLICT при записи порций); векторный индекс
+     * основной таблицы не копируется — поиск по промежуточной таблице не идет, а запись без него быстрее.
+     */
+    public void resetStaging() {
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + stagingTable() + " (LIKE " + tableName + " INCLUDING DEFAULTS)");
+        // Отдельным шагом, чтобы индекс появился и у таблицы, созданной раньше без него
+        jdbcTemplate.execute("CREATE UNIQUE INDEX IF NOT EXISTS " + stagingTable() + "_id_idx ON " + stagingTable() + " (id)");
+        jdbcTemplate.execute("TRUNCATE " + stagingTable());
+    }
+
+    /**
+     * Заменяет строки сущности в основной таблице строками поколения из промежуточной — одной транзакцией.
+     *
+     * @return Количество перенесенных строк.
+     */
+    @Transactional
+    public int publishEntity(String entity, String generation) {
+        jdbcTemplate.update("DELETE FROM " + tableName + " WHERE metadata->>'entity' = ?", entity);
+        int moved = jdbcTemplate.update(
+                "INSERT INTO " + tableName + " (id, content, metadata, embedding) " +
+                        "SELECT id, content, metadata, embedding FROM " + stagingTable() +
+                        " WHERE metadata->>'entity' = ? AND metadata->>'generation' = ?",
+                entity, generation);
+        jdbcTemplate.update("DELETE FROM " + stagingTable() +
+                " WHERE metadata->>'entity' = ? AND metadata->>'generation' = ?", entity, generation);
+        return moved;
+    }
+
+    /**
+     * Удаляет все строки сущности (таблица исчезла из метаданных 1С или из белого списка).
+     */
+    public int deleteEntity(String entity) {
+        return jdbcTemplate.update("DELETE FROM " + tableName + " WHERE metadata->>'entity' = ?", entity);
+    }
+
+    /**
+     * Откатывает строки, записанные незавершенным поколением индексации (они еще в промежуточной таблице).
+     */
+    public int deleteGeneration(String generation) {
+        return jdbcTemplate.update("DELETE FROM " + stagingTable() + " WHERE metadata->>'generation' = ?", generation);
+    }
+}
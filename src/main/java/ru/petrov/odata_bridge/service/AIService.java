@@ -1,9 +1,34 @@
 package ru.petrov.odata_bridge.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
 import org.springframework.ai.chat.client.ChatClient;
 import org.springframework.ai.chat.memory.ChatMemory;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import ru.petrov.odata_bridge.config.AiConfig;
+import ru.petrov.odata_bridge.model.AskEvent;
+import ru.petrov.odata_bridge.model.BatchAnswer;
+import ru.petrov.odata_bridge.model.ODataQuery;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Сервис интеллектуальной оркестрации диалога.
@@ -16,19 +41,59 @@ public class AIService {
     private final IndexingService indexingService;
     private final ChatMemory chatMemory;
     private final ChatClient classifierClient;
+    private final EntityRouter entityRouter;
+    private final ClassificationCache classificationCache;
+    private final OllamaScheduler ollamaScheduler;
+    private final ODataService oDataService;
+    private final PipelineMetrics metrics;
+    private final ExecutorService speculationExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    // Подтвержденные классификатором спекуляции, ждущие использования; ключ — сущность
+    private final Map<String, Speculation> speculations = new ConcurrentHashMap<>();
+    private final Counter speculationHits;
+    private final Counter speculationWaste;
+
+    // Сколько подготовленный контекст полей считается актуальным
+    private static final Duration SPECULATION_TTL = Duration.ofMinutes(1);
+    // Дописывается к системному промпту этапа 2: модели нужны точные имена полей для фильтра
+    private static final String FIELDS_SECTION = "\n\nПОЛЯ ТАБЛИЦЫ {targetEntity} (в фильтре используй только их):\n{context}";
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ODataService.class);
 
+    /**
+     * Спекулятивная подготовка для кандидата этапа 1.
+     * @param sample Выборка в кеш результатов или null, если speculativeSample выключен
+     */
+    private record Speculation(String entity, Future<String> fields, Future<?> sample, long startedAt) {}
+
+    /**
+     * Подготовка этапа 2.
+     * @param fieldsContext Поля сущности для системного промпта
+     * @param toolContext   Поля вопроса для $select в executeSmartQuery
+     */
+    private record Stage2Context(String fieldsContext, Map<String, Object> toolContext) {}
+
 
     public AIService(ChatClient.Builder chatClientBuilder,
                      ChatClient.Builder classifierClientBuilder,
                      ODataService oDataService,
                      AiConfig aiConfig,
                      IndexingService indexingService,
-                     ChatMemory chatMemory) {
+                     ChatMemory chatMemory,
+                     EntityRouter entityRouter,
+                     ClassificationCache classificationCache,
+                     OllamaScheduler ollamaScheduler,
+                     MeterRegistry meterRegistry,
+                     PipelineMetrics metrics) {
         this.aiConfig = aiConfig;
         this.indexingService = indexingService;
         this.chatMemory = chatMemory;
+        this.entityRouter = entityRouter;
+        this.classificationCache = classificationCache;
+        this.ollamaScheduler = ollamaScheduler;
+        this.oDataService = oDataService;
+        this.metrics = metrics;
+        this.speculationHits = speculationCounter(meterRegistry, "hit");
+        this.speculationWaste = speculationCounter(meterRegistry, "waste");
         this.chatClient = chatClientBuilder
                 .defaultTools(oDataService)
                 .build();
@@ -36,6 +101,15 @@ public class AIService {
         System.out.println(aiConfig.systemPrompt());
     }
 
+    private static Counter speculationCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.speculation").tag("outcome", outcome).register(registry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        speculationExecutor.shutdownNow();
+    }
+
     /**
      * Отправляет сообщение в Ollama и возвращает ответ.
      *
@@ -43,11 +117,11 @@ public class AIService {
      * @return Сгенерированный ответ от модели.
      */
     public String getOllamaResponse(String message) {
-        return chatClient.prompt()
+        return ollamaScheduler.call(OllamaScheduler.Priority.CHAT, () -> chatClient.prompt()
                 .system(aiConfig.systemPrompt())
                 .user(message)
                 .call()
-                .content();
+                .content());
     }
 
     /**
@@ -62,8 +136,204 @@ public class AIService {
     public String getSmartResponse(String userPrompt) {
 
         // ЭТАП 1: Определение только имени сущности (Entity)
+        String targetEntity = resolveTargetEntity(userPrompt, OllamaScheduler.Priority.CHAT);
+
+        // ЭТАП 2: Получение полей ТОЛЬКО для этой таблицы и выполнение запроса
+        Stage2Context context = stage2Context(targetEntity, userPrompt);
+        log.info("==========================================");
+        log.info("=== ЗАПУСК ЭТАПА 2 (исполнение) ===");
+        // Этап 2: Исполнение (вывод JSON)
+        return ollamaScheduler.call(OllamaScheduler.Priority.CHAT, () -> metrics.time(PipelineMetrics.STAGE2, targetEntity, () -> chatClient.prompt()
+                .system(s -> s.text(aiConfig.systemPrompt() + FIELDS_SECTION)
+                        .param("targetEntity", targetEntity)
+                        .param("context", context.fieldsContext()))
+                .user(userPrompt)
+                .toolContext(context.toolContext())
+                .call()
+                .content()));
+
+    }
+
+    /**
+     * Потоковый вариант {@link #getSmartResponse(String)}: сначала отдается выбранная на этапе 1 сущность,
+     * затем фрагменты ответа этапа 2 (токены модели или результат инструмента) по мере поступления.
+     *
+     * @param userPrompt Текст вопроса на естественном языке.
+     * @return Поток событий stage1 → token* → done (или error).
+     */
+    public Flux<AskEvent> streamSmartResponse(String userPrompt) {
+        // Этап 1 блокирующий (LLM-классификатор), поэтому выполняется вне потоков Netty/Tomcat
+        return Mono.fromCallable(() -> resolveTargetEntity(userPrompt, OllamaScheduler.Priority.CHAT))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(targetEntity -> Flux.concat(
+                        Flux.just(AskEvent.stage1(targetEntity)),
+                        // Контекст полей тоже готовится блокирующе — на том же boundedElastic
+                        Mono.fromCallable(() -> stage2Context(targetEntity, userPrompt))
+                                .subscribeOn(Schedulers.boundedElastic())
+                                .flatMapMany(context -> timed(Flux.using(
+                                        () -> ollamaScheduler.acquire(OllamaScheduler.Priority.CHAT),
+                                        permit -> chatClient.prompt()
+                                                .system(s -> s.text(aiConfig.systemPrompt() + FIELDS_SECTION)
+                                                        .param("targetEntity", targetEntity)
+                                                        .param("context", context.fieldsContext()))
+                                                .user(userPrompt)
+                                                .toolContext(context.toolContext())
+                                                .stream()
+                                                .content(),
+                                        OllamaScheduler.Permit::close), targetEntity))
+                                .map(AskEvent::token),
+                        Flux.just(AskEvent.done())))
+                .onErrorResume(e -> {
+                    log.error("Ошибка потокового ответа: ", e);
+                    return Flux.just(AskEvent.error(e.getMessage()));
+                });
+    }
+
+    // Длительность потокового этапа 2 — от подписки до последнего фрагмента
+    private Flux<String> timed(Flux<String> stage2, String targetEntity) {
+        return Flux.defer(() -> {
+            Timer.Sample sample = Timer.start();
+            return stage2
+                    .doOnComplete(() -> sample.stop(metrics.stageTimer(PipelineMetrics.STAGE2, targetEntity, "success")))
+                    .doOnError(e -> sample.stop(metrics.stageTimer(PipelineMetrics.STAGE2, targetEntity, "error")))
+                    .doOnCancel(() -> sample.stop(metrics.stageTimer(PipelineMetrics.STAGE2, targetEntity, "cancelled")));
+        });
+    }
+
+    /**
+     * Пакетный вариант {@link #getSmartResponse(String)} для отчетных заданий.
+     * Вопросы группируются по сущности этапа 1; внутри группы контекст полей и вызов модели общие —
+     * модель только планирует запросы (по одному на вопрос), а все запросы уходят в 1С одним $batch.
+     *
+     * @param prompts Вопросы на естественном языке.
+     * @return Ответы в порядке вопросов.
+     */
+    public List<BatchAnswer> getSmartResponses(List<String> prompts) {
+        if (prompts.size() > aiConfig.batchMaxPrompts()) {
+            throw new IllegalArgumentException("Слишком много вопросов в пакете: " + prompts.size()
+                    + " (максимум " + aiConfig.batchMaxPrompts() + ")");
+        }
+        List<String> distinct = prompts.stream().distinct().toList();
+
+        // ЭТАП 1 параллельно, но не шире лимита пакетного класса в ollamaScheduler: лишние потоки только стояли бы в очереди.
+        // Пакет идет с приоритетом BATCH — ниже вопросов из диалога, в том числе при векторизации
+        Map<String, String> entities = new HashMap<>();
+        Map<String, String> errors = new HashMap<>();
+        int parallelism = Math.max(1, ollamaScheduler.limit(OllamaScheduler.Priority.BATCH));
+        try (ExecutorService executor = Executors.newFixedThreadPool(parallelism, Thread.ofVirtual().factory())) {
+            Map<String, Future<String>> futures = new LinkedHashMap<>();
+            for (String prompt : distinct) {
+                futures.put(prompt, executor.submit(() -> OllamaScheduler.withEmbeddingPriority(OllamaScheduler.Priority.BATCH,
+                        () -> resolveTargetEntity(prompt, OllamaScheduler.Priority.BATCH))));
+            }
+            for (Map.Entry<String, Future<String>> future : futures.entrySet()) {
+                try {
+                    entities.put(future.getKey(), future.getValue().get());
+                } catch (ExecutionException e) {
+                    log.warn("Этап 1 не выполнен для вопроса \"{}\": {}", future.getKey(), e.getCause().getMessage());
+                    errors.put(future.getKey(), "Ошибка: " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Пакетный запрос прерван", e);
+                }
+            }
+        }
+
+        Map<String, List<String>> groups = new LinkedHashMap<>();
+        entities.forEach((prompt, entity) -> groups.computeIfAbsent(entity, k -> new ArrayList<>()).add(prompt));
+        log.info("=== ПАКЕТ: {} вопросов, {} уникальных, {} сущностей ===", prompts.size(), distinct.size(), groups.size());
+
+        // ЭТАП 2: один вызов планировщика на порцию вопросов к одной сущности
+        List<String> planned = new ArrayList<>();
+        List<ODataQuery> queries = new ArrayList<>();
+        int chunkSize = Math.max(1, aiConfig.batchPlanSize());
+        groups.forEach((entity, groupPrompts) -> {
+            for (int from = 0; from < groupPrompts.size(); from += chunkSize) {
+                List<String> chunk = groupPrompts.subList(from, Math.min(groupPrompts.size(), from + chunkSize));
+                QueryPlanRecorder recorder;
+                try {
+                    recorder = OllamaScheduler.withEmbeddingPriority(OllamaScheduler.Priority.BATCH,
+                            () -> planQueries(entity, chunk));
+                } catch (RuntimeException e) {
+                    // Сбой одной порции не роняет весь пакет — ее вопросы получают ошибку
+                    log.warn("Планирование запросов к {} не выполнено: {}", entity, e.getMessage());
+                    chunk.forEach(prompt -> errors.put(prompt, "Ошибка: " + e.getMessage()));
+                    continue;
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    Optional<ODataQuery> query = recorder.plan(i + 1);
+                    if (query.isPresent()) {
+                        String prompt = chunk.get(i);
+                        planned.add(prompt);
+                        queries.add(query.get().withFields(OllamaScheduler.withEmbeddingPriority(OllamaScheduler.Priority.BATCH,
+                                () -> relevantFields(entity, prompt))));
+                    } else {
+                        errors.put(chunk.get(i), "Ошибка: модель не составила запрос к " + entity);
+                    }
+                }
+            }
+        });
+
+        // Все запросы пакета — одним обращением к 1С
+        Map<String, String> answers = new HashMap<>(errors);
+        List<String> bodies = oDataService.executeBatch(queries);
+        for (int i = 0; i < planned.size(); i++) {
+            answers.put(planned.get(i), bodies.get(i));
+        }
+        return prompts.stream()
+                .map(prompt -> new BatchAnswer(prompt, entities.get(prompt), answers.get(prompt)))
+                .toList();
+    }
+
+    private QueryPlanRecorder planQueries(String entity, List<String> prompts) {
+        QueryPlanRecorder recorder = new QueryPlanRecorder(entity, prompts.size(), oDataService);
+        // Общий для группы контекст полей: модели нужны точные имена полей для фильтров
+        String fieldsContext = fieldsContext(entity);
+        StringBuilder questions = new StringBuilder();
+        for (int i = 0; i < prompts.size(); i++) {
+            questions.append(i + 1).append(". ").append(prompts.get(i)).append('\n');
+        }
+        String planPrompt = String.format(
+                "Ты составляешь запросы к таблице 1С %s. ПОЛЯ ТАБЛИЦЫ:\n%s\n\n" +
+                        "Для КАЖДОГО вопроса из списка вызови инструмент planQuery ровно один раз: " +
+                        "номер вопроса, фильтр OData (только по полям из списка, без фильтра — если он не нужен), " +
+                        "лимит записей и признак подсчета количества. Не выдумывай поля.\n\n" +
+                        "ВОПРОСЫ:\n%s", entity, fieldsContext, questions);
+        ollamaScheduler.call(OllamaScheduler.Priority.BATCH, () -> metrics.time(PipelineMetrics.BATCH_PLAN, entity, () -> classifierClient.prompt()
+                .user(planPrompt)
+                .tools(recorder)
+                .call()
+                .content()));
+        return recorder;
+    }
+
+    /**
+     * Этап 1: выбор целевой сущности. Сначала лексический маршрутизатор и кеш классификации (без LLM),
+     * иначе — поиск заголовков в RAG и классификатор LLM.
+     *
+     * @param userPrompt Текст вопроса на естественном языке.
+     * @param priority   Класс вызова классификатора в ollamaScheduler.
+     * @return Техническое имя сущности 1С.
+     */
+    private String resolveTargetEntity(String userPrompt, OllamaScheduler.Priority priority) {
+        Optional<String> routed = entityRouter.route(userPrompt);
+        if (routed.isPresent()) {
+            log.info("=== ЭТАП 1: сущность {} выбрана лексически, классификатор не вызывается ===", routed.get());
+            return routed.get();
+        }
+        Optional<String> cached = classificationCache.get(userPrompt);
+        if (cached.isPresent()) {
+            log.info("=== ЭТАП 1: сущность {} взята из кеша классификации ===", cached.get());
+            return cached.get();
+        }
+
         // Ищем в RAG 1-2 самых подходящих заголовка таблиц
-        String entityContext = indexingService.findEntityHeader(userPrompt);
+        List<HeaderVectorIndex.Hit> headers = metrics.time(PipelineMetrics.HEADER_SEARCH, null,
+                () -> indexingService.findEntityHeaderHits(userPrompt));
+        String entityContext = IndexingService.formatHeaders(headers);
+        // Пока думает классификатор, лучший кандидат поиска уже запрашивается в 1С
+        String guess = headers.isEmpty() ? null : headers.get(0).entity();
+        Speculation speculation = startSpeculation(guess, userPrompt);
 
         log.info("=== ЗАПУСК ЭТАПА 1 (КЛАССИФИКАЦИЯ) ===");
         String classificationPrompt = String.format(
@@ -73,26 +343,120 @@ public class AIService {
                         "Отвечай СТРОГО техническим именем из скобок [ID: ...]. Не используй точки и русский язык" +
                         "Если в истории чата уже была выбрана категория, используй её. " +
                         "Ответь одним словом.", entityContext);
-        String targetEntity = classifierClient.prompt()
+        String targetEntity = ollamaScheduler.call(priority, () -> metrics.time(PipelineMetrics.CLASSIFIER, guess, () -> classifierClient.prompt()
                 .user(classificationPrompt)
                 .advisors(new org.springframework.ai.chat.client.advisor.SimpleLoggerAdvisor()) //Отладка запросов
                 .call()
                 .content()
-                .trim();
+                .trim()));
+        finishSpeculation(speculation, targetEntity);
+        classificationCache.put(userPrompt, targetEntity);
+        return targetEntity;
+    }
 
-        // ЭТАП 2: Получение полей ТОЛЬКО для этой таблицы и выполнение запроса
-        // String fieldsContext = indexingService.findFieldsForEntity(targetEntity); // Раскомментировать для активации фильтрации и поиска по конкретным полям
-        log.info("==========================================");
-        log.info("=== ЗАПУСК ЭТАПА 2 (исполнение) ===");
-        // Этап 2: Исполнение (вывод JSON)
-        return chatClient.prompt()
-                .system(s -> s.text(aiConfig.systemPrompt())
-                        .param("targetEntity", targetEntity)
-                        // .param("context", fieldsContext) // Раскомментировать для активации фильтрации и поиска по конкретным полям
-                )
-                .user(userPrompt)
-                .call()
-                .content();
+    /**
+     * Спекулятивная подготовка для кандидата этапа 1: контекст полей сущности и, если включено
+     * speculativeSample, выборка по умолчанию ($top без фильтра) в кеш результатов — с тем же $select
+     * по полям вопроса, что получит запрос этапа 2.
+     */
+    private Speculation startSpeculation(String guess, String userPrompt) {
+        if (!aiConfig.speculativePrefetch() || guess == null || oDataService.validateQuery(guess, null) != null) {
+            return null;
+        }
+        Speculation pending = speculations.get(guess);
+        if (pending != null && System.nanoTime() - pending.startedAt() <= SPECULATION_TTL.toNanos()) {
+            // Контекст этой сущности уже подготовлен и ждет использования
+            return null;
+        }
+        // Векторизация (если справочник не загружен) идет с тем же классом, что и вопрос
+        OllamaScheduler.Priority embeddingPriority = OllamaScheduler.embeddingPriority();
+        Future<String> fields = speculationExecutor.submit(() -> OllamaScheduler.withEmbeddingPriority(embeddingPriority,
+                () -> indexingService.findFieldsForEntity(guess)));
+        Future<?> sample = null;
+        if (aiConfig.speculativeSample()) {
+            sample = speculationExecutor.submit(() -> {
+                try {
+                    Set<String> relevant = OllamaScheduler.withEmbeddingPriority(embeddingPriority,
+                            () -> relevantFields(guess, userPrompt));
+                    oDataService.prefetch(ODataQuery.of(guess, null, null, false).withFields(relevant));
+                } catch (Exception e) {
+                    log.debug("Спекулятивная выборка {} не выполнена: {}", guess, e.getMessage());
+                }
+            });
+        }
+        return new Speculation(guess, fields, sample, System.nanoTime());
+    }
+
+    private void finishSpeculation(Speculation speculation, String targetEntity) {
+        if (speculation == null) {
+            return;
+        }
+        if (speculation.entity().equals(targetEntity)) {
+            log.info("=== ЭТАП 1: классификатор подтвердил кандидата {}, контекст полей уже готовится ===", targetEntity);
+            // Попаданием считается только использование: см. fieldsContext и кеш результатов
+            Speculation previous = speculations.put(targetEntity, speculation);
+            if (previous != null) {
+                discard(previous);
+            }
+        } else {
+            // Классификатор выбрал другую таблицу — подготовленное не нужно
+            discard(speculation);
+        }
+    }
+
+    private void discard(Speculation speculation) {
+        speculationWaste.increment();
+        speculation.fields().cancel(true);
+        if (speculation.sample() != null) {
+            speculation.sample().cancel(true);
+        }
+    }
+
+    /**
+     * Поля сущности, найденные по вопросу в индексе метаданных; null, если поиск не удался, —
+     * тогда запрос уходит без сужения $select.
+     */
+    private Set<String> relevantFields(String entity, String userPrompt) {
+        try {
+            return indexingService.findRelevantFields(entity, userPrompt);
+        } catch (RuntimeException e) {
+            log.debug("Поля {} по вопросу не найдены: {}", entity, e.getMessage());
+            return null;
+        }
+    }
 
+    /**
+     * Контекст этапа 2: поля сущности (спекулятивно подготовленные на этапе 1, если классификатор
+     * подтвердил кандидата) и поля вопроса для $select.
+     */
+    private Stage2Context stage2Context(String entity, String userPrompt) {
+        String fieldsContext = fieldsContext(entity);
+        Set<String> relevant = relevantFields(entity, userPrompt);
+        return new Stage2Context(fieldsContext,
+                relevant == null || relevant.isEmpty() ? Map.of() : Map.of(ODataService.RELEVANT_FIELDS, relevant));
+    }
+
+    /**
+     * Контекст полей сущности: спекулятивно подготовленный на этапе 1, если он есть и не устарел, иначе — заново.
+     */
+    private String fieldsContext(String entity) {
+        Speculation speculation = speculations.remove(entity);
+        if (speculation != null) {
+            if (System.nanoTime() - speculation.startedAt() > SPECULATION_TTL.toNanos()) {
+                discard(speculation);
+            } else {
+                try {
+                    String fields = speculation.fields().get();
+                    speculationHits.increment();
+                    return fields;
+                } catch (ExecutionException | CancellationException e) {
+                    log.debug("Спекулятивный контекст полей {} не получен: {}", entity, e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Подготовка контекста полей прервана", e);
+                }
+            }
+        }
+        return indexingService.findFieldsForEntity(entity);
     }
 }
@@ -0,0 +1,89 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Ограничитель одновременных обращений к внешней системе (Ollama, 1С).
+ * Запросы обслуживаются виртуальными потоками, поэтому ожидание свободного места дешево,
+ * а сама внешняя система не получает больше {@code maxConcurrent} запросов сразу.
+ */
+public class Bulkhead {
+    private final String name;
+    private final Semaphore semaphore;
+    private final Duration acquireTimeout;
+
+    public Bulkhead(String name, int maxConcurrent, Duration acquireTimeout, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.semaphore = new Semaphore(maxConcurrent, true);
+        this.acquireTimeout = acquireTimeout;
+        Gauge.builder("odata.bridge.bulkhead.available", semaphore, Semaphore::availablePermits)
+                .tag("name", name)
+                .register(meterRegistry);
+        Gauge.builder("odata.bridge.bulkhead.waiting", semaphore, Semaphore::getQueueLength)
+                .tag("name", name)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Разрешение на один вызов; освобождается через close().
+     */
+    public final class Permit implements AutoCloseable {
+        private boolean released;
+
+        private Permit() {
+        }
+
+        @Override
+        public void close() {
+            if (!released) {
+                released = true;
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * Ожидает свободное место не дольше acquireTimeout.
+     *
+     * @throws BulkheadFullException если место не освободилось.
+     */
+    public Permit acquire() {
+        try {
+            if (!semaphore.tryAcquire(acquireTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new BulkheadFullException(name);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BulkheadFullException(name);
+        }
+        return new Permit();
+    }
+
+    /**
+     * Занимает место, только если оно свободно прямо сейчас (для необязательной работы вроде упреждающего чтения).
+     *
+     * @return Разрешение или пусто, если свободных мест нет или их уже ждут другие.
+     */
+    public Optional<Permit> tryAcquire() {
+        try {
+            // С нулевым таймаутом семафор соблюдает очередность: место не отбирается у ожидающих
+            return semaphore.tryAcquire(0, TimeUnit.MILLISECONDS) ? Optional.of(new Permit()) : Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+    }
+
+    public <T> T call(Supplier<T> action) {
+        try (Permit ignored = acquire()) {
+            return action.get();
+        }
+    }
+}
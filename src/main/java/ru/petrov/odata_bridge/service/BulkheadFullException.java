@@ -0,0 +1,14 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Внешняя система перегружена: место в очереди к ней не освободилось за отведенное время.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class BulkheadFullException extends RuntimeException {
+    public BulkheadFullException(String name) {
+        super("Превышен лимит одновременных обращений к " + name + ", повторите запрос позже");
+    }
+}
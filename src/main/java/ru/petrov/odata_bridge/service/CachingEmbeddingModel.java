@@ -0,0 +1,122 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.Embedding;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+import ru.petrov.odata_bridge.repository.EmbeddingCacheRepository;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Декоратор модели векторизации с кешем, адресуемым хешем (модель + текст).
+ * Сначала проверяется горячий LRU в памяти, затем таблица Postgres; в Ollama уходят только тексты,
+ * которых нет ни там, ни там. Через него идут и индексация, и поиск VectorStore.
+ */
+public class CachingEmbeddingModel implements EmbeddingModel {
+    private final EmbeddingModel delegate;
+    private final EmbeddingCacheRepository repository;
+    private final String defaultModel;
+    private final Map<String, float[]> memory;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CachingEmbeddingModel.class);
+
+    public CachingEmbeddingModel(EmbeddingModel delegate, EmbeddingCacheRepository repository,
+                                 String defaultModel, int memorySize) {
+        this.delegate = delegate;
+        this.repository = repository;
+        this.defaultModel = defaultModel;
+        this.memory = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+                return size() > memorySize;
+            }
+        });
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        String model = request.getOptions() != null && request.getOptions().getModel() != null
+                ? request.getOptions().getModel()
+                : defaultModel;
+        List<String> texts = request.getInstructions();
+        List<String> keys = texts.stream().map(text -> key(model, text)).toList();
+        float[][] vectors = new float[texts.size()][];
+
+        // 1. Горячий кеш в памяти
+        Set<String> missing = new LinkedHashSet<>();
+        for (int i = 0; i < keys.size(); i++) {
+            vectors[i] = memory.get(keys.get(i));
+            if (vectors[i] == null) {
+                missing.add(keys.get(i));
+            }
+        }
+
+        // 2. Таблица Postgres
+        Map<String, float[]> found = missing.isEmpty() ? Map.of() : repository.findAll(missing);
+        found.forEach(memory::put);
+
+        // 3. Ollama — только для действительно новых текстов, каждый уникальный текст один раз
+        Map<String, String> toEmbed = new LinkedHashMap<>();
+        for (int i = 0; i < keys.size(); i++) {
+            if (vectors[i] == null && !found.containsKey(keys.get(i))) {
+                toEmbed.putIfAbsent(keys.get(i), texts.get(i));
+            }
+        }
+        Map<String, float[]> embedded = new LinkedHashMap<>();
+        if (!toEmbed.isEmpty()) {
+            EmbeddingResponse response = delegate.call(
+                    new EmbeddingRequest(new ArrayList<>(toEmbed.values()), request.getOptions()));
+            List<String> embeddedKeys = new ArrayList<>(toEmbed.keySet());
+            for (int j = 0; j < embeddedKeys.size(); j++) {
+                embedded.put(embeddedKeys.get(j), response.getResults().get(j).getOutput());
+            }
+            repository.saveAll(model, embedded);
+            embedded.forEach(memory::put);
+        }
+        log.debug("Векторизация: всего {}, из памяти {}, из БД {}, в Ollama {}",
+                texts.size(), texts.size() - missing.size(), found.size(), toEmbed.size());
+
+        List<Embedding> embeddings = new ArrayList<>(texts.size());
+        for (int i = 0; i < keys.size(); i++) {
+            float[] vector = vectors[i] != null ? vectors[i]
+                    : found.containsKey(keys.get(i)) ? found.get(keys.get(i))
+                    : embedded.get(keys.get(i));
+            embeddings.add(new Embedding(vector, i));
+        }
+        return new EmbeddingResponse(embeddings);
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+
+    private static String key(String model, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(model.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package ru.petrov.odata_bridge.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.FixedDelayTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriBuilder;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.config.ReplicaConfig;
+import ru.petrov.odata_bridge.model.ODataQuery;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Локальная копия небольших редко меняющихся справочников 1С в памяти.
+ * Первая загрузка — постранично целиком, дальше по расписанию сверяются только Ref_Key и DataVersion,
+ * и перечитываются измененные строки. Запросы executeSmartQuery с простым $filter (и $count)
+ * вычисляются по копии без обращения к 1С.
+ */
+@Service
+public class CatalogReplica implements SchedulingConfigurer {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String REF_KEY = "Ref_Key";
+    private static final String DATA_VERSION = "DataVersion";
+    // Сколько строк перечитывается одним запросом с фильтром по Ref_Key
+    private static final int CHANGED_ROWS_PER_REQUEST = 20;
+
+    private final WebClient webClient;
+    private final Bulkhead odataBulkhead;
+    private final ReplicaConfig config;
+    private final List<String> entities;
+    private final Map<String, Table> tables = new ConcurrentHashMap<>();
+    private final Set<String> oversized = ConcurrentHashMap.newKeySet();
+    private final Counter localQueries;
+    private final Counter fallbackQueries;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CatalogReplica.class);
+
+    /**
+     * Опубликованный снимок таблицы; после публикации не меняется.
+     * @param rows     Строки по Ref_Key в порядке выдачи 1С
+     * @param fields   Поля, присутствующие в строках
+     * @param syncedAt Время последней успешной сверки с 1С
+     */
+    private record Table(Map<String, JsonNode> rows, Set<String> fields, Instant syncedAt) {
+        static Table of(Map<String, JsonNode> rows) {
+            Set<String> fields = new HashSet<>();
+            for (JsonNode row : rows.values()) {
+                row.fieldNames().forEachRemaining(fields::add);
+            }
+            return new Table(Collections.unmodifiableMap(rows), Set.copyOf(fields), Instant.now());
+        }
+
+        Table touch() {
+            return new Table(rows, fields, Instant.now());
+        }
+    }
+
+    public CatalogReplica(@Qualifier("odataWebClient") WebClient webClient,
+                          @Qualifier("odataBulkhead") Bulkhead odataBulkhead,
+                          ReplicaConfig config, IndexingConfig indexingConfig, MeterRegistry meterRegistry) {
+        this.webClient = webClient;
+        this.odataBulkhead = odataBulkhead;
+        this.config = config;
+        if (config.entities() != null && !config.entities().isEmpty()) {
+            this.entities = List.copyOf(config.entities());
+        } else if (indexingConfig.includeOnly() != null) {
+            this.entities = indexingConfig.includeOnly().stream().filter(name -> name.startsWith("Catalog_")).toList();
+        } else {
+            this.entities = List.of();
+        }
+        this.localQueries = queryCounter(meterRegistry, "local");
+        this.fallbackQueries = queryCounter(meterRegistry, "fallback");
+        Gauge.builder("odata.bridge.replica.rows", tables,
+                        t -> t.values().stream().mapToInt(table -> table.rows().size()).sum())
+                .register(meterRegistry);
+    }
+
+    private static Counter queryCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.replica.queries").tag("outcome", outcome).register(registry);
+    }
+
+    // Расписание берется из ReplicaConfig, а не из строк свойств в аннотации
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        if (config.enabled()) {
+            registrar.addFixedDelayTask(new FixedDelayTask(this::sync, config.syncInterval(), config.initialDelay()));
+        }
+    }
+
+    /**
+     * Синхронизация всех реплицируемых таблиц. Ошибка по одной таблице не мешает остальным:
+     * ее прежний снимок продолжает обслуживать запросы, пока не устареет.
+     */
+    public void sync() {
+        if (!config.enabled()) {
+            return;
+        }
+        for (String entity : entities) {
+            if (oversized.contains(entity)) {
+                continue;
+            }
+            try {
+                long start = System.nanoTime();
+                Table current = tables.get(entity);
+                Table synced = current == null ? loadFull(entity) : syncChanges(entity, current);
+                if (synced == null) {
+                    tables.remove(entity);
+                    oversized.add(entity);
+                    log.warn("Таблица {} больше {} строк и не реплицируется", entity, config.maxRows());
+                    continue;
+                }
+                tables.put(entity, synced);
+                log.debug("Реплика {} синхронизирована за {} мс: {} строк",
+                        entity, Duration.ofNanos(System.nanoTime() - start).toMillis(), synced.rows().size());
+            } catch (Exception e) {
+                log.warn("Не удалось синхронизировать реплику {}: {}", entity, e.getMessage());
+            }
+        }
+    }
+
+    private Table loadFull(String entity) throws JsonProcessingException {
+        Map<String, JsonNode> rows = new LinkedHashMap<>();
+        for (int skip = 0; ; skip += config.pageSize()) {
+            int offset = skip;
+            JsonNode page = get(uriBuilder -> uriBuilder.path(entity)
+                    .queryParam("$orderby", REF_KEY)
+                    .queryParam("$top", config.pageSize())
+                    .queryParam("$skip", offset)
+                    .queryParam("$format", "json")
+                    .build());
+            for (JsonNode row : page) {
+                rows.put(row.path(REF_KEY).asText(), row);
+            }
+            if (rows.size() > config.maxRows()) {
+                return null;
+            }
+            if (page.size() < config.pageSize()) {
+                break;
+            }
+        }
+        log.info("Реплика {} загружена: {} строк", entity, rows.size());
+        return Table.of(rows);
+    }
+
+    private Table syncChanges(String entity, Table current) throws JsonProcessingException {
+        // Версии строк — постранично, как и при первой загрузке: один запрос на всю таблицу 1С отдает долго
+        Map<String, String> remote = new LinkedHashMap<>();
+        for (int skip = 0; ; skip += config.pageSize()) {
+            int offset = skip;
+            JsonNode page = get(uriBuilder -> uriBuilder.path(entity)
+                    .queryParam("$select", REF_KEY + "," + DATA_VERSION)
+                    .queryParam("$orderby", REF_KEY)
+                    .queryParam("$top", config.pageSize())
+                    .queryParam("$skip", offset)
+                    .queryParam("$format", "json")
+                    .build());
+            for (JsonNode row : page) {
+                remote.put(row.path(REF_KEY).asText(), row.path(DATA_VERSION).asText());
+            }
+            if (remote.size() > config.maxRows()) {
+                return null;
+            }
+            if (page.size() < config.pageSize()) {
+                break;
+            }
+        }
+        List<String> changed = new ArrayList<>();
+        remote.forEach((key, version) -> {
+            JsonNode local = current.rows().get(key);
+            if (local == null || !version.equals(local.path(DATA_VERSION).asText())) {
+                changed.add(key);
+            }
+        });
+        int removed = (int) current.rows().keySet().stream().filter(key -> !remote.containsKey(key)).count();
+        if (changed.isEmpty() && removed == 0) {
+            return current.touch();
+        }
+
+        Map<String, JsonNode> fresh = new HashMap<>();
+        for (int from = 0; from < changed.size(); from += CHANGED_ROWS_PER_REQUEST) {
+            String filter = changed.subList(from, Math.min(changed.size(), from + CHANGED_ROWS_PER_REQUEST)).stream()
+                    .map(key -> REF_KEY + " eq guid'" + key + "'")
+                    .collect(Collectors.joining(" or "));
+            JsonNode page = get(uriBuilder -> uriBuilder.path(entity)
+                    .queryParam("$filter", filter)
+                    .queryParam("$format", "json")
+                    .build());
+            for (JsonNode row : page) {
+                fresh.put(row.path(REF_KEY).asText(), row);
+            }
+        }
+
+        // Порядок строк — как в 1С; удаленные строки в новый снимок не попадают
+        Map<String, JsonNode> rows = new LinkedHashMap<>();
+        for (String key : remote.keySet()) {
+            JsonNode row = fresh.containsKey(key) ? fresh.get(key) : current.rows().get(key);
+            if (row != null) {
+                rows.put(key, row);
+            }
+        }
+        log.info("Реплика {}: изменено {}, удалено {}", entity, changed.size(), removed);
+        return Table.of(rows);
+    }
+
+    private JsonNode get(Function<UriBuilder, URI> uri) throws JsonProcessingException {
+        String body;
+        try (Bulkhead.Permit ignored = odataBulkhead.acquire()) {
+            body = webClient.get()
+                    .uri(uri)
+                    .retrieve()
+                    .bodyToMono(String.class)
+                    .block();
+        }
+        return MAPPER.readTree(body == null ? "{}" : body).path("value");
+    }
+
+    /**
+     * Выполняет запрос по локальной копии, если это возможно.
+     *
+     * @return Тело ответа в формате 1С ({"value": [...]} или число для $count)
+     * или пусто, если таблица не реплицируется, копия устарела или фильтр не поддерживается.
+     */
+    public Optional<String> query(ODataQuery query) {
+        if (!config.enabled()) {
+            return Optional.empty();
+        }
+        Table table = tables.get(query.entity());
+        if (table == null) {
+            return Optional.empty();
+        }
+        if (table.syncedAt().plus(config.maxStaleness()).isBefore(Instant.now())) {
+            log.debug("Реплика {} устарела (синхронизирована {}), запрос идет в 1С", query.entity(), table.syncedAt());
+            fallbackQueries.increment();
+            return Optional.empty();
+        }
+        ODataFilter filter = null;
+        if (query.hasFilter()) {
+            try {
+                filter = ODataFilter.parse(query.filter());
+            } catch (IllegalArgumentException e) {
+                log.debug("Фильтр \"{}\" не вычисляется локально: {}", query.filter(), e.getMessage());
+                fallbackQueries.increment();
+                return Optional.empty();
+            }
+            if (!table.fields().containsAll(filter.fields())) {
+                fallbackQueries.increment();
+                return Optional.empty();
+            }
+        }
+
+        localQueries.increment();
+        if (query.countOnly()) {
+            long count = 0;
+            for (JsonNode row : table.rows().values()) {
+                if (filter == null || filter.test(row)) {
+                    count++;
+                }
+            }
+            return Optional.of(Long.toString(count));
+        }
+        ObjectNode root = MAPPER.createObjectNode();
+        ArrayNode value = root.putArray("value");
+        for (JsonNode row : table.rows().values()) {
+            if (value.size() >= query.top()) {
+                break;
+            }
+            if (filter == null || filter.test(row)) {
+                value.add(row);
+            }
+        }
+        return Optional.of(root.toString());
+    }
+}
@@ -0,0 +1,179 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import ru.petrov.odata_bridge.config.ClassificationCacheConfig;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Кеш результата этапа 1: нормализованный вопрос → выбранная сущность.
+ * В приближенном режиме при отсутствии точного совпадения ищется ранее заданный вопрос
+ * с близким вектором (вектор исходного текста вопроса — тот же, что нужен поиску заголовков). Размер ограничен (LRU), записи живут не дольше TTL, переиндексация очищает кеш.
+ */
+@Service
+public class ClassificationCache {
+    private final ClassificationCacheConfig config;
+    private final EmbeddingModel embeddingModel;
+    private final MetadataCatalogService catalogService;
+    private final Map<String, Entry> entries;
+    private final Counter exactHits;
+    private final Counter approximateHits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ClassificationCache.class);
+
+    public ClassificationCache(ClassificationCacheConfig config, EmbeddingModel embeddingModel,
+                               MetadataCatalogService catalogService, MeterRegistry meterRegistry) {
+        this.config = config;
+        this.embeddingModel = embeddingModel;
+        this.catalogService = catalogService;
+        this.exactHits = lookupCounter(meterRegistry, "hit_exact");
+        this.approximateHits = lookupCounter(meterRegistry, "hit_approximate");
+        this.misses = lookupCounter(meterRegistry, "miss");
+        this.evictions = Counter.builder("odata.bridge.classification.cache.evictions").register(meterRegistry);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                boolean evict = size() > config.maxSize();
+                if (evict) {
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+        Gauge.builder("odata.bridge.classification.cache.size", this, ClassificationCache::size).register(meterRegistry);
+    }
+
+    private static Counter lookupCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.classification.cache.requests")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    private record Entry(String targetEntity, float[] embedding, long expiresAt) {}
+
+    /**
+     * @param prompt Вопрос пользователя.
+     * @return Ранее выбранная для такого же (или близкого) вопроса сущность.
+     */
+    public Optional<String> get(String prompt) {
+        if (!config.enabled()) {
+            return Optional.empty();
+        }
+        String key = normalize(prompt);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt > now) {
+                exactHits.increment();
+                return Optional.of(entry.targetEntity);
+            }
+            if (entry != null) {
+                entries.remove(key);
+                evictions.increment();
+            }
+        }
+
+        if (config.approximate()) {
+            Optional<String> similar = findSimilar(embed(prompt), now);
+            if (similar.isPresent()) {
+                approximateHits.increment();
+                return similar;
+            }
+        }
+        misses.increment();
+        return Optional.empty();
+    }
+
+    public void put(String prompt, String targetEntity) {
+        if (!config.enabled()) {
+            return;
+        }
+        MetadataCatalog catalog = catalogService.catalog();
+        if (!catalog.isEmpty() && !catalog.contains(targetEntity)) {
+            // Ответ классификатора не совпал ни с одной таблицей — кешировать ошибку нельзя
+            log.warn("Классификатор вернул неизвестную сущность '{}', результат не кешируется", targetEntity);
+            return;
+        }
+        String key = normalize(prompt);
+        float[] embedding = config.approximate() ? embed(prompt) : null;
+        Entry entry = new Entry(targetEntity, embedding, System.currentTimeMillis() + config.ttl().toMillis());
+        synchronized (entries) {
+            entries.put(key, entry);
+        }
+    }
+
+    @EventListener
+    public void onReindex(MetadataIndexRefreshedEvent event) {
+        synchronized (entries) {
+            entries.clear();
+        }
+        log.info("Кеш классификации очищен после переиндексации");
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Optional<String> findSimilar(float[] query, long now) {
+        String best = null;
+        double bestScore = config.similarityThreshold();
+        synchronized (entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.expiresAt <= now) {
+                    it.remove();
+                    evictions.increment();
+                    continue;
+                }
+                if (entry.embedding == null || entry.embedding.length != query.length) {
+                    continue;
+                }
+                double score = cosine(query, entry.embedding);
+                if (score >= bestScore) {
+                    bestScore = score;
+                    best = entry.targetEntity;
+                }
+            }
+        }
+        return Optional.ofNullable(best);
+    }
+
+    // Векторизуется исходный текст вопроса, а не ключ кеша: поиск заголовков векторизует тот же текст,
+    // и кеширующая модель отдает вектор без второго вызова Ollama
+    private float[] embed(String prompt) {
+        return embeddingModel.embed(prompt);
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+    }
+
+    // "  Сколько контрагентов?! " → "сколько контрагентов"
+    static String normalize(String prompt) {
+        return prompt.toLowerCase(Locale.ROOT)
+                .replace('ё', 'е')
+                .replaceAll("[^\\p{L}\\p{N}]+", " ")
+                .trim();
+    }
+}
@@ -0,0 +1,116 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.FixedDelayTask;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import ru.petrov.odata_bridge.config.CountConfig;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Заранее посчитанные количества строк ($count без фильтра) индексированных таблиц.
+ * Обновляются в фоне по расписанию, поэтому вопросы вида "сколько в базе контрагентов"
+ * не ждут медленного подсчета на стороне 1С. Количества с фильтром всегда считает 1С.
+ */
+@Service
+public class EntityCountService implements SchedulingConfigurer {
+    private final WebClient webClient;
+    private final Bulkhead odataBulkhead;
+    private final CountConfig config;
+    private final MetadataCatalogService catalogService;
+    private final Map<String, Count> counts = new ConcurrentHashMap<>();
+    private final Counter hits;
+    private final Counter misses;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EntityCountService.class);
+
+    private record Count(long value, Instant countedAt) {}
+
+    public EntityCountService(@Qualifier("odataWebClient") WebClient webClient,
+                              @Qualifier("odataBulkhead") Bulkhead odataBulkhead,
+                              CountConfig config, MetadataCatalogService catalogService, MeterRegistry meterRegistry) {
+        this.webClient = webClient;
+        this.odataBulkhead = odataBulkhead;
+        this.config = config;
+        this.catalogService = catalogService;
+        this.hits = requestCounter(meterRegistry, "hit");
+        this.misses = requestCounter(meterRegistry, "miss");
+    }
+
+    private static Counter requestCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.counts.requests").tag("outcome", outcome).register(registry);
+    }
+
+    // Расписание берется из CountConfig, а не из строк свойств в аннотации
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        if (config.enabled()) {
+            registrar.addFixedDelayTask(new FixedDelayTask(this::refresh, config.refreshInterval(), config.initialDelay()));
+        }
+    }
+
+    /**
+     * Пересчитывает количества всех таблиц справочника метаданных. Ошибка по одной таблице
+     * не прерывает обход — ее прежнее значение используется, пока не устареет.
+     */
+    public void refresh() {
+        if (!config.enabled()) {
+            return;
+        }
+        int refreshed = 0;
+        for (String entity : catalogService.catalog().entityNames()) {
+            try (Bulkhead.Permit ignored = odataBulkhead.acquire()) {
+                String body = webClient.get()
+                        .uri(uriBuilder -> uriBuilder.path(entity + "/$count").build())
+                        .retrieve()
+                        .bodyToMono(String.class)
+                        .block();
+                record(entity, body);
+                refreshed++;
+            } catch (Exception e) {
+                log.warn("Не удалось посчитать строки {}: {}", entity, e.getMessage());
+            }
+        }
+        // Таблицы, исчезнувшие из справочника после переиндексации
+        counts.keySet().retainAll(catalogService.catalog().entityNames());
+        log.info("Количества строк обновлены: {} таблиц", refreshed);
+    }
+
+    /**
+     * Запоминает количество, полученное из 1С (в т.ч. прямым запросом $count без фильтра).
+     */
+    public void record(String entity, String body) {
+        if (body == null) {
+            return;
+        }
+        try {
+            counts.put(entity, new Count(Long.parseLong(body.trim()), Instant.now()));
+        } catch (NumberFormatException e) {
+            log.debug("Ответ $count для {} не число: {}", entity, body);
+        }
+    }
+
+    /**
+     * @return Количество строк таблицы без фильтра или пусто, если его нет или оно устарело.
+     */
+    public OptionalLong count(String entity) {
+        if (!config.enabled()) {
+            return OptionalLong.empty();
+        }
+        Count count = counts.get(entity);
+        if (count == null || count.countedAt().plus(config.maxStaleness()).isBefore(Instant.now())) {
+            misses.increment();
+            return OptionalLong.empty();
+        }
+        hits.increment();
+        return OptionalLong.of(count.value());
+    }
+}
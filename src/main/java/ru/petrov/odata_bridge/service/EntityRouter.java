@@ -0,0 +1,201 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+import ru.petrov.odata_bridge.config.RoutingConfig;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Детерминированный выбор сущности по словам вопроса — быстрый путь этапа 1 без вызова классификатора LLM.
+ * Для каждой сущности строятся ключевые фразы: части технического имени ("ВидыНоменклатуры" → "виды номенклатуры")
+ * и синонимы из конфигурации. Слова сравниваются по основе через префиксное дерево, поэтому
+ * "контрагентов" совпадает с "Контрагенты". Ответ возвращается только при единственном лучшем совпадении.
+ */
+@Service
+public class EntityRouter {
+    private final MetadataCatalogService catalogService;
+    private final RoutingConfig config;
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter ambiguous;
+    private volatile Index index = new Index(MetadataCatalog.EMPTY, List.of(), new TrieNode());
+
+    private static final int MIN_STEM = 3;
+    // Слово вопроса длиннее основы не более чем на окончание — "склад" не должен совпасть со "складирование"
+    private static final int MAX_ENDING = 4;
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EntityRouter.class);
+
+    public EntityRouter(MetadataCatalogService catalogService, RoutingConfig config, MeterRegistry meterRegistry) {
+        this.catalogService = catalogService;
+        this.config = config;
+        this.hits = routeCounter(meterRegistry, "hit");
+        this.misses = routeCounter(meterRegistry, "miss");
+        this.ambiguous = routeCounter(meterRegistry, "ambiguous");
+    }
+
+    private static Counter routeCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.router.requests")
+                .description("Лексический выбор сущности до вызова классификатора")
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    /**
+     * @param prompt Вопрос пользователя.
+     * @return Техническое имя сущности, если совпадение однозначно; иначе пусто — нужен классификатор LLM.
+     */
+    public Optional<String> route(String prompt) {
+        if (!config.enabled()) {
+            return Optional.empty();
+        }
+        Index current = currentIndex();
+        if (current.phrases.isEmpty()) {
+            return Optional.empty();
+        }
+
+        // Какие основы ключевых слов встретились в вопросе
+        Set<String> matchedStems = new HashSet<>();
+        for (String token : tokenize(prompt)) {
+            current.trie.collectPrefixes(token, matchedStems);
+        }
+
+        // Оценка сущности — длина самой длинной полностью совпавшей фразы: "виды номенклатуры" точнее "номенклатуры"
+        Map<String, Integer> scores = new HashMap<>();
+        for (Phrase phrase : current.phrases) {
+            if (matchedStems.containsAll(phrase.stems)) {
+                scores.merge(phrase.entity, phrase.stems.size(), Math::max);
+            }
+        }
+        if (scores.isEmpty()) {
+            misses.increment();
+            return Optional.empty();
+        }
+
+        int best = scores.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+        List<String> leaders = scores.entrySet().stream()
+                .filter(e -> e.getValue() == best)
+                .map(Map.Entry::getKey)
+                .toList();
+        if (leaders.size() != 1) {
+            ambiguous.increment();
+            log.debug("Лексический маршрут неоднозначен: {}", leaders);
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(leaders.get(0));
+    }
+
+    private Index currentIndex() {
+        MetadataCatalog catalog = catalogService.catalog();
+        Index current = index;
+        if (current.catalog != catalog) {
+            // Справочник подменен после переиндексации — перестраиваем индекс фраз
+            current = build(catalog);
+            index = current;
+        }
+        return current;
+    }
+
+    private Index build(MetadataCatalog catalog) {
+        List<Phrase> phrases = new ArrayList<>();
+        for (String entity : catalog.entityNames()) {
+            addPhrase(phrases, entity, splitTechnicalName(entity));
+        }
+        if (config.synonyms() != null) {
+            config.synonyms().forEach((entity, synonyms) -> {
+                if (catalog.contains(entity)) {
+                    synonyms.forEach(synonym -> addPhrase(phrases, entity, tokenize(synonym)));
+                }
+            });
+        }
+        TrieNode trie = new TrieNode();
+        phrases.forEach(phrase -> phrase.stems.forEach(trie::insert));
+        log.info("Лексический индекс сущностей построен: {} фраз для {} таблиц", phrases.size(), catalog.size());
+        return new Index(catalog, phrases, trie);
+    }
+
+    private static void addPhrase(List<Phrase> phrases, String entity, List<String> words) {
+        List<String> stems = words.stream().map(EntityRouter::stem).filter(s -> s.length() >= MIN_STEM).distinct().toList();
+        if (!stems.isEmpty()) {
+            phrases.add(new Phrase(entity, stems));
+        }
+    }
+
+    // "Catalog_ВидыНоменклатуры" → [виды, номенклатуры]; префикс типа объекта (Catalog, Document) не учитывается
+    private static List<String> splitTechnicalName(String entity) {
+        int underscore = entity.indexOf('_');
+        String name = underscore >= 0 ? entity.substring(underscore + 1) : entity;
+        List<String> words = new ArrayList<>();
+        for (String part : name.split("_")) {
+            for (String word : part.split("(?<=\\p{Ll})(?=\\p{Lu})")) {
+                if (!word.isBlank()) {
+                    words.add(word.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return words;
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        for (String token : text.toLowerCase(Locale.ROOT).replace('ё', 'е').split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() >= MIN_STEM) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    // Грубая основа слова: отбрасываем окончание, чтобы совпадали падежные формы
+    private static String stem(String word) {
+        String w = word.toLowerCase(Locale.ROOT).replace('ё', 'е');
+        if (w.length() >= 6) {
+            return w.substring(0, w.length() - 2);
+        }
+        if (w.length() >= 4) {
+            return w.substring(0, w.length() - 1);
+        }
+        return w;
+    }
+
+    private record Phrase(String entity, List<String> stems) {}
+
+    private record Index(MetadataCatalog catalog, List<Phrase> phrases, TrieNode trie) {}
+
+    private static final class TrieNode {
+        private final Map<Character, TrieNode> children = new HashMap<>();
+        private String stem; // Не null, если здесь заканчивается основа ключевого слова
+
+        void insert(String word) {
+            TrieNode node = this;
+            for (int i = 0; i < word.length(); i++) {
+                node = node.children.computeIfAbsent(word.charAt(i), c -> new TrieNode());
+            }
+            node.stem = word;
+        }
+
+        // Все основы, являющиеся префиксами слова вопроса
+        void collectPrefixes(String token, Set<String> result) {
+            TrieNode node = this;
+            for (int i = 0; i < token.length(); i++) {
+                node = node.children.get(token.charAt(i));
+                if (node == null) {
+                    return;
+                }
+                if (node.stem != null && token.length() - node.stem.length() <= MAX_ENDING) {
+                    result.add(node.stem);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Локальный индекс векторов мастер-записей таблиц (is_header = true) для этапа 1.
+ * Заголовков максимум несколько сотен, поэтому точный перебор по плоскому массиву float[]
+ * быстрее сетевого запроса к pgvector. Источником истины остается Postgres:
+ * индекс загружается при старте и перечитывается после каждой переиндексации.
+ */
+@Service
+public class HeaderVectorIndex {
+    private final VectorStoreRepository repository;
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(HeaderVectorIndex.class);
+
+    public HeaderVectorIndex(VectorStoreRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Найденная мастер-запись.
+     * @param entity Техническое имя таблицы
+     * @param text   Текст мастер-записи
+     * @param score  Косинусная близость к запросу
+     */
+    public record Hit(String entity, String text, float score) {}
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        // Индекс мог быть уже загружен из снимка на диске
+        if (!isReady()) {
+            reload();
+        }
+    }
+
+    @EventListener
+    public void onReindex(MetadataIndexRefreshedEvent event) {
+        reload();
+    }
+
+    public void reload() {
+        try {
+            List<VectorStoreRepository.HeaderRow> rows = repository.loadHeaders();
+            snapshot = Snapshot.of(rows);
+            log.info("Локальный индекс заголовков загружен: {} таблиц", rows.size());
+        } catch (Exception e) {
+            // Без локального индекса этап 1 продолжит работать через pgvector
+            log.error("Не удалось загрузить локальный индекс заголовков: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Подменяет индекс готовыми мастер-записями (из снимка индекса на диске).
+     */
+    public void load(List<VectorStoreRepository.HeaderRow> rows) {
+        snapshot = Snapshot.of(rows);
+        log.info("Локальный индекс заголовков загружен из снимка: {} таблиц", rows.size());
+    }
+
+    public boolean isReady() {
+        return snapshot.size() > 0;
+    }
+
+    /**
+     * Точный поиск top-K по косинусной близости.
+     *
+     * @param query Вектор запроса (нормализуется внутри).
+     * @param topK  Количество результатов.
+     * @return Мастер-записи по убыванию близости.
+     */
+    public List<Hit> search(float[] query, int topK) {
+        Snapshot current = snapshot;
+        int n = current.size();
+        if (n == 0 || query.length != current.dimensions) {
+            return List.of();
+        }
+        float[] q = normalize(query.clone());
+        int k = Math.min(topK, n);
+        int[] bestIdx = new int[k];
+        float[] bestScore = new float[k];
+        Arrays.fill(bestScore, Float.NEGATIVE_INFINITY);
+
+        for (int row = 0; row < n; row++) {
+            float score = dot(current.vectors, row * current.dimensions, q);
+            if (score <= bestScore[k - 1]) {
+                continue;
+            }
+            // Вставка в маленький отсортированный массив: k обычно 3-20
+            int pos = k - 1;
+            while (pos > 0 && bestScore[pos - 1] < score) {
+                bestScore[pos] = bestScore[pos - 1];
+                bestIdx[pos] = bestIdx[pos - 1];
+                pos--;
+            }
+            bestScore[pos] = score;
+            bestIdx[pos] = row;
+        }
+
+        List<Hit> hits = new ArrayList<>(k);
+        for (int i = 0; i < k; i++) {
+            hits.add(new Hit(current.entities[bestIdx[i]], current.texts[bestIdx[i]], bestScore[i]));
+        }
+        return hits;
+    }
+
+    // Четыре независимых аккумулятора: JIT раскладывает цикл по SIMD-регистрам без зависимости по сумме
+    private static float dot(float[] vectors, int offset, float[] q) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int bound = q.length & ~3;
+        for (; i < bound; i += 4) {
+            s0 += vectors[offset + i] * q[i];
+            s1 += vectors[offset + i + 1] * q[i + 1];
+            s2 += vectors[offset + i + 2] * q[i + 2];
+            s3 += vectors[offset + i + 3] * q[i + 3];
+        }
+        for (; i < q.length; i++) {
+            s0 += vectors[offset + i] * q[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private static float[] normalize(float[] v) {
+        double norm = 0;
+        for (float x : v) {
+            norm += x * x;
+        }
+        if (norm > 0) {
+            float inv = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < v.length; i++) {
+                v[i] *= inv;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Неизменяемый снимок индекса: векторы уложены подряд в один массив (строка = dimensions элементов).
+     */
+    private record Snapshot(float[] vectors, int dimensions, String[] entities, String[] texts) {
+        static final Snapshot EMPTY = new Snapshot(new float[0], 0, new String[0], new String[0]);
+
+        static Snapshot of(List<VectorStoreRepository.HeaderRow> rows) {
+            if (rows.isEmpty()) {
+                return EMPTY;
+            }
+            int dimensions = rows.get(0).embedding().length;
+            float[] vectors = new float[rows.size() * dimensions];
+            String[] entities = new String[rows.size()];
+            String[] texts = new String[rows.size()];
+            for (int i = 0; i < rows.size(); i++) {
+                VectorStoreRepository.HeaderRow row = rows.get(i);
+                float[] normalized = normalize(row.embedding().clone());
+                System.arraycopy(normalized, 0, vectors, i * dimensions, dimensions);
+                entities[i] = row.entity();
+                texts[i] = row.text();
+            }
+            return new Snapshot(vectors, dimensions, entities, texts);
+        }
+
+        int size() {
+            return entities.length;
+        }
+    }
+}
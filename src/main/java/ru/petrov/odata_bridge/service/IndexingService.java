@@ -1,18 +1,41 @@
 package ru.petrov.odata_bridge.service;
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
 import org.springframework.ai.vectorstore.SearchRequest;
 import org.springframework.ai.vectorstore.VectorStore;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.ai.vectorstore.filter.FilterExpressionBuilder;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.dao.DataAccessException;
-import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
 import ru.petrov.odata_bridge.config.IndexingConfig;
 import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+import ru.petrov.odata_bridge.model.ReindexReport;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -20,77 +43,240 @@ import java.util.stream.Collectors;
  */
 @Service
 public class IndexingService {
-    @Value("${spring.ai.vectorstore.pgvector.table-name}")
-    private String vectorTableName;
     private final VectorStore vectorStore;
+    private final EmbeddingModel embeddingModel;
     private final ODataService odataService;
     private final IndexingConfig config;
-    private final JdbcTemplate jdbcTemplate;
-    private final AtomicBoolean isIndexing = new AtomicBoolean(false);
+    private final VectorStoreRepository repository;
+    private final HeaderVectorIndex headerIndex;
+    private final MetadataCatalogService catalogService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final SingleFlight<String, ReindexReport> reindexFlight;
+    private final MeterRegistry meterRegistry;
+    // Полная и инкрементальная индексации объединяются только с запуском того же режима
+    private static final String REINDEX_KEY = "reindex";
+    private static final String FULL_REINDEX_KEY = "reindex-full";
+    // Разные режимы не пишут в индекс одновременно: полная, запрошенная во время инкрементальной, ждет ее окончания
+    private final ReentrantLock reindexLock = new ReentrantLock();
+    private static final String HELP_QUERY = "справочники и документы";
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(IndexingService.class);
 
 
-    public IndexingService(VectorStore vectorStore, ODataService odataService, IndexingConfig config, JdbcTemplate jdbcTemplate) {
+    public IndexingService(VectorStore vectorStore, EmbeddingModel embeddingModel, ODataService odataService,
+                           IndexingConfig config, VectorStoreRepository repository,
+                           HeaderVectorIndex headerIndex, MetadataCatalogService catalogService,
+                           ApplicationEventPublisher eventPublisher, MeterRegistry meterRegistry) {
         this.vectorStore = vectorStore;
+        this.embeddingModel = embeddingModel;
         this.odataService = odataService;
         this.config = config;
-        this.jdbcTemplate = jdbcTemplate;
+        this.repository = repository;
+        this.headerIndex = headerIndex;
+        this.catalogService = catalogService;
+        this.eventPublisher = eventPublisher;
+        this.reindexFlight = new SingleFlight<>("reindex", meterRegistry);
+        this.meterRegistry = meterRegistry;
     }
 
     // Запустите этот метод, чтобы наполнить базу.
-    public void updateMetadataIndex() {
-        // Получаем вектора строго в одном потоке
-        if (!isIndexing.compareAndSet(false, true)) {
-            log.warn("Индексация уже запущена другим потоком!");
-            return;
+    public ReindexReport updateMetadataIndex() {
+        return updateMetadataIndex(!config.incremental());
+    }
+
+    /**
+     * Обновляет векторный индекс метаданных.
+     * Для каждой сущности считается отпечаток набора полей; перевекторизуются только добавленные
+     * и измененные сущности, удаленные — вычищаются. Новые строки пишутся в промежуточную таблицу
+     * и заменяют старые по одной сущности в транзакции, поэтому поиск работает во время индексации
+     * и не видит одновременно старые и новые поля.
+     *
+     * Одновременные вызовы того же режима не запускают вторую индексацию, а дожидаются уже идущей и получают ее итог;
+     * запуск другого режима выполняется после нее.
+     *
+     * @param full true — перевекторизовать все сущности независимо от сохраненных отпечатков.
+     * @return Итог индексации.
+     */
+    public ReindexReport updateMetadataIndex(boolean full) {
+        // Получаем вектора строго в одном потоке: запускает первый вызов, остальные присоединяются
+        String key = full ? FULL_REINDEX_KEY : REINDEX_KEY;
+        if (reindexFlight.isInFlight(key)) {
+            log.info("Индексация уже запущена, ожидаем ее завершения");
+        }
+        return reindexFlight.execute(key, () -> Mono.fromCallable(() -> reindexExclusively(full))).block();
+    }
+
+    private ReindexReport reindexExclusively(boolean full) {
+        if (reindexLock.isLocked()) {
+            log.info("Идет индексация в другом режиме, {} запустится после нее", full ? "полная" : "инкрементальная");
+        }
+        reindexLock.lock();
+        try {
+            return reindex(full);
+        } finally {
+            reindexLock.unlock();
         }
+    }
 
+    private ReindexReport reindex(boolean full) {
+        // Поколение помечает строки текущего запуска: по нему строки переносятся из промежуточной таблицы или откатываются
+        String generation = UUID.randomUUID().toString();
         try {
-            log.info("Очистка таблицы метаданных: {}", vectorTableName);
-            jdbcTemplate.execute("TRUNCATE TABLE " + vectorTableName);
+            repository.resetStaging();
+            Map<String, String> stored = repository.loadFingerprints();
+            // Сигналы потока приходят последовательно, а blockLast() публикует результат вызывающему потоку
+            Set<String> seen = new HashSet<>();
+            List<String> changed = new ArrayList<>();
+
+            log.info("Запуск потокового парсинга XML метаданных из 1С (режим: {}) ...", full ? "полный" : "инкрементальный");
+            // Парсинг, векторизация и запись идут одновременно: в памяти только порции, находящиеся в работе
+            Flux<Document> docs = odataService.streamMetadata()
+                    .doOnNext(entity -> seen.add(entity.entity()))
+                    .<Document>concatMapIterable(entity -> {
+                        String fingerprint = fingerprint(entity.fields());
+                        if (!full && fingerprint.equals(stored.get(entity.entity()))) {
+                            return List.of();
+                        }
+                        changed.add(entity.entity());
+                        return entity.fields().stream()
+                                .map(field -> toDocument(field, fingerprint, generation))
+                                .toList();
+                    });
 
-            log.info("Запуск парсинга XML метаданных из 1С ...");
-            List<FieldInfo> fields = odataService.parseXmlMetadata();
+            int written;
+            try {
+                written = runEmbeddingPipeline(docs);
+                log.info("Записано документов: {}", written);
+            } catch (RuntimeException e) {
+                // Неполный набор новых строк не должен вытеснить старые
+                int rolledBack = repository.deleteGeneration(generation);
+                throw new IllegalStateException("Индексация прервана ошибкой, откатано строк: " + rolledBack, e);
+            }
 
-            log.info("Парсинг завершен. Подготовка {} документов к векторизации...", fields.size());
-            List<Document> allDocs = fields.stream()
-                    .map(this::toDocument)
+            if (seen.isEmpty()) {
+                // Пустой ответ 1С не должен стереть рабочий индекс
+                log.warn("Метаданные 1С пусты или не разобраны, индекс оставлен без изменений");
+                return ReindexReport.EMPTY;
+            }
+            List<String> removed = stored.keySet().stream()
+                    .filter(entity -> !seen.contains(entity))
                     .toList();
 
-            int size = allDocs.size();
-            int batchSize = config.batchSize();
-
-            for (int i = 0; i < size; i += batchSize) {
-                int end = Math.min(i + batchSize, size);
-                List<Document> batch = allDocs.subList(i, end);
-
-                try {
-                    vectorStore.add(batch);
-                    log.info("Успешно проиндексировано: {}/{}", end, size);
-                } catch (Exception e) { // Ловим ошибки БД или Ollama
-                    log.error("Ошибка при индексации порции {} - {}: {}", i, end, e.getMessage());
-                    // Добавляем небольшую паузу, 2 сек,
-                    // если ошибка вызвана перегревом CPU или таймаутом Ollama
-                    try { Thread.sleep(2000); } catch (InterruptedException ignored) {}
-                }
+            try {
+                changed.forEach(entity -> repository.publishEntity(entity, generation));
+            } catch (RuntimeException e) {
+                // Перенесенные сущности уже согласованы, остальные сохранят старые строки и отпечатки до следующего запуска
+                repository.deleteGeneration(generation);
+                throw e;
             }
+            removed.forEach(repository::deleteEntity);
+            log.info("Индексация завершена. Сущностей в метаданных: {}, обновлено: {}, удалено: {}",
+                    seen.size(), changed.size(), removed.size());
+            if (!changed.isEmpty() || !removed.isEmpty()) {
+                List<String> affected = new ArrayList<>(changed);
+                affected.addAll(removed);
+                eventPublisher.publishEvent(new MetadataIndexRefreshedEvent(affected));
+            }
+            return new ReindexReport(seen.size(), changed.size(), removed.size(), written);
         } catch (DataAccessException e) {
             throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Конвейер индексации: до {@code embeddingConcurrency} порций одновременно векторизуются в Ollama,
+     * а готовые порции по очереди пишет в pgvector отдельный JDBC-поток.
+     * Порция, не прошедшая все повторы, прерывает конвейер — молча порции не теряются.
+     *
+     * @return Количество записанных документов.
+     */
+    private int runEmbeddingPipeline(Flux<Document> docs) {
+        AtomicInteger written = new AtomicInteger();
+        Scheduler writer = Schedulers.newSingle("index-writer");
+        try {
+            docs.buffer(config.batchSize())
+                    .flatMapSequential(this::embedBatch, config.embeddingConcurrency())
+                    .concatMap(batch -> withRetry(
+                            Mono.fromCallable(() -> timeBatch("write", batch.documents().size(),
+                                            () -> repository.stageBatch(batch.documents(), batch.embeddings())))
+                                    .subscribeOn(writer),
+                            "запись"))
+                    .doOnNext(count -> log.info("Успешно проиндексировано: {}", written.addAndGet(count)))
+                    .blockLast();
+        } finally {
+            writer.dispose();
+        }
+        return written.get();
+    }
+
+    private Mono<EmbeddedBatch> embedBatch(List<Document> batch) {
+        List<String> texts = batch.stream().map(Document::getText).toList();
+        return withRetry(
+                Mono.fromCallable(() -> new EmbeddedBatch(batch, timeBatch("embed", batch.size(),
+                                // Порции индексации уступают Ollama вопросам пользователей
+                                () -> OllamaScheduler.withEmbeddingPriority(OllamaScheduler.Priority.INDEXING,
+                                        () -> embeddingModel.embed(texts)))))
+                        .subscribeOn(Schedulers.boundedElastic()),
+                "векторизация");
+    }
+
+    // Длительность одной попытки порции (векторизация или запись) и размер порции
+    private <T> T timeBatch(String phase, int size, Supplier<T> action) {
+        Timer.Sample sample = Timer.start(meterRegistry);
+        String outcome = "error";
+        try {
+            T result = action.get();
+            outcome = "success";
+            return result;
         } finally {
-            isIndexing.set(false); // Всегда освобождаем флаг
+            sample.stop(Timer.builder("odata.bridge.indexing.batch")
+                    .tag("phase", phase)
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+            DistributionSummary.builder("odata.bridge.indexing.batch.size")
+                    .tag("phase", phase)
+                    .register(meterRegistry)
+                    .record(size);
         }
     }
 
-    private Document toDocument(FieldInfo field) {
+    private <T> Mono<T> withRetry(Mono<T> stage, String stageName) {
+        // Экспоненциальная пауза вместо фиксированных 2 сек: перегретой Ollama нужно больше времени с каждой попыткой
+        return stage.retryWhen(Retry.backoff(config.maxRetries(), config.retryBackoff())
+                .doBeforeRetry(signal -> log.warn("Ошибка на этапе '{}', попытка {}: {}",
+                        stageName, signal.totalRetries() + 1, signal.failure().getMessage())));
+    }
+
+    private record EmbeddedBatch(List<Document> documents, List<float[]> embeddings) {}
+
+    static Document toDocument(FieldInfo field, String fingerprint, String generation) {
         Map<String, Object> metadata = Map.of(
                 "entity", field.entity(),
                 "field", field.name(),
                 "type", field.type(),
-                "is_header", field.isHeader()
+                "is_header", field.isHeader(),
+                "fingerprint", fingerprint,
+                "generation", generation
         );
         return new Document(field.description(), metadata);
     }
 
+    /**
+     * Отпечаток набора полей сущности: меняется при добавлении, удалении, смене типа или описания поля.
+     */
+    static String fingerprint(List<FieldInfo> entityFields) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (FieldInfo field : entityFields) {
+                digest.update((field.name() + '|' + field.type() + '|' + field.description() + '\n')
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
     public String findRelevantMetadata(String userQuery) {
         // Выполняем поиск
         List<Document> similarDocs = vectorStore.similaritySearch(
@@ -119,13 +305,33 @@ public class IndexingService {
      * @return Текст мастер-записи найденной сущности.
      */
     public String findEntityHeader(String query) {
+        return formatHeaders(findEntityHeaderHits(query));
+    }
+
+    /**
+     * Те же кандидаты этапа 1, что и в {@link #findEntityHeader(String)}, в порядке убывания близости.
+     */
+    public List<HeaderVectorIndex.Hit> findEntityHeaderHits(String query) {
+        if (headerIndex.isReady()) {
+            // Локальный индекс: без сетевого запроса к pgvector
+            return headerIndex.search(embeddingModel.embed(query), 3);
+        }
         return vectorStore.similaritySearch(
                         SearchRequest.builder()
                                 .query(query)
                                 .topK(3)
                                 .filterExpression("is_header == true").build()
                 ).stream()
-                .map(doc -> doc.getText() + " [ID: " + doc.getMetadata().get("entity") + "]")
+                .map(doc -> new HeaderVectorIndex.Hit(
+                        String.valueOf(doc.getMetadata().get("entity")),
+                        doc.getText(),
+                        doc.getScore() == null ? 0f : doc.getScore().floatValue()))
+                .toList();
+    }
+
+    public static String formatHeaders(List<HeaderVectorIndex.Hit> hits) {
+        return hits.stream()
+                .map(hit -> hit.text() + " [ID: " + hit.entity() + "]")
                 .collect(Collectors.joining("\n"));
     }
 
@@ -137,19 +343,67 @@ public class IndexingService {
      * @return Список описаний полей в формате "Имя: Описание".
      */
     public String findFieldsForEntity(String entityName) {
+        MetadataCatalog catalog = catalogService.catalog();
+        if (!catalog.isEmpty()) {
+            // Точный список полей из справочника в памяти — векторный поиск здесь не нужен
+            return catalog.entity(entityName)
+                    .map(IndexingService::formatFields)
+                    .orElse("");
+        }
         SearchRequest request = SearchRequest.builder()
                 .query(entityName)
                 .topK(15) // Берем больше полей, но только одной таблицы
-                .filterExpression("entity == '" + entityName + "'")
+                .filterExpression(new FilterExpressionBuilder().eq("entity", entityName).build())
                 .build();
         return vectorStore.similaritySearch(request).stream()
                 .map(doc -> doc.getMetadata().get("field") + ": " + doc.getText())
                 .collect(Collectors.joining("\n"));
     }
 
+    /**
+     * Поля сущности, близкие к вопросу по смыслу, — основа $select для запроса этапа 2.
+     * Вектор вопроса уже посчитан при поиске заголовков и берется из кеша векторизации.
+     *
+     * @param entityName Техническое имя сущности, выбранной на этапе 1.
+     * @param question   Текст вопроса на естественном языке.
+     * @return Имена полей; пусто, если по вопросу ничего не нашлось.
+     */
+    public Set<String> findRelevantFields(String entityName, String question) {
+        FilterExpressionBuilder b = new FilterExpressionBuilder();
+        SearchRequest request = SearchRequest.builder()
+                .query(question)
+                .topK(config.topK())
+                .similarityThreshold(config.similarityThreshold())
+                .filterExpression(b.and(b.eq("entity", entityName), b.eq("is_header", false)).build())
+                .build();
+        Set<String> fields = new LinkedHashSet<>();
+        for (Document doc : vectorStore.similaritySearch(request)) {
+            fields.add(String.valueOf(doc.getMetadata().get("field")));
+        }
+        log.debug("Поля {} по вопросу \"{}\": {}", entityName, question, fields);
+        return fields;
+    }
+
+    static String formatFields(MetadataCatalog.EntityFields fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(fields.name(i)).append(": ").append(fields.description(i));
+        }
+        return sb.toString();
+    }
+
     public String getAllEntitiesHelp() {
+        if (headerIndex.isReady()) {
+            return headerIndex.search(embeddingModel.embed(HELP_QUERY), 20).stream()
+                    .map(hit -> "- " + hit.text())
+                    .distinct()
+                    .collect(Collectors.joining("\n"));
+        }
         SearchRequest request = SearchRequest.builder()
-                .query("справочники и документы") // Общий запрос
+                .query(HELP_QUERY) // Общий запрос
                 .filterExpression("is_header == true") // Только заголовки
                 .topK(20) // Лимит списка
                 .build();
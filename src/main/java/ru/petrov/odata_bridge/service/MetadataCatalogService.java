@@ -0,0 +1,60 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository;
+
+import java.util.List;
+
+/**
+ * Держит актуальный {@link MetadataCatalog}. Справочник пересобирается целиком из векторной таблицы
+ * при старте и после каждой переиндексации и подменяется атомарно.
+ */
+@Service
+public class MetadataCatalogService {
+    private final VectorStoreRepository repository;
+    private volatile MetadataCatalog catalog = MetadataCatalog.EMPTY;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MetadataCatalogService.class);
+
+    public MetadataCatalogService(VectorStoreRepository repository) {
+        this.repository = repository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        // Справочник мог быть уже загружен из снимка на диске
+        if (catalog.isEmpty()) {
+            reload();
+        }
+    }
+
+    @EventListener
+    public void onReindex(MetadataIndexRefreshedEvent event) {
+        reload();
+    }
+
+    public void reload() {
+        try {
+            catalog = MetadataCatalog.of(repository.loadFieldInfos());
+            log.info("Справочник метаданных загружен: {} таблиц", catalog.size());
+        } catch (Exception e) {
+            log.error("Не удалось загрузить справочник метаданных: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Подменяет справочник готовым набором элементов (из снимка индекса на диске).
+     */
+    public void load(List<FieldInfo> fields) {
+        catalog = MetadataCatalog.of(fields);
+        log.info("Справочник метаданных загружен из снимка: {} таблиц", catalog.size());
+    }
+
+    public MetadataCatalog catalog() {
+        return catalog;
+    }
+}
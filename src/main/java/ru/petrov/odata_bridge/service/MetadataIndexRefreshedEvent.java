@@ -0,0 +1,13 @@
+package ru.petrov.odata_bridge.service;
+
+import java.util.List;
+
+/**
+ * Публикуется после успешной переиндексации: локальные структуры, построенные по векторной таблице,
+ * должны перечитать ее.
+ *
+ * @param changedEntities Сущности, строки которых были переписаны или удалены.
+ */
+public record MetadataIndexRefreshedEvent(
+        List<String> changedEntities
+) {}
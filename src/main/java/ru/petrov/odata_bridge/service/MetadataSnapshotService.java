@@ -0,0 +1,440 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.ai.document.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.config.SnapshotConfig;
+import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * Снимок индекса метаданных на диске для быстрого старта.
+ * После каждой переиндексации строки векторной таблицы потоком переписываются из Postgres в компактный двоичный файл:
+ * имена сущностей, полей, типов хранятся один раз (словарь пополняется по ходу записи), векторы — float или int8.
+ * При старте файл отображается в память и сверяется с Postgres (число строк и отпечатки сущностей);
+ * совпавший снимок строит справочник и индекс заголовков без обращения к 1С и Ollama,
+ * а пустая векторная таблица заполняется из снимка.
+ */
+@Service
+public class MetadataSnapshotService {
+    private static final int MAGIC = 0x4F425331; // "OBS1"
+    private static final int VERSION = 2;
+    // Ссылки на словарь: индекс уже записанной строки, NONE — null, NEW — за ссылкой следует новая строка
+    private static final int NONE = -1;
+    private static final int NEW = -2;
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+    private static final String[] DICTIONARY_KEYS = {"entity", "field", "type", "fingerprint", "generation"};
+    // Строк за одно обращение курсора Postgres при записи снимка
+    private static final int FETCH_SIZE = 500;
+
+    private final SnapshotConfig config;
+    private final IndexingConfig indexingConfig;
+    private final VectorStoreRepository repository;
+    private final MetadataCatalogService catalogService;
+    private final HeaderVectorIndex headerIndex;
+    private final String embeddingModelName;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MetadataSnapshotService.class);
+
+    public MetadataSnapshotService(SnapshotConfig config, IndexingConfig indexingConfig, VectorStoreRepository repository,
+                                   MetadataCatalogService catalogService, HeaderVectorIndex headerIndex,
+                                   @Value("${spring.ai.ollama.embedding.options.model:mxbai-embed-large}") String embeddingModelName) {
+        this.config = config;
+        this.indexingConfig = indexingConfig;
+        this.repository = repository;
+        this.catalogService = catalogService;
+        this.headerIndex = headerIndex;
+        this.embeddingModelName = embeddingModelName;
+    }
+
+    /**
+     * Прочитанный снимок.
+     * @param model      Модель, которой получены векторы
+     * @param dimensions Размерность векторов
+     * @param rows       Строки векторной таблицы
+     */
+    record Contents(String model, int dimensions, List<VectorStoreRepository.StoredRow> rows) {}
+
+    /**
+     * Загружается раньше справочника и индекса заголовков: если снимок прочитан, они не идут в Postgres.
+     */
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        if (!config.enabled()) {
+            return;
+        }
+        Path path = Path.of(config.path());
+        if (!Files.exists(path)) {
+            log.info("Снимок индекса {} не найден, справочник будет загружен из Postgres", path);
+            // Первый запуск с уже заполненной таблицей: снимок пригодится при следующем старте
+            write();
+            return;
+        }
+        long start = System.nanoTime();
+        Optional<Contents> contents = read(path);
+        if (contents.isEmpty()) {
+            return;
+        }
+        if (!contents.get().model().equals(embeddingModelName)) {
+            log.warn("Снимок построен моделью {}, а настроена {} — снимок не используется",
+                    contents.get().model(), embeddingModelName);
+            return;
+        }
+        List<VectorStoreRepository.StoredRow> rows = contents.get().rows();
+        OptionalLong databaseRows = databaseRows();
+        if (databaseRows.isPresent() && databaseRows.getAsLong() > 0 && !matchesDatabase(rows, databaseRows.getAsLong())) {
+            // Таблицу меняли в обход этого экземпляра (другой узел, ручная правка) — верим Postgres и пишем снимок заново
+            write();
+            return;
+        }
+        List<FieldInfo> fields = new ArrayList<>(rows.size());
+        List<VectorStoreRepository.HeaderRow> headers = new ArrayList<>();
+        for (VectorStoreRepository.StoredRow row : rows) {
+            FieldInfo field = toFieldInfo(row);
+            fields.add(field);
+            if (field.isHeader()) {
+                headers.add(new VectorStoreRepository.HeaderRow(field.entity(), row.content(), row.embedding()));
+            }
+        }
+        catalogService.load(fields);
+        headerIndex.load(headers);
+        log.info("Снимок индекса загружен за {} мс: {} строк", (System.nanoTime() - start) / 1_000_000, rows.size());
+
+        if (databaseRows.isPresent() && databaseRows.getAsLong() == 0) {
+            try {
+                reseed(rows);
+            } catch (Exception e) {
+                log.error("Не удалось заполнить векторную таблицу из снимка: {}", e.getMessage());
+            }
+        }
+    }
+
+    // Число строк векторной таблицы; пусто, если Postgres недоступен (тогда снимок используется без сверки)
+    private OptionalLong databaseRows() {
+        try {
+            return OptionalLong.of(repository.count());
+        } catch (DataAccessException e) {
+            log.warn("Postgres недоступен, снимок индекса используется без сверки: {}", e.getMessage());
+            return OptionalLong.empty();
+        }
+    }
+
+    private boolean matchesDatabase(List<VectorStoreRepository.StoredRow> rows, long databaseRows) {
+        try {
+            if (rows.size() != databaseRows) {
+                log.warn("Снимок индекса содержит {} строк, а векторная таблица {} — снимок не используется",
+                        rows.size(), databaseRows);
+                return false;
+            }
+            if (!fingerprints(rows).equals(repository.loadFingerprints())) {
+                log.warn("Отпечатки сущностей в снимке индекса расходятся с векторной таблицей — снимок не используется");
+                return false;
+            }
+            return true;
+        } catch (DataAccessException e) {
+            log.warn("Не удалось сверить снимок индекса с Postgres, снимок используется: {}", e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Отпечатки сущностей по строкам снимка — по тем же правилам, что {@link VectorStoreRepository#loadFingerprints()}:
+     * несколько разных отпечатков у одной сущности дают пустую строку.
+     */
+    static Map<String, String> fingerprints(List<VectorStoreRepository.StoredRow> rows) {
+        Map<String, String> result = new HashMap<>();
+        for (VectorStoreRepository.StoredRow row : rows) {
+            String entity = (String) row.metadata().get("entity");
+            if (entity == null) {
+                continue;
+            }
+            Object value = row.metadata().get("fingerprint");
+            String fingerprint = value == null ? "" : value.toString();
+            result.merge(entity, fingerprint, (a, b) -> a.equals(b) ? a : "");
+        }
+        return result;
+    }
+
+    @EventListener
+    public void onReindex(MetadataIndexRefreshedEvent event) {
+        if (config.enabled()) {
+            write();
+        }
+    }
+
+    /**
+     * Записывает снимок текущего содержимого векторной таблицы: строки идут из курсора Postgres прямо в файл.
+     * Файл подменяется атомарно: прерванная запись не портит предыдущий снимок.
+     */
+    public void write() {
+        Path path = Path.of(config.path());
+        Path tmp = null;
+        try {
+            Path dir = path.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+            int rows;
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                SnapshotWriter writer = new SnapshotWriter(out, embeddingModelName, config.quantize());
+                repository.forEachRow(FETCH_SIZE, row -> {
+                    try {
+                        writer.write(row);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                writer.finish();
+                rows = writer.rows();
+            }
+            if (rows == 0) {
+                return;
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+            log.info("Снимок индекса записан: {} строк, {} КБ", rows, Files.size(path) / 1024);
+        } catch (Exception e) {
+            log.error("Не удалось записать снимок индекса {}: {}", path, e.getMessage());
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e) {
+                    log.debug("Не удалось удалить временный файл снимка {}: {}", tmp, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void reseed(List<VectorStoreRepository.StoredRow> rows) {
+        int batchSize = Math.max(1, indexingConfig.batchSize());
+        for (int from = 0; from < rows.size(); from += batchSize) {
+            List<VectorStoreRepository.StoredRow> batch = rows.subList(from, Math.min(rows.size(), from + batchSize));
+            List<Document> documents = new ArrayList<>(batch.size());
+            List<float[]> embeddings = new ArrayList<>(batch.size());
+            for (VectorStoreRepository.StoredRow row : batch) {
+                documents.add(new Document(row.id(), row.content(), row.metadata()));
+                embeddings.add(row.embedding());
+            }
+            repository.insertBatch(documents, embeddings);
+        }
+        log.info("Векторная таблица пуста — заполнена из снимка: {} строк, без обращения к Ollama", rows.size());
+    }
+
+    private static FieldInfo toFieldInfo(VectorStoreRepository.StoredRow row) {
+        Map<String, Object> metadata = row.metadata();
+        return new FieldInfo(
+                (String) metadata.get("entity"),
+                (String) metadata.get("field"),
+                (String) metadata.get("type"),
+                row.content(),
+                Boolean.parseBoolean(String.valueOf(metadata.get("is_header"))));
+    }
+
+    // Формат (big-endian, как пишет DataOutputStream):
+    // magic, version, model, quantized, dimensions,
+    // строки: (ROW, id, content — строки; entity, field, type, fingerprint, generation — ссылки на словарь; is_header; вектор)*,
+    // END, число строк. Строка — длина и UTF-8 (длина -1 — null); ссылка — индекс, NONE или NEW и новая строка.
+
+    /**
+     * Потоковая запись снимка: в памяти только словарь повторяющихся значений (имена сущностей, полей, типов,
+     * отпечатки), тексты и векторы сразу уходят в файл. Заголовок пишется с первой строкой — по ней известна размерность.
+     */
+    static final class SnapshotWriter {
+        private final DataOutputStream out;
+        private final String model;
+        private final boolean quantize;
+        private final Map<String, Integer> dictionary = new HashMap<>();
+        private int dimensions = NONE;
+        private int rows;
+
+        SnapshotWriter(OutputStream target, String model, boolean quantize) {
+            this.out = new DataOutputStream(new BufferedOutputStream(target, 1 << 16));
+            this.model = model;
+            this.quantize = quantize;
+        }
+
+        void write(VectorStoreRepository.StoredRow row) throws IOException {
+            float[] embedding = row.embedding();
+            if (dimensions == NONE) {
+                dimensions = embedding.length;
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, model);
+                out.writeBoolean(quantize);
+                out.writeInt(dimensions);
+            } else if (embedding.length != dimensions) {
+                throw new IOException("Размерность вектора строки " + row.id() + ": " + embedding.length + " вместо " + dimensions);
+            }
+            Map<String, Object> metadata = row.metadata();
+            out.writeByte(ROW);
+            writeString(out, row.id());
+            writeString(out, row.content());
+            for (String key : DICTIONARY_KEYS) {
+                Object value = metadata.get(key);
+                writeReference(value == null ? null : value.toString());
+            }
+            out.writeBoolean(Boolean.parseBoolean(String.valueOf(metadata.get("is_header"))));
+            if (quantize) {
+                // Симметричное квантование с масштабом на вектор
+                float max = 0;
+                for (float x : embedding) {
+                    max = Math.max(max, Math.abs(x));
+                }
+                float scale = max == 0 ? 1 : max / 127f;
+                out.writeFloat(scale);
+                for (float x : embedding) {
+                    out.writeByte(Math.round(x / scale));
+                }
+            } else {
+                for (float x : embedding) {
+                    out.writeFloat(x);
+                }
+            }
+            rows++;
+        }
+
+        private void writeReference(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(NONE);
+                return;
+            }
+            Integer index = dictionary.get(value);
+            if (index != null) {
+                out.writeInt(index);
+                return;
+            }
+            dictionary.put(value, dictionary.size());
+            out.writeInt(NEW);
+            writeString(out, value);
+        }
+
+        /**
+         * Дописывает конец снимка; пустой снимок (без строк) остается пустым файлом.
+         */
+        void finish() throws IOException {
+            if (rows > 0) {
+                out.writeByte(END);
+                out.writeInt(rows);
+            }
+            out.flush();
+        }
+
+        int rows() {
+            return rows;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NONE);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Читает снимок через отображение файла в память.
+     */
+    static Optional<Contents> read(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn("Файл {} не является снимком индекса этой версии", path);
+                return Optional.empty();
+            }
+            String model = readString(buffer);
+            boolean quantized = buffer.get() != 0;
+            int dimensions = buffer.getInt();
+
+            List<String> dictionary = new ArrayList<>();
+            List<VectorStoreRepository.StoredRow> rows = new ArrayList<>();
+            while (buffer.get() == ROW) {
+                String id = readString(buffer);
+                String content = readString(buffer);
+                Map<String, Object> metadata = new HashMap<>();
+                for (String key : DICTIONARY_KEYS) {
+                    String value = readReference(buffer, dictionary);
+                    if (value != null) {
+                        metadata.put(key, value);
+                    }
+                }
+                metadata.put("is_header", buffer.get() != 0);
+                float[] embedding = new float[dimensions];
+                if (quantized) {
+                    float scale = buffer.getFloat();
+                    for (int i = 0; i < dimensions; i++) {
+                        embedding[i] = buffer.get() * scale;
+                    }
+                } else {
+                    buffer.asFloatBuffer().get(embedding);
+                    buffer.position(buffer.position() + dimensions * Float.BYTES);
+                }
+                rows.add(new VectorStoreRepository.StoredRow(id, content, metadata, embedding));
+            }
+            int expected = buffer.getInt();
+            if (expected != rows.size()) {
+                log.warn("Снимок индекса {} поврежден: прочитано {} строк из {}", path, rows.size(), expected);
+                return Optional.empty();
+            }
+            return Optional.of(new Contents(model, dimensions, rows));
+        } catch (Exception e) {
+            log.error("Не удалось прочитать снимок индекса {}: {}", path, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private static String readReference(ByteBuffer buffer, List<String> dictionary) {
+        int index = buffer.getInt();
+        if (index == NONE) {
+            return null;
+        }
+        if (index == NEW) {
+            String value = readString(buffer);
+            dictionary.add(value);
+            return value;
+        }
+        return dictionary.get(index);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == NONE) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,105 @@
+package ru.petrov.odata_bridge.service;
+
+import ru.petrov.odata_bridge.model.EntityMetadata;
+import ru.petrov.odata_bridge.model.FieldInfo;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Потоковый StAX-разбор $metadata 1С: за один вызов {@link #nextEntity()} дочитывает документ
+ * до конца очередной разрешенной таблицы. В памяти одновременно держится только одна таблица.
+ */
+public class MetadataXmlReader implements AutoCloseable {
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private final InputStream source;
+    private final XMLStreamReader reader;
+    private final Predicate<String> entityFilter;
+    private final Collection<String> excludeFields;
+
+    /**
+     * @param source        Поток XML $metadata.
+     * @param entityFilter  Отбор таблиц (белый и черный списки).
+     * @param excludeFields Системные поля, не попадающие в индекс.
+     */
+    public MetadataXmlReader(InputStream source, Predicate<String> entityFilter, Collection<String> excludeFields)
+            throws XMLStreamException {
+        this.source = source;
+        this.reader = FACTORY.createXMLStreamReader(source);
+        this.entityFilter = entityFilter;
+        this.excludeFields = excludeFields == null ? List.of() : excludeFields;
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Отключаем внешние сущности для безопасности
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+    }
+
+    /**
+     * Читает следующую разрешенную таблицу.
+     *
+     * @return Таблица с полями или null, если документ закончился.
+     */
+    public EntityMetadata nextEntity() throws XMLStreamException {
+        String currentEntity = null;
+        List<FieldInfo> fields = null;
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String localName = reader.getLocalName();
+
+                if ("EntityType".equals(localName)) {
+                    // Нашли начало описания таблицы (например, Catalog_Контрагенты)
+                    String entityName = reader.getAttributeValue(null, "Name");
+                    currentEntity = entityFilter.test(entityName) ? entityName : null;
+                    if (currentEntity != null) {
+                        // Создаем Мастер-запись для всей таблицы
+                        String humanName = currentEntity.replace("Catalog_", "Справочник ").replace("Document_", "Документ ");
+                        fields = new ArrayList<>();
+                        fields.add(new FieldInfo(currentEntity, "TABLE_HEADER", "System", "[СУЩНОСТЬ] " + humanName, true));
+                    }
+
+                } else if ("Property".equals(localName) && currentEntity != null) {
+                    // Нашли поле внутри текущей таблицы
+                    String fieldName = reader.getAttributeValue(null, "Name");
+                    String fieldType = reader.getAttributeValue(null, "Type");
+
+                    // Фильтрация конкретных полей (например, Ref_Key)
+                    if (excludeFields.contains(fieldName)) {
+                        continue;
+                    }
+                    String cleanEntity = currentEntity.replace("Catalog_", "").replace("Document_", "");
+                    String fieldDesc = String.format("[ПОЛЕ] %s в таблице %s", fieldName, cleanEntity);
+                    fields.add(new FieldInfo(currentEntity, fieldName, fieldType, fieldDesc, false));
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && "EntityType".equals(reader.getLocalName())) {
+                if (currentEntity != null) {
+                    return new EntityMetadata(currentEntity, List.copyOf(fields));
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws XMLStreamException, IOException {
+        try {
+            reader.close();
+        } finally {
+            source.close();
+        }
+    }
+}
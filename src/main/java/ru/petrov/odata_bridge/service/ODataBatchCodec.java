@@ -0,0 +1,109 @@
+package ru.petrov.odata_bridge.service;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Формирование и разбор тела OData $batch (multipart/mixed) для GET-запросов.
+ * Каждая часть — отдельный HTTP-запрос к 1С; ответы приходят в том же порядке.
+ */
+final class ODataBatchCodec {
+    private static final String CRLF = "\r\n";
+    // Статус части, которую не удалось разобрать: она считается неуспешной, остальные части не теряются
+    static final int MALFORMED = 0;
+
+    private ODataBatchCodec() {
+    }
+
+    /**
+     * Ответ на одну часть пакета.
+     * @param status HTTP-статус части; {@link #MALFORMED} — часть не удалось разобрать
+     * @param etag   ETag части или null
+     * @param body   Тело ответа
+     */
+    record Part(int status, String etag, String body) {
+        boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+    }
+
+    static String newBoundary() {
+        return "batch_" + UUID.randomUUID();
+    }
+
+    /**
+     * @param boundary Разделитель частей.
+     * @param uris     Адреса запросов относительно корня сервиса OData (уже закодированные).
+     */
+    static String encode(String boundary, List<URI> uris) {
+        StringBuilder sb = new StringBuilder();
+        for (URI uri : uris) {
+            sb.append("--").append(boundary).append(CRLF)
+                    .append("Content-Type: application/http").append(CRLF)
+                    .append("Content-Transfer-Encoding: binary").append(CRLF)
+                    .append(CRLF)
+                    .append("GET ").append(uri.toASCIIString()).append(" HTTP/1.1").append(CRLF)
+                    .append("Accept: application/json").append(CRLF)
+                    .append(CRLF);
+        }
+        sb.append("--").append(boundary).append("--").append(CRLF);
+        return sb.toString();
+    }
+
+    /**
+     * Разбирает ответ $batch на части по разделителю из заголовка Content-Type ответа.
+     */
+    static List<Part> decode(String boundary, String body) {
+        List<Part> parts = new ArrayList<>();
+        String delimiter = "--" + boundary;
+        int start = body.indexOf(delimiter);
+        while (start >= 0) {
+            start += delimiter.length();
+            if (body.startsWith("--", start)) {
+                break; // Закрывающий разделитель
+            }
+            int end = body.indexOf(delimiter, start);
+            String segment = body.substring(start, end < 0 ? body.length() : end);
+            parts.add(decodePart(segment));
+            start = end;
+        }
+        return parts;
+    }
+
+    private static Part decodePart(String segment) {
+        int statusLine = segment.indexOf("HTTP/1.");
+        if (statusLine < 0) {
+            return new Part(MALFORMED, null, segment.strip());
+        }
+        // Заголовки части MIME пропущены, дальше — HTTP-ответ: строка статуса, заголовки, пустая строка, тело
+        String response = segment.substring(statusLine);
+        int headersEnd = response.indexOf("\n\n");
+        int crlfHeadersEnd = response.indexOf("\r\n\r\n");
+        int bodyStart;
+        if (crlfHeadersEnd >= 0 && (headersEnd < 0 || crlfHeadersEnd < headersEnd)) {
+            headersEnd = crlfHeadersEnd;
+            bodyStart = crlfHeadersEnd + 4;
+        } else {
+            bodyStart = headersEnd < 0 ? response.length() : headersEnd + 2;
+        }
+        String head = headersEnd < 0 ? response : response.substring(0, headersEnd);
+        String[] lines = head.split("\r?\n");
+        String[] status = lines[0].trim().split(" ", 3);
+        int code;
+        try {
+            code = status.length > 1 ? Integer.parseInt(status[1]) : MALFORMED;
+        } catch (NumberFormatException e) {
+            code = MALFORMED;
+        }
+        String etag = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("ETag")) {
+                etag = lines[i].substring(colon + 1).trim();
+            }
+        }
+        return new Part(code, etag, response.substring(bodyStart).strip());
+    }
+}
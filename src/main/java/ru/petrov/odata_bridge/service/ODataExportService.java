@@ -0,0 +1,242 @@
+package ru.petrov.odata_bridge.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import ru.petrov.odata_bridge.config.ODataConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Потоковая выгрузка больших выборок 1С в NDJSON (одна строка таблицы — одна строка JSON).
+ * Страницы запрашиваются через $skip/$top с сортировкой по ключу (или по odata.nextLink, если 1С его присылает).
+ * Пока пишется текущая страница, следующая запрашивается заранее — только при чтении через $skip
+ * и только если место в bulkhead 1С свободно сразу: выгрузка занимает не больше одного лишнего места.
+ * Строки копируются из потокового JsonParser в JsonGenerator без построения дерева,
+ * поэтому память не зависит от объема выгрузки.
+ */
+@Service
+public class ODataExportService {
+    private final WebClient webClient;
+    private final MetadataCatalogService catalogService;
+    private final Bulkhead odataBulkhead;
+    private final URI baseUri;
+    private static final JsonFactory JSON = new JsonFactory();
+    // Сколько буферов тела страницы читается вперед
+    private static final int PAGE_PREFETCH_BUFFERS = 8;
+    // Записи регистров, подчиненных регистратору (…_RecordType), однозначно определяются регистратором и номером строки
+    private static final List<String> REGISTER_PREFIXES = List.of(
+            "InformationRegister_", "AccumulationRegister_", "AccountingRegister_", "CalculationRegister_");
+    private static final String RECORD_TYPE_SUFFIX = "_RecordType";
+    private static final String REF_KEY = "Ref_Key";
+    private static final String LINE_NUMBER = "LineNumber";
+    private static final String RECORDER = "Recorder";
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ODataExportService.class);
+
+    public ODataExportService(@Qualifier("odataWebClient") WebClient webClient, MetadataCatalogService catalogService,
+                              @Qualifier("odataBulkhead") Bulkhead odataBulkhead, ODataConfig oDataConfig) {
+        this.webClient = webClient;
+        this.baseUri = URI.create(oDataConfig.baseUrl().endsWith("/") ? oDataConfig.baseUrl() : oDataConfig.baseUrl() + "/");
+        this.catalogService = catalogService;
+        this.odataBulkhead = odataBulkhead;
+    }
+
+    /**
+     * Выгружает строки сущности в поток NDJSON.
+     *
+     * @param entity   Имя таблицы 1С (вместе с фильтром уже проверено {@link ODataService#validateQuery}).
+     * @param filter   Фильтр OData (опционально).
+     * @param pageSize Размер страницы ($top).
+     * @param maxRows  Максимум строк (0 — без ограничения).
+     * @param out      Поток ответа.
+     * @return Количество выгруженных строк.
+     */
+    public long exportRows(String entity, String filter, int pageSize, long maxRows, OutputStream out) throws IOException {
+        long limit = maxRows > 0 ? maxRows : Long.MAX_VALUE;
+        long written = 0;
+        long skip = 0;
+        String orderBy = orderBy(entity);
+        if (orderBy == null) {
+            log.warn("Ключ сортировки {} неизвестен: страницы $skip без $orderby могут пересекаться", entity);
+        }
+
+        JsonGenerator generator = JSON.createGenerator(out);
+        generator.setRootValueSeparator(null);
+        Page current = open(pageRequest(entity, filter, orderBy, skip, pageSize), odataBulkhead.acquire());
+        Page prefetched = null;
+        // До конца первой страницы неизвестно, листает ли 1С сама (odata.nextLink), поэтому заранее не запрашиваем
+        boolean skipPaging = false;
+        boolean linkPaging = false;
+        try {
+            while (current != null) {
+                skip += pageSize;
+                if (skipPaging && written + pageSize < limit) {
+                    // Следующая страница запрашивается, пока текущая копируется в ответ, — если есть свободное место
+                    prefetched = tryOpenPage(entity, filter, orderBy, skip, pageSize);
+                }
+
+                PageResult result;
+                try (Page page = current) {
+                    current = null;
+                    result = copyRows(page.body, generator, limit - written);
+                }
+                written += result.rows;
+                generator.flush();
+
+                if (result.nextLink != null) {
+                    // Сервер сам задает продолжение — страницы $skip не запрашиваются
+                    linkPaging = true;
+                    current = written < limit ? openLink(result.nextLink) : null;
+                } else if (linkPaging || result.rows < pageSize || written >= limit) {
+                    // Конец выборки (в том числе последняя страница по nextLink)
+                    closeQuietly(prefetched);
+                } else {
+                    skipPaging = true;
+                    current = prefetched != null ? prefetched
+                            : open(pageRequest(entity, filter, orderBy, skip, pageSize), odataBulkhead.acquire());
+                }
+                prefetched = null;
+            }
+        } finally {
+            closeQuietly(current);
+            closeQuietly(prefetched);
+            generator.flush();
+        }
+        log.info("Выгрузка {} завершена: {} строк", entity, written);
+        return written;
+    }
+
+    /**
+     * Ключ сортировки для устойчивого чтения через $skip: без $orderby 1С не гарантирует порядок строк
+     * между запросами, и страницы могут пересекаться или терять строки.
+     *
+     * @return Значение $orderby или null, если ключ по имени таблицы не определяется
+     *         (независимые регистры сведений: их ключ — период и измерения).
+     */
+    String orderBy(String entity) {
+        if (ResultShaper.isReferenceType(entity)) {
+            // Табличная часть объекта — строки одной ссылки различаются номером строки
+            boolean tabular = catalogService.catalog().entity(entity)
+                    .map(fields -> fields.hasField(LINE_NUMBER))
+                    .orElse(false);
+            return tabular ? REF_KEY + "," + LINE_NUMBER : REF_KEY;
+        }
+        if (REGISTER_PREFIXES.stream().anyMatch(entity::startsWith) && entity.endsWith(RECORD_TYPE_SUFFIX)) {
+            return RECORDER + "," + LINE_NUMBER;
+        }
+        return null;
+    }
+
+    private record PageResult(long rows, String nextLink) {}
+
+    /**
+     * Копирует строки массива value в генератор по одной, не более limit.
+     * Лишние строки страницы не читаются: поток закрывается, а соединение освобождается.
+     */
+    private PageResult copyRows(InputStream body, JsonGenerator generator, long limit) throws IOException {
+        long rows = 0;
+        String nextLink = null;
+        try (JsonParser parser = JSON.createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Ожидался JSON-объект в ответе 1С");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("value".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        if (rows >= limit) {
+                            return new PageResult(rows, null);
+                        }
+                        generator.copyCurrentStructure(parser);
+                        generator.writeRaw('\n');
+                        rows++;
+                    }
+                } else if (("odata.nextLink".equals(field) || "@odata.nextLink".equals(field))
+                        && value == JsonToken.VALUE_STRING) {
+                    nextLink = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new PageResult(rows, nextLink);
+    }
+
+    private WebClient.RequestHeadersSpec<?> pageRequest(String entity, String filter, String orderBy, long skip, int pageSize) {
+        return webClient.get()
+                .uri(uriBuilder -> {
+                    uriBuilder.path(entity)
+                            .queryParam("$top", pageSize)
+                            .queryParam("$skip", skip)
+                            .queryParam("$format", "json");
+                    if (orderBy != null) {
+                        uriBuilder.queryParam("$orderby", orderBy);
+                    }
+                    if (filter != null && !filter.isBlank()) {
+                        uriBuilder.queryParam("$filter", filter);
+                    }
+                    return uriBuilder.build();
+                });
+    }
+
+    // Упреждающий запрос не ждет места в bulkhead: занято — следующая страница будет запрошена в свою очередь
+    private Page tryOpenPage(String entity, String filter, String orderBy, long skip, int pageSize) {
+        return odataBulkhead.tryAcquire()
+                .map(permit -> open(pageRequest(entity, filter, orderBy, skip, pageSize), permit))
+                .orElse(null);
+    }
+
+    private Page openLink(String nextLink) {
+        // Ссылка уже закодирована сервером: разрешаем ее относительно базового адреса и передаем как есть
+        return open(webClient.get().uri(baseUri.resolve(nextLink)), odataBulkhead.acquire());
+    }
+
+    /**
+     * Запускает запрос страницы: тело начинает читаться сразу (не более PAGE_PREFETCH_BUFFERS буферов вперед),
+     * переданное место в bulkhead 1С освобождается при закрытии страницы.
+     */
+    private Page open(WebClient.RequestHeadersSpec<?> request, Bulkhead.Permit permit) {
+        try {
+            Flux<DataBuffer> body = request.retrieve().bodyToFlux(DataBuffer.class);
+            return new Page(DataBufferUtils.subscriberInputStream(body, PAGE_PREFETCH_BUFFERS), permit);
+        } catch (RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+    }
+
+    private record Page(InputStream body, Bulkhead.Permit permit) implements AutoCloseable {
+        @Override
+        public void close() throws IOException {
+            try {
+                body.close();
+            } finally {
+                permit.close();
+            }
+        }
+    }
+
+    private static void closeQuietly(Page page) {
+        if (page == null) {
+            return;
+        }
+        try {
+            page.close();
+        } catch (IOException e) {
+            log.debug("Ошибка закрытия страницы выгрузки: {}", e.getMessage());
+        }
+    }
+}
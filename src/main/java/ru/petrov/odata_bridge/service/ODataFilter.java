@@ -0,0 +1,295 @@
+package ru.petrov.odata_bridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Вычисление простых выражений $filter над строками локальной реплики.
+ * Поддерживаются eq/ne/gt/ge/lt/le, and/or/not, скобки и substringof('текст', Поле).
+ * Все остальное (навигация, прочие функции, арифметика) — {@link IllegalArgumentException}:
+ * такой запрос выполняется в 1С.
+ */
+final class ODataFilter {
+    private static final Set<String> OPERATORS = Set.of("eq", "ne", "gt", "ge", "lt", "le");
+
+    private final Predicate<JsonNode> predicate;
+    private final Set<String> fields;
+
+    private ODataFilter(Predicate<JsonNode> predicate, Set<String> fields) {
+        this.predicate = predicate;
+        this.fields = fields;
+    }
+
+    /**
+     * @throws IllegalArgumentException Выражение не поддерживается локальным вычислителем.
+     */
+    static ODataFilter parse(String filter) {
+        Parser parser = new Parser(tokenize(filter));
+        Predicate<JsonNode> predicate = parser.parseOr();
+        if (parser.position < parser.tokens.size()) {
+            throw new IllegalArgumentException("Лишний фрагмент фильтра: " + parser.tokens.get(parser.position).text);
+        }
+        return new ODataFilter(predicate, Set.copyOf(parser.fields));
+    }
+
+    boolean test(JsonNode row) {
+        return predicate.test(row);
+    }
+
+    /** Поля, упомянутые в фильтре. */
+    Set<String> fields() {
+        return fields;
+    }
+
+    private enum TokenType { IDENTIFIER, STRING, NUMBER, TYPED, OPEN, CLOSE, COMMA }
+
+    private record Token(TokenType type, String text, String prefix) {}
+
+    private static List<Token> tokenize(String filter) {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < filter.length()) {
+            char c = filter.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '(') {
+                tokens.add(new Token(TokenType.OPEN, "(", null));
+                i++;
+            } else if (c == ')') {
+                tokens.add(new Token(TokenType.CLOSE, ")", null));
+                i++;
+            } else if (c == ',') {
+                tokens.add(new Token(TokenType.COMMA, ",", null));
+                i++;
+            } else if (c == '\'') {
+                StringBuilder sb = new StringBuilder();
+                i = readQuoted(filter, i, sb);
+                tokens.add(new Token(TokenType.STRING, sb.toString(), null));
+            } else if (Character.isDigit(c) || (c == '-' && i + 1 < filter.length() && Character.isDigit(filter.charAt(i + 1)))) {
+                int start = i++;
+                while (i < filter.length() && (Character.isDigit(filter.charAt(i)) || filter.charAt(i) == '.')) {
+                    i++;
+                }
+                // Суффиксы типов (10M, 1.5d) и экспоненты не поддерживаются
+                if (i < filter.length() && Character.isLetter(filter.charAt(i))) {
+                    throw new IllegalArgumentException("Неподдерживаемый числовой литерал: " + filter.substring(start, i + 1));
+                }
+                tokens.add(new Token(TokenType.NUMBER, filter.substring(start, i), null));
+            } else if (Character.isLetter(c) || c == '_') {
+                int start = i;
+                while (i < filter.length() && (Character.isLetterOrDigit(filter.charAt(i)) || filter.charAt(i) == '_')) {
+                    i++;
+                }
+                String word = filter.substring(start, i);
+                if (i < filter.length() && filter.charAt(i) == '\'') {
+                    // Типизированный литерал: guid'...', datetime'...'
+                    StringBuilder sb = new StringBuilder();
+                    i = readQuoted(filter, i, sb);
+                    tokens.add(new Token(TokenType.TYPED, sb.toString(), word.toLowerCase(Locale.ROOT)));
+                } else {
+                    tokens.add(new Token(TokenType.IDENTIFIER, word, null));
+                }
+            } else {
+                throw new IllegalArgumentException("Неподдерживаемый символ фильтра: " + c);
+            }
+        }
+        return tokens;
+    }
+
+    // Строка в апострофах, апостроф внутри удваивается
+    private static int readQuoted(String filter, int quote, StringBuilder sb) {
+        int i = quote + 1;
+        while (i < filter.length()) {
+            char c = filter.charAt(i);
+            if (c == '\'') {
+                if (i + 1 < filter.length() && filter.charAt(i + 1) == '\'') {
+                    sb.append('\'');
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            sb.append(c);
+            i++;
+        }
+        throw new IllegalArgumentException("Незакрытая строка в фильтре");
+    }
+
+    private static final class Parser {
+        private final List<Token> tokens;
+        private final Set<String> fields = new HashSet<>();
+        private int position;
+
+        private Parser(List<Token> tokens) {
+            this.tokens = tokens;
+        }
+
+        private Predicate<JsonNode> parseOr() {
+            Predicate<JsonNode> left = parseAnd();
+            while (acceptKeyword("or")) {
+                left = left.or(parseAnd());
+            }
+            return left;
+        }
+
+        private Predicate<JsonNode> parseAnd() {
+            Predicate<JsonNode> left = parseUnary();
+            while (acceptKeyword("and")) {
+                left = left.and(parseUnary());
+            }
+            return left;
+        }
+
+        private Predicate<JsonNode> parseUnary() {
+            if (acceptKeyword("not")) {
+                return parseUnary().negate();
+            }
+            if (accept(TokenType.OPEN)) {
+                Predicate<JsonNode> inner = parseOr();
+                expect(TokenType.CLOSE);
+                return inner;
+            }
+            Token name = expect(TokenType.IDENTIFIER);
+            if ("substringof".equals(name.text) && accept(TokenType.OPEN)) {
+                return parseSubstringOf();
+            }
+            String field = name.text;
+            fields.add(field);
+            String operator = expect(TokenType.IDENTIFIER).text;
+            if (!OPERATORS.contains(operator)) {
+                throw new IllegalArgumentException("Неподдерживаемый оператор: " + operator);
+            }
+            Object literal = parseLiteral();
+            return row -> compare(row.get(field), operator, literal);
+        }
+
+        private Predicate<JsonNode> parseSubstringOf() {
+            String needle = expect(TokenType.STRING).text.toLowerCase(Locale.ROOT);
+            expect(TokenType.COMMA);
+            String field = expect(TokenType.IDENTIFIER).text;
+            expect(TokenType.CLOSE);
+            fields.add(field);
+            // Как и сравнение ПОДОБНО в запросах 1С — без учета регистра
+            Predicate<JsonNode> contains = row -> {
+                JsonNode value = row.get(field);
+                return value != null && value.isTextual() && value.asText().toLowerCase(Locale.ROOT).contains(needle);
+            };
+            // Допускается форма substringof(...) eq true/false
+            if (position + 1 < tokens.size() && "eq".equals(tokens.get(position).text)
+                    && tokens.get(position + 1).type == TokenType.IDENTIFIER) {
+                position++;
+                String flag = expect(TokenType.IDENTIFIER).text;
+                if ("false".equals(flag)) {
+                    return contains.negate();
+                }
+                if (!"true".equals(flag)) {
+                    throw new IllegalArgumentException("Ожидалось true или false после substringof");
+                }
+            }
+            return contains;
+        }
+
+        private Object parseLiteral() {
+            Token token = next();
+            return switch (token.type) {
+                case STRING -> token.text;
+                case NUMBER -> new BigDecimal(token.text);
+                case TYPED -> switch (token.prefix) {
+                    case "guid" -> new Guid(token.text.toLowerCase(Locale.ROOT));
+                    case "datetime" -> token.text;
+                    default -> throw new IllegalArgumentException("Неподдерживаемый литерал: " + token.prefix);
+                };
+                case IDENTIFIER -> switch (token.text) {
+                    case "true" -> Boolean.TRUE;
+                    case "false" -> Boolean.FALSE;
+                    case "null" -> Null.INSTANCE;
+                    default -> throw new IllegalArgumentException("Сравнение полей между собой не поддерживается: " + token.text);
+                };
+                default -> throw new IllegalArgumentException("Ожидалось значение, получено: " + token.text);
+            };
+        }
+
+        private boolean acceptKeyword(String keyword) {
+            if (position < tokens.size() && tokens.get(position).type == TokenType.IDENTIFIER
+                    && keyword.equals(tokens.get(position).text)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean accept(TokenType type) {
+            if (position < tokens.size() && tokens.get(position).type == type) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        private Token expect(TokenType type) {
+            Token token = next();
+            if (token.type != type) {
+                throw new IllegalArgumentException("Ожидалось " + type + ", получено: " + token.text);
+            }
+            return token;
+        }
+
+        private Token next() {
+            if (position >= tokens.size()) {
+                throw new IllegalArgumentException("Неожиданный конец фильтра");
+            }
+            return tokens.get(position++);
+        }
+    }
+
+    private record Guid(String value) {}
+
+    private enum Null { INSTANCE }
+
+    private static boolean compare(JsonNode value, String operator, Object literal) {
+        boolean missing = value == null || value.isNull();
+        if (literal == Null.INSTANCE) {
+            return switch (operator) {
+                case "eq" -> missing;
+                case "ne" -> !missing;
+                default -> false;
+            };
+        }
+        if (missing) {
+            return "ne".equals(operator);
+        }
+        int order;
+        if (literal instanceof BigDecimal number) {
+            if (!value.isNumber()) {
+                return false;
+            }
+            order = value.decimalValue().compareTo(number);
+        } else if (literal instanceof Boolean flag) {
+            if (!value.isBoolean()) {
+                return false;
+            }
+            order = Boolean.compare(value.booleanValue(), flag);
+        } else if (literal instanceof Guid guid) {
+            order = value.asText().toLowerCase(Locale.ROOT).compareTo(guid.value());
+        } else {
+            // Строки и даты (1С отдает даты в ISO-формате, их порядок совпадает с лексикографическим).
+            // Строки 1С сравнивает без учета регистра — как и реплика, чтобы ответы не расходились с 1С
+            order = value.asText().compareToIgnoreCase((String) literal);
+        }
+        return switch (operator) {
+            case "eq" -> order == 0;
+            case "ne" -> order != 0;
+            case "gt" -> order > 0;
+            case "ge" -> order >= 0;
+            case "lt" -> order < 0;
+            default -> order <= 0;
+        };
+    }
+}
@@ -2,57 +2,84 @@ package ru.petrov.odata_bridge.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.ai.chat.model.ToolContext;
 import org.springframework.ai.tool.annotation.Tool;
 import org.springframework.ai.tool.annotation.ToolParam;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.util.UriBuilder;
+import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 import ru.petrov.odata_bridge.config.IndexingConfig;
 import ru.petrov.odata_bridge.config.ODataConfig;
-import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.model.EntityMetadata;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+import ru.petrov.odata_bridge.model.ODataQuery;
+import ru.petrov.odata_bridge.model.QueryResult;
 
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamConstants;
-import javax.xml.stream.XMLStreamReader;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import javax.xml.stream.XMLStreamException;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @Service
 public class ODataService {
     private final WebClient webClient;
     private final IndexingConfig indexingConfig;
-
+    private final MetadataCatalogService catalogService;
+    private final QueryResultCache resultCache;
+    private final ResultShaper resultShaper;
+    private final CatalogReplica replica;
+    private final EntityCountService countService;
+    private final PipelineMetrics metrics;
+    private final ODataConfig.Batch batchConfig;
+    private final SingleFlight<ODataQuery, QueryResult> queryFlight;
+    private final Bulkhead odataBulkhead;
+    /** Ключ контекста инструмента: поля, найденные в индексе метаданных по вопросу пользователя (основа $select). */
+    public static final String RELEVANT_FIELDS = "relevantFields";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Имя поля слева от оператора сравнения OData: "ИНН eq '123'", "Сумма gt 10"
+    private static final Pattern FILTER_FIELD =
+            Pattern.compile("(?<![\\p{L}\\p{N}_'/])([\\p{L}_][\\p{L}\\p{N}_]*)\\s+(?:eq|ne|gt|ge|lt|le)\\s");
+    // Сколько буферов тела $metadata запрашивается вперед, пока StAX разбирает текущие
+    private static final int METADATA_PREFETCH_BUFFERS = 16;
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ODataService.class);
 
-    public ODataService(IndexingConfig indexingConfig, ODataConfig oDataConfig) {
+    public ODataService(@Qualifier("odataWebClient") WebClient webClient, IndexingConfig indexingConfig, ODataConfig oDataConfig,
+                        MetadataCatalogService catalogService, QueryResultCache resultCache, ResultShaper resultShaper,
+                        CatalogReplica replica, EntityCountService countService, PipelineMetrics metrics,
+                        MeterRegistry meterRegistry, @Qualifier("odataBulkhead") Bulkhead odataBulkhead) {
+        this.webClient = webClient;
         this.indexingConfig = indexingConfig;
-        String auth = oDataConfig.username() + ":" + oDataConfig.password();
-        String encodedAuth = Base64.getEncoder().encodeToString(auth.getBytes(StandardCharsets.UTF_8));
-        // Устанавливаем лимит, например, 50 МБ (50 * 1024 * 1024)
-        ExchangeStrategies strategies = ExchangeStrategies.builder()
-                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize(50 * 1024 * 1024))
-                .build();
-        this.webClient = WebClient.builder()
-                .baseUrl(oDataConfig.baseUrl())
-                .defaultHeader("Authorization", "Basic " + encodedAuth)
-                .exchangeStrategies(strategies) // Применяем стратегию
-                .filter(logRequest())
-                .build();
-    }
-
-    private ExchangeFilterFunction logRequest() {
-        return ExchangeFilterFunction.ofRequestProcessor(clientRequest -> {
-            log.info(">>>> ЗАПРОС К 1С: {} {}", clientRequest.method(), clientRequest.url());
-            return Mono.just(clientRequest);
-        });
+        this.catalogService = catalogService;
+        this.resultCache = resultCache;
+        this.resultShaper = resultShaper;
+        this.replica = replica;
+        this.countService = countService;
+        this.metrics = metrics;
+        this.batchConfig = oDataConfig.batch();
+        this.odataBulkhead = odataBulkhead;
+        this.queryFlight = new SingleFlight<>("odata_query", meterRegistry);
     }
 
     /**
@@ -63,6 +90,7 @@ public class ODataService {
      * @param filter    Строка фильтрации в формате OData (опционально).
      * @param top       Количество возвращаемых записей.
      * @param countOnly Если true, возвращает только количество записей через /$count.
+     * @param toolContext Контекст вызова от этапа 2: поля, относящиеся к вопросу ({@link #RELEVANT_FIELDS}).
      * @return Ответ от 1С в виде строки (JSON или число).
      */
     @Tool(
@@ -73,131 +101,399 @@ public class ODataService {
             @ToolParam(description = "Имя сущности из метаданных (напр. Catalog_Контрагенты)") String entity,
             @ToolParam(description = "Фильтр OData (напр. ИНН eq '12345' или Number eq '001')") String filter,
             @ToolParam(description = "Лимит записей (по умолчанию 5)") Integer top,
-            @ToolParam(description = "Только если нужен подсчет количества (Boolean)") Boolean countOnly
+            @ToolParam(description = "Только если нужен подсчет количества (Boolean)") Boolean countOnly,
+            ToolContext toolContext
     ) {
-        boolean isCount = Boolean.TRUE.equals(countOnly);
         log.info("[AI TOOL CALL] Метод: executeSmartQuery | Сущность: {} | Фильтр: {} | Лимит: {} | count {}",
                 entity, filter, top, countOnly);
-        // Определяем лимит
-        int limit = (top != null) ? top : 5;
-
-        return webClient.get()
-                .uri(uriBuilder -> {
-                    // Если счетчик — добавляем /$count к пути
-                    uriBuilder.path(isCount ? entity + "/$count" : entity);
-                    if (!isCount) {
-                        uriBuilder
-                                .queryParam("$top", limit)
-                                .queryParam("$format", "json");
-                    }
-                    // Добавляем фильтр только если он передан и не пуст
-                    if (filter != null && !filter.isBlank()) {
-                        uriBuilder.queryParam("$filter", filter);
-                    }
+        // Откуда получен ответ — тег outcome гистограммы этапа tool
+        Timer.Sample sample = Timer.start();
+        String outcome = "error";
+        try {
+            String validationError = validateQuery(entity, filter);
+            if (validationError != null) {
+                log.warn("[AI TOOL CALL] Запрос отклонен до обращения к 1С: {}", validationError);
+                outcome = "rejected";
+                return validationError;
+            }
+            ODataQuery query = ODataQuery.of(entity, filter, top, countOnly).withFields(relevantFields(toolContext));
 
-                    return uriBuilder.build();
-                })
-                .retrieve()
-                // Используем ParameterizedTypeReference для десериализации JSON в список Map
-                .bodyToMono(String.class) // Получаем СНАЧАЛА всё как строку (и JSON, и цифру)
-                .flatMap(body -> {
-                    if (isCount) return Mono.just(body);
-
-                    try {
-                        ObjectMapper mapper = new ObjectMapper();
-                        mapper.enable(SerializationFeature.INDENT_OUTPUT);
-
-                        JsonNode root = mapper.readTree(body);
-
-                        // Проверяем наличие ключа "value"
-                        if (root.has("value")) {
-                            JsonNode valueNode = root.get("value");
-                            // Форматируем ТОЛЬКО содержимое массива value
-                            String prettyJson = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(valueNode);
-                            return Mono.just(prettyJson);
-                        }
-
-                        // Если ключа value нет (одиночный объект), форматируем всё, но без лишних полей
-                        String prettyJson = mapper.writerWithDefaultPrettyPrinter().writeValueAsString(root);
-                        return Mono.just(prettyJson);
-
-                    } catch (Exception e) {
-                        log.error("JSON formatting error: {}", e.getMessage());
-                        return Mono.just("```json\n" + body + "\n```");
-                    }
-                })
-                .block();
+            Optional<String> local = localAnswer(query);
+            if (local.isPresent()) {
+                log.info("[AI TOOL CALL] Ответ без обращения к 1С");
+                outcome = "local";
+                return toResult(query, local.get(), null).body();
+            }
+            QueryResultCache.Lookup cached = resultCache.lookup(query);
+            if (cached != null && cached.fresh()) {
+                log.info("[AI TOOL CALL] Ответ из кеша");
+                outcome = "cache";
+                return cached.result().body();
+            }
+            if (cached != null && resultCache.revalidate()) {
+                boolean stillValid = isStillValid(query, cached.result());
+                resultCache.revalidated(query, cached.result(), stillValid);
+                if (stillValid) {
+                    log.info("[AI TOOL CALL] Данные в 1С не изменились, ответ из кеша");
+                    outcome = "revalidated";
+                    return cached.result().body();
+                }
+            }
+
+            // Одинаковые одновременные запросы (в т.ч. $count) разделяют один HTTP-вызов к 1С
+            QueryResult result = queryFlight.execute(query, () -> fetch(query)).block();
+            resultCache.put(query, result);
+            if (query.countOnly() && !query.hasFilter()) {
+                countService.record(query.entity(), result.body());
+            }
+            outcome = "odata";
+            return result.body();
+        } finally {
+            sample.stop(metrics.stageTimer(PipelineMetrics.TOOL, entity, outcome));
+        }
     }
 
-    public List<FieldInfo> parseXmlMetadata() {
-        List<FieldInfo> fields = new ArrayList<>();
+    @SuppressWarnings("unchecked")
+    private static Collection<String> relevantFields(ToolContext toolContext) {
+        if (toolContext == null || toolContext.getContext() == null) {
+            return null;
+        }
+        return toolContext.getContext().get(RELEVANT_FIELDS) instanceof Collection<?> fields ? (Collection<String>) fields : null;
+    }
 
-        // Получаем поток XML от 1С
-        // В ODataService.parseXmlMetadata()
-        InputStream is = webClient.get()
-                .uri("$metadata")
-                .accept(MediaType.APPLICATION_XML) // Явно просим XML
-                .retrieve()
-                .bodyToMono(org.springframework.core.io.buffer.DataBuffer.class)
-                .map(dataBuffer -> dataBuffer.asInputStream(true)) // true — освободить буфер после чтения
-                .block();
+    /**
+     * Заранее выполняет запрос и кладет результат в кеш (спекулятивная выборка этапа 1).
+     * Если тот же запрос придет от модели, пока этот еще выполняется, они объединятся в один вызов 1С.
+     */
+    public void prefetch(ODataQuery query) {
+        if (localAnswer(query).isPresent()) {
+            return;
+        }
+        if (resultCache.hasFresh(query)) {
+            return;
+        }
+        QueryResult result = queryFlight.execute(query, () -> fetch(query)).block();
+        resultCache.putPrefetched(query, result);
+    }
 
+    // Заранее посчитанное количество строк (только без фильтра) или локальная реплика справочника
+    private Optional<String> localAnswer(ODataQuery query) {
+        if (query.countOnly() && !query.hasFilter()) {
+            OptionalLong count = countService.count(query.entity());
+            if (count.isPresent()) {
+                return Optional.of(Long.toString(count.getAsLong()));
+            }
+        }
+        return replica.query(query);
+    }
 
+    /**
+     * Выполняет несколько запросов к 1С за одно обращение через $batch.
+     * Свежие ответы берутся из кеша, одинаковые запросы отправляются один раз.
+     *
+     * @param queries Запросы (имена сущностей и фильтры должны быть уже проверены {@link #validateQuery}).
+     * @return Ответы в порядке запросов — в том же виде, что возвращает executeSmartQuery;
+     *         на запросы, которые не удалось выполнить, — текст ошибки (остальные ответы от этого не теряются).
+     */
+    public List<String> executeBatch(List<ODataQuery> queries) {
+        String[] answers = new String[queries.size()];
+        Map<ODataQuery, List<Integer>> pending = new LinkedHashMap<>();
+        for (int i = 0; i < queries.size(); i++) {
+            ODataQuery query = queries.get(i);
+            Optional<String> local = localAnswer(query);
+            QueryResultCache.Lookup cached = local.isPresent() ? null : resultCache.lookup(query);
+            if (local.isPresent()) {
+                answers[i] = toResult(query, local.get(), null).body();
+            } else if (cached != null && cached.fresh()) {
+                answers[i] = cached.result().body();
+            } else {
+                pending.computeIfAbsent(query, k -> new ArrayList<>()).add(i);
+            }
+        }
+        log.info("Пакет из {} запросов: из кеша и локально {}, в 1С {}", queries.size(),
+                queries.size() - pending.values().stream().mapToInt(List::size).sum(), pending.size());
+
+        List<ODataQuery> distinct = new ArrayList<>(pending.keySet());
+        int chunkSize = Math.max(1, batchConfig.maxParts());
+        for (int from = 0; from < distinct.size(); from += chunkSize) {
+            List<ODataQuery> chunk = distinct.subList(from, Math.min(distinct.size(), from + chunkSize));
+            List<String> bodies = batchConfig.enabled() ? sendBatchOrFail(chunk) : chunk.stream()
+                    .map(this::fetchOrFail)
+                    .toList();
+            for (int i = 0; i < chunk.size(); i++) {
+                for (int index : pending.get(chunk.get(i))) {
+                    answers[index] = bodies.get(i);
+                }
+            }
+        }
+        return List.of(answers);
+    }
+
+    // Сбой всего $batch (сеть, 503 bulkhead, неразборчивый ответ) превращается в ошибку каждого его запроса
+    private List<String> sendBatchOrFail(List<ODataQuery> chunk) {
+        try {
+            return sendBatch(chunk);
+        } catch (RuntimeException e) {
+            log.warn("Пакет из {} запросов к 1С не выполнен: {}", chunk.size(), e.getMessage());
+            return chunk.stream().map(query -> "Ошибка 1С: " + e.getMessage()).toList();
+        }
+    }
+
+    private String fetchOrFail(ODataQuery query) {
         try {
-            XMLInputFactory factory = XMLInputFactory.newInstance();
-            // Отключаем внешние сущности для безопасности
-            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
-            XMLStreamReader reader = factory.createXMLStreamReader(is);
-
-            String currentEntity = null;
-
-            while (reader.hasNext()) {
-                int event = reader.next();
-                if (event == XMLStreamConstants.START_ELEMENT) {
-                    String localName = reader.getLocalName();
-
-                    if ("EntityType".equals(localName)) {
-                        // Нашли начало описания таблицы (например, Catalog_Контрагенты)
-                        String entityName = reader.getAttributeValue(null, "Name");
-
-                        // 1. Фильтрация ТАБЛИЦ (Белый и Черный списки сущностей)
-                        boolean isExcluded = indexingConfig.excludeEntities().stream().anyMatch(entityName::contains);
-                        boolean isAllowed = indexingConfig.includeOnly() == null || indexingConfig.includeOnly().isEmpty() ||
-                                indexingConfig.includeOnly().stream().anyMatch(entityName::equals);
-
-                        currentEntity = (isAllowed && !isExcluded) ? entityName : null;
-                        if (currentEntity != null) {
-                            // Создаем Мастер-запись для всей таблицы
-                            String humanName = currentEntity.replace("Catalog_", "Справочник ").replace("Document_", "Документ ");
-                            fields.add(new FieldInfo(currentEntity, "TABLE_HEADER", "System", "[СУЩНОСТЬ] " + humanName, true));
-                        }
-
-                    } else if ("Property".equals(localName) && currentEntity != null) {
-                        // Нашли поле внутри текущей таблицы
-                        String fieldName = reader.getAttributeValue(null, "Name");
-                        String fieldType = reader.getAttributeValue(null, "Type");
-
-                        // 2. Фильтрация конкретных полей (например, Ref_Key)
-                        if (indexingConfig.excludeFields().contains(fieldName)) {
-                            continue;
-                        }
-                        // Если таблица разрешена и поле не в черном списке — индексируем
-                        String cleanEntity = currentEntity.replace("Catalog_", "").replace("Document_", "");
-                        String fieldDesc = String.format("[ПОЛЕ] %s в таблице %s", fieldName, cleanEntity);
-                        fields.add(new FieldInfo(currentEntity, fieldName, fieldType, fieldDesc, false));
+            QueryResult result = queryFlight.execute(query, () -> fetch(query)).block();
+            resultCache.put(query, result);
+            return result.body();
+        } catch (RuntimeException e) {
+            log.warn("Запрос пакета к {} не выполнен: {}", query.entity(), e.getMessage());
+            return "Ошибка 1С: " + e.getMessage();
+        }
+    }
 
+    private List<String> sendBatch(List<ODataQuery> chunk) {
+        String boundary = ODataBatchCodec.newBoundary();
+        List<URI> uris = chunk.stream()
+                .map(query -> buildQueryUri(UriComponentsBuilder.newInstance(), query, selectFor(query)))
+                .toList();
+        List<ODataBatchCodec.Part> parts;
+        try (Bulkhead.Permit ignored = odataBulkhead.acquire()) {
+            var response = webClient.post()
+                    .uri("$batch")
+                    .contentType(MediaType.parseMediaType("multipart/mixed; boundary=" + boundary))
+                    .bodyValue(ODataBatchCodec.encode(boundary, uris))
+                    .retrieve()
+                    .toEntity(String.class)
+                    .block();
+            MediaType contentType = response.getHeaders().getContentType();
+            String responseBoundary = contentType == null ? null : contentType.getParameter("boundary");
+            if (responseBoundary == null || response.getBody() == null) {
+                throw new IllegalStateException("1С вернула ответ $batch без multipart-разделителя");
+            }
+            parts = ODataBatchCodec.decode(responseBoundary.replace("\"", ""), response.getBody());
+        }
+        if (parts.size() != chunk.size()) {
+            throw new IllegalStateException("Ответ $batch содержит " + parts.size() + " частей вместо " + chunk.size());
+        }
+
+        List<String> bodies = new ArrayList<>(chunk.size());
+        for (int i = 0; i < chunk.size(); i++) {
+            ODataQuery query = chunk.get(i);
+            ODataBatchCodec.Part part = parts.get(i);
+            if (!part.isSuccess()) {
+                // Ошибки не кешируются
+                log.warn("Запрос пакета к {} завершился статусом {}: {}", query.entity(), part.status(), part.body());
+                bodies.add("Ошибка 1С (" + part.status() + "): " + part.body());
+                continue;
+            }
+            QueryResult result = toResult(query, part.body(), part.etag());
+            resultCache.put(query, result);
+            bodies.add(result.body());
+        }
+        return bodies;
+    }
+
+    // Ответ, уже прочитанный целиком (часть $batch или локальная реплика), в том же виде, что и при прямом запросе
+    private QueryResult toResult(ODataQuery query, String body, String etag) {
+        if (query.countOnly()) {
+            return new QueryResult(body, null, null);
+        }
+        return resultShaper.enabled() ? resultShaper.shape(body, etag) : formatResult(body, etag);
+    }
+
+    private Mono<QueryResult> fetch(ODataQuery query) {
+        // Место в bulkhead занимается на время HTTP-вызова, объединенные запросы его не расходуют
+        return Mono.using(
+                odataBulkhead::acquire,
+                permit -> {
+                    WebClient.ResponseSpec response = webClient.get()
+                            .uri(uriBuilder -> buildQueryUri(uriBuilder, query, selectFor(query)))
+                            .retrieve();
+                    if (!query.countOnly() && resultShaper.enabled()) {
+                        // Тело разбирается потоково, блокирующее чтение уводим с потоков Netty
+                        return response.toEntityFlux(DataBuffer.class)
+                                .publishOn(Schedulers.boundedElastic())
+                                .map(entity -> resultShaper.shape(entity.getBody(), entity.getHeaders().getETag()));
                     }
-                } else if (event == XMLStreamConstants.END_ELEMENT) {
-                    if ("EntityType".equals(reader.getLocalName())) {
-                        currentEntity = null; // Закрыли текущую таблицу
-                    }
-                }
+                    return response
+                            .toEntity(String.class) // Получаем СНАЧАЛА всё как строку (и JSON, и цифру) вместе с заголовками
+                            .map(entity -> {
+                                String body = entity.getBody() == null ? "" : entity.getBody();
+                                if (query.countOnly()) {
+                                    return new QueryResult(body, null, null);
+                                }
+                                return formatResult(body, entity.getHeaders().getETag());
+                            });
+                },
+                Bulkhead.Permit::close);
+    }
+
+    private String selectFor(ODataQuery query) {
+        return query.countOnly() ? null : resultShaper.selectFor(query.entity(), query.filter(), query.fields());
+    }
+
+    private URI buildQueryUri(UriBuilder uriBuilder, ODataQuery query, String select) {
+        // Если счетчик — добавляем /$count к пути
+        uriBuilder.path(query.countOnly() ? query.entity() + "/$count" : query.entity());
+        if (!query.countOnly()) {
+            uriBuilder
+                    .queryParam("$top", query.top())
+                    .queryParam("$format", "json");
+        }
+        if (select != null) {
+            uriBuilder.queryParam("$select", select);
+        }
+        // Добавляем фильтр только если он передан и не пуст
+        if (query.hasFilter()) {
+            uriBuilder.queryParam("$filter", query.filter());
+        }
+        return uriBuilder.build();
+    }
+
+    static QueryResult formatResult(String body, String etag) {
+        try {
+            JsonNode root = MAPPER.readTree(body);
+
+            // Проверяем наличие ключа "value"
+            if (root.has("value")) {
+                JsonNode valueNode = root.get("value");
+                // Форматируем ТОЛЬКО содержимое массива value
+                String prettyJson = MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(valueNode);
+                return new QueryResult(prettyJson, etag, ResultShaper.VersionStamp.of(valueNode));
+            }
+
+            // Если ключа value нет (одиночный объект), форматируем всё, но без лишних полей
+            String prettyJson = MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(root);
+            return new QueryResult(prettyJson, etag, null);
+
+        } catch (Exception e) {
+            log.error("JSON formatting error: {}", e.getMessage());
+            return new QueryResult("```json\n" + body + "\n```", etag, null);
+        }
+    }
+
+    /**
+     * Перепроверка просроченной записи кеша без полной выгрузки: условный GET по ETag,
+     * а если 1С его не присылает — легкий запрос только Ref_Key и DataVersion тех же строк.
+     */
+    private boolean isStillValid(ODataQuery query, QueryResult cached) {
+        if (query.countOnly()) {
+            return false;
+        }
+        try (Bulkhead.Permit ignored = odataBulkhead.acquire()) {
+            if (cached.etag() != null) {
+                Boolean notModified = webClient.get()
+                        .uri(uriBuilder -> buildQueryUri(uriBuilder, query, selectFor(query)))
+                        .header(HttpHeaders.IF_NONE_MATCH, cached.etag())
+                        .exchangeToMono(response -> response.releaseBody()
+                                .thenReturn(response.statusCode().value() == HttpStatus.NOT_MODIFIED.value()))
+                        .block();
+                return Boolean.TRUE.equals(notModified);
+            }
+            if (cached.versionStamp() != null) {
+                String probe = webClient.get()
+                        .uri(uriBuilder -> buildQueryUri(uriBuilder, query, "Ref_Key,DataVersion"))
+                        .retrieve()
+                        .bodyToMono(String.class)
+                        .block();
+                JsonNode value = MAPPER.readTree(probe).path("value");
+                return cached.versionStamp().equals(ResultShaper.VersionStamp.of(value));
             }
-            log.info("Парсинг завершен. Найдено полей: {}", fields.size());
         } catch (Exception e) {
-            log.error("Ошибка парсинга метаданных: ", e);
+            log.warn("Не удалось перепроверить версию данных {}: {}", query.entity(), e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Проверяет имена сущности и полей фильтра по справочнику метаданных, чтобы не отправлять в 1С
+     * заведомо ошибочный запрос. Пока справочник не загружен, проверка пропускается.
+     *
+     * @return Текст ошибки для модели или null, если запрос корректен.
+     */
+    public String validateQuery(String entity, String filter) {
+        MetadataCatalog catalog = catalogService.catalog();
+        if (catalog.isEmpty()) {
+            return null;
+        }
+        Optional<MetadataCatalog.EntityFields> fields = catalog.entity(entity);
+        if (fields.isEmpty()) {
+            return "Неизвестная сущность 1С: " + entity + ". Доступные: " + String.join(", ", catalog.entityNames());
+        }
+        for (String field : filterFields(filter)) {
+            // Системные поля исключены из индекса, но фильтровать по ним можно
+            boolean isSystem = indexingConfig.excludeFields() != null && indexingConfig.excludeFields().contains(field);
+            if (!isSystem && !fields.get().hasField(field)) {
+                return "Поле " + field + " отсутствует в сущности " + entity + ". Доступные поля: "
+                        + String.join(", ", fields.get().names());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Имена полей, по которым сравнивает фильтр OData, в порядке появления.
+     */
+    static Set<String> filterFields(String filter) {
+        Set<String> fields = new LinkedHashSet<>();
+        if (filter != null && !filter.isBlank()) {
+            Matcher matcher = FILTER_FIELD.matcher(filter);
+            while (matcher.find()) {
+                fields.add(matcher.group(1));
+            }
         }
         return fields;
     }
 
+    /**
+     * Потоковое чтение $metadata: тело ответа читается по мере разбора, без буферизации всего документа,
+     * а таблицы выдаются по одной с учетом обратного давления подписчика.
+     * Единственный потребитель — индексация: одновременные запуски объединяются ее reindexFlight
+     * и блокировкой режимов, поэтому $metadata не скачивается параллельно.
+     *
+     * @return Поток разрешенных фильтрами таблиц с их полями.
+     */
+    public Flux<EntityMetadata> streamMetadata() {
+        Flux<DataBuffer> body = webClient.get()
+                .uri("$metadata")
+                .accept(MediaType.APPLICATION_XML) // Явно просим XML
+                .retrieve()
+                .bodyToFlux(DataBuffer.class);
+
+        return Flux.using(
+                        () -> new MetadataXmlReader(
+                                DataBufferUtils.subscriberInputStream(body, METADATA_PREFETCH_BUFFERS),
+                                this::isEntityIndexed,
+                                indexingConfig.excludeFields()),
+                        reader -> Flux.<EntityMetadata>generate(sink -> {
+                            try {
+                                EntityMetadata entity = reader.nextEntity();
+                                if (entity == null) {
+                                    sink.complete();
+                                } else {
+                                    sink.next(entity);
+                                }
+                            } catch (XMLStreamException e) {
+                                sink.error(e);
+                            }
+                        }),
+                        reader -> {
+                            try {
+                                reader.close();
+                            } catch (Exception e) {
+                                log.warn("Не удалось закрыть поток метаданных: {}", e.getMessage());
+                            }
+                        })
+                // Чтение из InputStream блокирующее — уводим его с потоков Netty
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    // Фильтрация ТАБЛИЦ (Белый и Черный списки сущностей)
+    private boolean isEntityIndexed(String entityName) {
+        boolean isExcluded = indexingConfig.excludeEntities() != null &&
+                indexingConfig.excludeEntities().stream().anyMatch(entityName::contains);
+        boolean isAllowed = indexingConfig.includeOnly() == null || indexingConfig.includeOnly().isEmpty() ||
+                indexingConfig.includeOnly().stream().anyMatch(entityName::equals);
+        return isAllowed && !isExcluded;
+    }
+
 }
@@ -0,0 +1,284 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Очередь с приоритетами перед всеми вызовами Ollama вместо простого bulkhead.
+ * Свободное место отдается сначала диалогу (классификатор, этап 2), затем векторизации вопросов
+ * (поиск заголовков, кеш классификации), затем пакетным вопросам (/api/ai/ask/batch) и только потом
+ * порциям индексации. У каждого класса свой лимит
+ * одновременных вызовов, а пока вопросов пользователей в очереди не меньше indexingPauseQueueDepth,
+ * новые порции индексации не запускаются — уже отправленные дорабатывают.
+ */
+public class OllamaScheduler {
+    private static final String NAME = "ollama";
+    private static final ThreadLocal<Priority> EMBEDDING_PRIORITY = new ThreadLocal<>();
+
+    /** Классы вызовов в порядке убывания приоритета. */
+    public enum Priority {
+        CHAT("chat"),
+        QUERY_EMBEDDING("query_embedding"),
+        BATCH("batch"),
+        INDEXING("indexing");
+
+        private final String tag;
+
+        Priority(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxConcurrent;
+    private final int[] limits;
+    private final int[] active = new int[Priority.values().length];
+    private final List<ArrayDeque<Waiter>> queues = new ArrayList<>();
+    private final int indexingPauseQueueDepth;
+    private final Duration acquireTimeout;
+    private final Duration indexingAcquireTimeout;
+    private final Timer[] waitTimers = new Timer[Priority.values().length];
+    private int running;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(OllamaScheduler.class);
+
+    /**
+     * @param maxConcurrent           Одновременных вызовов Ollama всего
+     * @param queryEmbeddingMax       Из них — векторизаций вопросов
+     * @param batchMax                Из них — вызовов пакетных вопросов (классификатор, планировщик и векторизация)
+     * @param indexingMax             Из них — порций индексации
+     * @param indexingPauseQueueDepth Вопросов в очереди (диалог и векторизация), при котором индексация приостанавливается
+     * @param acquireTimeout          Сколько вопрос ждет места, прежде чем получить 503
+     * @param indexingAcquireTimeout  То же для порции индексации: она может долго ждать, пока отвечают пользователям
+     */
+    public OllamaScheduler(int maxConcurrent, int queryEmbeddingMax, int batchMax, int indexingMax, int indexingPauseQueueDepth,
+                           Duration acquireTimeout, Duration indexingAcquireTimeout, MeterRegistry meterRegistry) {
+        this.maxConcurrent = maxConcurrent;
+        this.limits = new int[]{maxConcurrent, Math.min(maxConcurrent, queryEmbeddingMax),
+                Math.min(maxConcurrent, batchMax), Math.min(maxConcurrent, indexingMax)};
+        this.indexingPauseQueueDepth = Math.max(1, indexingPauseQueueDepth);
+        this.acquireTimeout = acquireTimeout;
+        this.indexingAcquireTimeout = indexingAcquireTimeout;
+        for (Priority priority : Priority.values()) {
+            queues.add(new ArrayDeque<>());
+            Gauge.builder("odata.bridge.ollama.queue", this, s -> s.queueDepth(priority))
+                    .tag("priority", priority.tag)
+                    .register(meterRegistry);
+            Gauge.builder("odata.bridge.ollama.active", this, s -> s.active(priority))
+                    .tag("priority", priority.tag)
+                    .register(meterRegistry);
+            waitTimers[priority.ordinal()] = Timer.builder("odata.bridge.ollama.wait")
+                    .tag("priority", priority.tag)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }
+        Gauge.builder("odata.bridge.ollama.indexing.paused", this, s -> s.indexingPaused() ? 1 : 0)
+                .register(meterRegistry);
+    }
+
+    private static final class Waiter {
+        private final Condition admitted;
+        private boolean granted;
+
+        private Waiter(Condition admitted) {
+            this.admitted = admitted;
+        }
+    }
+
+    /**
+     * Разрешение на один вызов Ollama; освобождается через close().
+     */
+    public final class Permit implements AutoCloseable {
+        private final Priority priority;
+        private boolean released;
+
+        private Permit(Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (!released) {
+                    released = true;
+                    release(priority);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Ожидает место для вызова указанного класса.
+     *
+     * @throws BulkheadFullException если место не освободилось за отведенное время.
+     */
+    public Permit acquire(Priority priority) {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            // Без очереди — только если впереди нет ожидающих того же или более высокого класса
+            if (!hasWaitersAtOrAbove(priority) && canAdmit(priority)) {
+                admit(priority);
+            } else {
+                await(priority);
+            }
+        } finally {
+            lock.unlock();
+        }
+        waitTimers[priority.ordinal()].record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return new Permit(priority);
+    }
+
+    /**
+     * @return Сколько вызовов указанного класса может выполняться одновременно.
+     */
+    public int limit(Priority priority) {
+        return limits[priority.ordinal()];
+    }
+
+    public <T> T call(Priority priority, Supplier<T> action) {
+        try (Permit ignored = acquire(priority)) {
+            return action.get();
+        }
+    }
+
+    /**
+     * Выполняет действие, помечая векторизацию в текущем потоке указанным классом
+     * (по умолчанию векторизация считается векторизацией вопроса).
+     */
+    public static <T> T withEmbeddingPriority(Priority priority, Supplier<T> action) {
+        Priority previous = EMBEDDING_PRIORITY.get();
+        EMBEDDING_PRIORITY.set(priority);
+        try {
+            return action.get();
+        } finally {
+            if (previous == null) {
+                EMBEDDING_PRIORITY.remove();
+            } else {
+                EMBEDDING_PRIORITY.set(previous);
+            }
+        }
+    }
+
+    static Priority embeddingPriority() {
+        Priority priority = EMBEDDING_PRIORITY.get();
+        return priority == null ? Priority.QUERY_EMBEDDING : priority;
+    }
+
+    private void await(Priority priority) {
+        Waiter waiter = new Waiter(lock.newCondition());
+        ArrayDeque<Waiter> queue = queues.get(priority.ordinal());
+        queue.addLast(waiter);
+        // Впереди могут быть только ожидающие классов, упершихся в свой лимит, — тогда место есть уже сейчас
+        dispatch();
+        long remaining = (priority == Priority.INDEXING ? indexingAcquireTimeout : acquireTimeout).toNanos();
+        try {
+            while (!waiter.granted) {
+                if (remaining <= 0) {
+                    queue.remove(waiter);
+                    // Очередь вопросов стала короче — возможно, индексацию пора возобновить
+                    dispatch();
+                    throw new BulkheadFullException(NAME);
+                }
+                remaining = waiter.admitted.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.granted) {
+                // Место уже выдано, но вызывающий его не получит
+                release(priority);
+            } else {
+                queue.remove(waiter);
+                dispatch();
+            }
+            throw new BulkheadFullException(NAME);
+        }
+    }
+
+    private boolean hasWaitersAtOrAbove(Priority priority) {
+        for (int p = 0; p <= priority.ordinal(); p++) {
+            if (!queues.get(p).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean canAdmit(Priority priority) {
+        if (running >= maxConcurrent || active[priority.ordinal()] >= limits[priority.ordinal()]) {
+            return false;
+        }
+        return priority != Priority.INDEXING || interactiveWaiting() < indexingPauseQueueDepth;
+    }
+
+    private int interactiveWaiting() {
+        return queues.get(Priority.CHAT.ordinal()).size() + queues.get(Priority.QUERY_EMBEDDING.ordinal()).size();
+    }
+
+    private void admit(Priority priority) {
+        active[priority.ordinal()]++;
+        running++;
+    }
+
+    private void release(Priority priority) {
+        active[priority.ordinal()]--;
+        running--;
+        dispatch();
+    }
+
+    // Освободившиеся места раздаются ожидающим в порядке приоритета, внутри класса — по очереди
+    private void dispatch() {
+        for (Priority priority : Priority.values()) {
+            ArrayDeque<Waiter> queue = queues.get(priority.ordinal());
+            while (!queue.isEmpty() && canAdmit(priority)) {
+                Waiter waiter = queue.pollFirst();
+                admit(priority);
+                waiter.granted = true;
+                waiter.admitted.signal();
+            }
+        }
+        if (indexingPaused()) {
+            log.debug("Индексация приостановлена: в очереди к Ollama {} вопросов", interactiveWaiting());
+        }
+    }
+
+    private int queueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return queues.get(priority.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int active(Priority priority) {
+        lock.lock();
+        try {
+            return active[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean indexingPaused() {
+        lock.lock();
+        try {
+            return !queues.get(Priority.INDEXING.ordinal()).isEmpty() && interactiveWaiting() >= indexingPauseQueueDepth;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Гистограммы длительности этапов конвейера вопроса и обращений к внешним системам.
+ * Тег entity принимает только имена из справочника метаданных (остальное — "other"),
+ * чтобы ответ классификатора с мусором не раздувал число временных рядов.
+ */
+@Component
+public class PipelineMetrics {
+    public static final String HEADER_SEARCH = "header_search";
+    public static final String CLASSIFIER = "classifier";
+    public static final String STAGE2 = "stage2";
+    public static final String TOOL = "tool";
+    public static final String BATCH_PLAN = "batch_plan";
+
+    private final MeterRegistry registry;
+    private final MetadataCatalogService catalogService;
+
+    public PipelineMetrics(MeterRegistry registry, MetadataCatalogService catalogService) {
+        this.registry = registry;
+        this.catalogService = catalogService;
+    }
+
+    /**
+     * Выполняет этап и записывает его длительность с тегами stage, entity и outcome (success/error).
+     */
+    public <T> T time(String stage, String entity, Supplier<T> action) {
+        Timer.Sample sample = Timer.start(registry);
+        String outcome = "error";
+        try {
+            T result = action.get();
+            outcome = "success";
+            return result;
+        } finally {
+            sample.stop(stageTimer(stage, entity, outcome));
+        }
+    }
+
+    public Timer stageTimer(String stage, String entity, String outcome) {
+        return Timer.builder("odata.bridge.stage")
+                .tag("stage", stage)
+                .tag("entity", entityTag(entity))
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * Длительность HTTP-обращения к 1С (до конца чтения тела) и размер ответа.
+     */
+    public void recordODataCall(String target, String method, int status, long nanos, long bytes) {
+        String entity = entityTag(target);
+        String statusTag = status == 0 ? "IO_ERROR" : Integer.toString(status);
+        Timer.builder("odata.bridge.odata.http")
+                .tag("entity", entity)
+                .tag("method", method)
+                .tag("status", statusTag)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(Duration.ofNanos(nanos));
+        DistributionSummary.builder("odata.bridge.odata.response.bytes")
+                .baseUnit("bytes")
+                .tag("entity", entity)
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(bytes);
+    }
+
+    public String entityTag(String entity) {
+        if (entity == null || entity.isBlank()) {
+            return "none";
+        }
+        if (entity.startsWith("$")) {
+            return entity; // $metadata, $batch
+        }
+        return catalogService.catalog().contains(entity) ? entity : "other";
+    }
+}
@@ -0,0 +1,55 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.ai.tool.annotation.Tool;
+import org.springframework.ai.tool.annotation.ToolParam;
+import ru.petrov.odata_bridge.model.ODataQuery;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Инструмент планировщика пакетного запроса: модель не выполняет запросы к 1С,
+ * а только записывает параметры для каждого вопроса группы. Запросы затем уходят в 1С одним $batch.
+ * Создается на один вызов модели — сущность группы фиксирована.
+ */
+public class QueryPlanRecorder {
+    private final String entity;
+    private final int questions;
+    private final ODataService oDataService;
+    private final Map<Integer, ODataQuery> plans = new ConcurrentHashMap<>();
+
+    public QueryPlanRecorder(String entity, int questions, ODataService oDataService) {
+        this.entity = entity;
+        this.questions = questions;
+        this.oDataService = oDataService;
+    }
+
+    @Tool(
+            name = "planQuery",
+            description = "Записать запрос к 1С для вопроса с указанным номером. Вызывай по одному разу для каждого вопроса.")
+    public String planQuery(
+            @ToolParam(description = "Номер вопроса из списка (с 1)") Integer question,
+            @ToolParam(description = "Фильтр OData (напр. ИНН eq '12345' или Number eq '001')", required = false) String filter,
+            @ToolParam(description = "Лимит записей (по умолчанию 5)", required = false) Integer top,
+            @ToolParam(description = "Только если нужен подсчет количества (Boolean)", required = false) Boolean countOnly
+    ) {
+        if (question == null || question < 1 || question > questions) {
+            return "Нет вопроса с номером " + question + ". Номера вопросов: 1.." + questions;
+        }
+        // Ошибка возвращается модели, чтобы она исправила фильтр
+        String validationError = oDataService.validateQuery(entity, filter);
+        if (validationError != null) {
+            return validationError;
+        }
+        plans.put(question, ODataQuery.of(entity, filter, top, countOnly));
+        return "Записано";
+    }
+
+    /**
+     * @param question Номер вопроса (с 1).
+     */
+    public Optional<ODataQuery> plan(int question) {
+        return Optional.ofNullable(plans.get(question));
+    }
+}
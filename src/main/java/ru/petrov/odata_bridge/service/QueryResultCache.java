@@ -0,0 +1,174 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Service;
+import ru.petrov.odata_bridge.config.ODataConfig;
+import ru.petrov.odata_bridge.model.ODataQuery;
+import ru.petrov.odata_bridge.model.QueryResult;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ограниченный по размеру (LRU) кеш результатов executeSmartQuery.
+ * Время жизни задается по типу сущности: справочники меняются реже документов.
+ * Просроченная запись не удаляется сразу — по ней ODataService может перепроверить версию в 1С.
+ */
+@Service
+public class QueryResultCache {
+    private final ODataConfig.Cache config;
+    private final Map<ODataQuery, Entry> entries;
+    private final Counter hits;
+    private final Counter stale;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter notModified;
+    private final Counter modified;
+    private final Counter speculationHits;
+
+    public QueryResultCache(ODataConfig oDataConfig, MeterRegistry meterRegistry) {
+        this.config = oDataConfig.cache();
+        this.hits = requestCounter(meterRegistry, "hit");
+        this.stale = requestCounter(meterRegistry, "stale");
+        this.misses = requestCounter(meterRegistry, "miss");
+        this.evictions = Counter.builder("odata.bridge.query.cache.evictions").register(meterRegistry);
+        this.notModified = revalidationCounter(meterRegistry, "not_modified");
+        this.modified = revalidationCounter(meterRegistry, "modified");
+        // Тот же счетчик, что ведет AIService: попадание — использование спекулятивной выборки
+        this.speculationHits = Counter.builder("odata.bridge.speculation").tag("outcome", "hit").register(meterRegistry);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ODataQuery, Entry> eldest) {
+                boolean evict = size() > config.maxSize();
+                if (evict) {
+                    evictions.increment();
+                }
+                return evict;
+            }
+        };
+        Gauge.builder("odata.bridge.query.cache.size", this, QueryResultCache::size).register(meterRegistry);
+    }
+
+    private static Counter requestCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.query.cache.requests").tag("outcome", outcome).register(registry);
+    }
+
+    private static Counter revalidationCounter(MeterRegistry registry, String outcome) {
+        return Counter.builder("odata.bridge.query.cache.revalidations").tag("outcome", outcome).register(registry);
+    }
+
+    /**
+     * Результат поиска в кеше.
+     * @param result Сохраненный результат
+     * @param fresh  false — TTL истек, перед использованием нужна перепроверка версии
+     */
+    public record Lookup(QueryResult result, boolean fresh) {}
+
+    /**
+     * @param prefetched Запись положена спекулятивной выборкой и еще ни разу не выдана
+     */
+    private record Entry(QueryResult result, long expiresAt, boolean prefetched) {}
+
+    /**
+     * @return Запись кеша (свежая или просроченная) или null.
+     */
+    public Lookup lookup(ODataQuery query) {
+        if (!config.enabled()) {
+            return null;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(query);
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        boolean fresh = entry.expiresAt > System.currentTimeMillis();
+        (fresh ? hits : stale).increment();
+        if (fresh && entry.prefetched) {
+            boolean first;
+            synchronized (entries) {
+                first = entries.replace(query, entry, new Entry(entry.result, entry.expiresAt, false));
+            }
+            if (first) {
+                speculationHits.increment();
+            }
+        }
+        return new Lookup(entry.result, fresh);
+    }
+
+    /**
+     * Есть ли свежая запись — без учета в метриках обращений (для фоновых выборок).
+     */
+    public boolean hasFresh(ODataQuery query) {
+        if (!config.enabled()) {
+            return false;
+        }
+        synchronized (entries) {
+            Entry entry = entries.get(query);
+            return entry != null && entry.expiresAt > System.currentTimeMillis();
+        }
+    }
+
+    public void put(ODataQuery query, QueryResult result) {
+        put(query, result, false);
+    }
+
+    /**
+     * Сохраняет результат спекулятивной выборки: первое чтение такой записи считается попаданием спекуляции.
+     */
+    public void putPrefetched(ODataQuery query, QueryResult result) {
+        put(query, result, true);
+    }
+
+    private void put(ODataQuery query, QueryResult result, boolean prefetched) {
+        Duration ttl = ttlFor(query.entity());
+        if (!config.enabled() || ttl.isZero() || ttl.isNegative()) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(query, new Entry(result, System.currentTimeMillis() + ttl.toMillis(), prefetched));
+        }
+    }
+
+    /**
+     * Фиксирует итог перепроверки просроченной записи.
+     *
+     * @param stillValid true — данные в 1С не изменились, TTL записи продлевается.
+     */
+    public void revalidated(ODataQuery query, QueryResult result, boolean stillValid) {
+        (stillValid ? notModified : modified).increment();
+        if (stillValid) {
+            put(query, result);
+        }
+    }
+
+    public boolean revalidate() {
+        return config.revalidate();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    // Самый длинный подходящий префикс: "Catalog_Контрагенты" может переопределить общий "Catalog_"
+    private Duration ttlFor(String entity) {
+        Duration best = config.defaultTtl();
+        int bestLength = -1;
+        if (config.ttl() != null) {
+            for (Map.Entry<String, Duration> rule : config.ttl().entrySet()) {
+                if (entity.startsWith(rule.getKey()) && rule.getKey().length() > bestLength) {
+                    best = rule.getValue();
+                    bestLength = rule.getKey().length();
+                }
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,291 @@
+package ru.petrov.odata_bridge.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.config.ODataConfig;
+import ru.petrov.odata_bridge.model.MetadataCatalog;
+import ru.petrov.odata_bridge.model.QueryResult;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Подготовка ответа 1С для модели: запрос только нужных полей ($select),
+ * отбрасывание системных полей при потоковом чтении и усечение выборки по бюджету в байтах.
+ * Ответ читается из тела построчно — в памяти держатся только строки, попавшие в бюджет.
+ */
+@Component
+public class ResultShaper {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ObjectWriter PRETTY = MAPPER.writerWithDefaultPrettyPrinter();
+    private static final String REF_KEY = "Ref_Key";
+    private static final String DATA_VERSION = "DataVersion";
+    // Ссылочные типы 1С: у всех есть Ref_Key и DataVersion, их можно запрашивать в $select
+    private static final List<String> REFERENCE_PREFIXES = List.of(
+            "Catalog_", "Document_", "ChartOfCharacteristicTypes_", "ChartOfAccounts_",
+            "ChartOfCalculationTypes_", "ExchangePlan_", "BusinessProcess_", "Task_");
+    // Сколько буферов тела ответа читается вперед
+    private static final int PREFETCH_BUFFERS = 4;
+
+    private final ODataConfig.Shaping config;
+    private final MetadataCatalogService catalogService;
+    private final Set<String> dropFields;
+    private final Counter truncated;
+    private final DistributionSummary omittedRows;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ResultShaper.class);
+
+    public ResultShaper(ODataConfig oDataConfig, IndexingConfig indexingConfig,
+                        MetadataCatalogService catalogService, MeterRegistry meterRegistry) {
+        this.config = oDataConfig.shaping();
+        this.catalogService = catalogService;
+        // Отбрасываются те же системные поля, что не попадают в индекс метаданных
+        this.dropFields = indexingConfig.excludeFields() == null ? Set.of() : Set.copyOf(indexingConfig.excludeFields());
+        this.truncated = Counter.builder("odata.bridge.result.truncated").register(meterRegistry);
+        this.omittedRows = DistributionSummary.builder("odata.bridge.result.omitted.rows").register(meterRegistry);
+    }
+
+    /**
+     * Ссылочный тип 1С (или его табличная часть): у строк есть Ref_Key и DataVersion.
+     */
+    static boolean isReferenceType(String entity) {
+        return REFERENCE_PREFIXES.stream().anyMatch(entity::startsWith);
+    }
+
+    public boolean enabled() {
+        return config.enabled();
+    }
+
+    /**
+     * Список полей для $select: поля, найденные в индексе метаданных по вопросу, поля, по которым фильтрует запрос,
+     * и поля представления (Description, Number, Date…), чтобы строку можно было узнать, — если они есть у сущности;
+     * плюс Ref_Key и DataVersion для отпечатка версии (сами они в ответ модели не попадают).
+     * Если поля вопроса неизвестны, состав не сужается: иначе модель ответила бы без запрошенного реквизита.
+     * Если после percent-кодирования список длиннее maxSelectLength, $select не передается вовсе —
+     * иначе IIS отклонит строку запроса.
+     *
+     * @param filter   Фильтр OData запроса или null.
+     * @param relevant Поля вопроса из индекса метаданных или null.
+     * @return Значение $select или null, если ограничивать поля не нужно или справочник еще не загружен.
+     */
+    public String selectFor(String entity, String filter, Collection<String> relevant) {
+        if (!config.enabled() || !config.autoSelect() || relevant == null || relevant.isEmpty()) {
+            return null;
+        }
+        Optional<MetadataCatalog.EntityFields> fields = catalogService.catalog().entity(entity);
+        if (fields.isEmpty() || fields.get().size() == 0) {
+            return null;
+        }
+        Set<String> select = new LinkedHashSet<>();
+        addExisting(select, fields.get(), relevant);
+        if (select.isEmpty()) {
+            // Ни одно из найденных полей не относится к сущности — сузить не по чему
+            return null;
+        }
+        addExisting(select, fields.get(), ODataService.filterFields(filter));
+        if (config.selectFields() != null) {
+            addExisting(select, fields.get(), config.selectFields());
+        }
+        if (isReferenceType(entity)) {
+            select.add(REF_KEY);
+            select.add(DATA_VERSION);
+        }
+        String value = String.join(",", select);
+        int encodedLength = URLEncoder.encode(value, StandardCharsets.UTF_8).length();
+        if (encodedLength > config.maxSelectLength()) {
+            log.debug("$select для {} занимает {} байт после кодирования (предел {}), запрос без $select",
+                    entity, encodedLength, config.maxSelectLength());
+            return null;
+        }
+        return value;
+    }
+
+    private static void addExisting(Set<String> select, MetadataCatalog.EntityFields fields, Collection<String> names) {
+        for (String name : names) {
+            if (fields.hasField(name)) {
+                select.add(name);
+            }
+        }
+    }
+
+    /**
+     * Потоково разбирает ответ 1С и формирует текст для модели.
+     * Строки, не поместившиеся в бюджет, не материализуются — из них читаются только
+     * Ref_Key и DataVersion для отпечатка версии, а в конце добавляется отметка об усечении.
+     *
+     * @param body Тело ответа 1С.
+     * @param etag ETag ответа (может быть null).
+     */
+    public QueryResult shape(Flux<DataBuffer> body, String etag) {
+        try (InputStream in = DataBufferUtils.subscriberInputStream(body, PREFETCH_BUFFERS);
+             JsonParser parser = MAPPER.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Ожидался JSON-объект в ответе 1С");
+            }
+            ObjectNode single = MAPPER.createObjectNode();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("value".equals(field) && value == JsonToken.START_ARRAY) {
+                    // Остаток тела (odata.nextLink и т.п.) модели не нужен — дальше не читаем
+                    return shapeRows(parser, etag);
+                }
+                if (keepField(field)) {
+                    single.set(field, MAPPER.readTree(parser));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            // Ключа value нет (одиночный объект)
+            return new QueryResult(PRETTY.writeValueAsString(single), etag, null);
+        } catch (IOException e) {
+            throw new IllegalStateException("Не удалось разобрать ответ 1С: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Вариант {@link #shape(Flux, String)} для уже прочитанного тела (части ответа $batch).
+     */
+    public QueryResult shape(String body, String etag) {
+        return shape(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(body.getBytes(StandardCharsets.UTF_8))), etag);
+    }
+
+    private QueryResult shapeRows(JsonParser parser, String etag) throws IOException {
+        ArrayNode shown = MAPPER.createArrayNode();
+        VersionStamp stamp = new VersionStamp();
+        long bytes = 2;
+        int omitted = 0;
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            if (omitted > 0) {
+                readRow(parser, stamp, false);
+                omitted++;
+                continue;
+            }
+            ObjectNode row = readRow(parser, stamp, true);
+            int rowBytes = PRETTY.writeValueAsBytes(row).length + 2;
+            // Первая строка выводится всегда, даже если одна превышает бюджет
+            if (!shown.isEmpty() && bytes + rowBytes > config.maxBytes()) {
+                omitted = 1;
+                continue;
+            }
+            shown.add(row);
+            bytes += rowBytes;
+        }
+
+        String text = PRETTY.writeValueAsString(shown);
+        if (omitted > 0) {
+            truncated.increment();
+            omittedRows.record(omitted);
+            log.info("Ответ 1С усечен по бюджету {} байт: показано {} строк, не показано {}",
+                    config.maxBytes(), shown.size(), omitted);
+            text += "\n[Результат усечен: показано " + shown.size() + " строк, еще " + omitted
+                    + " не показано. Уточните фильтр или уменьшите лимит]";
+        }
+        return new QueryResult(text, etag, stamp.value());
+    }
+
+    /**
+     * Читает одну строку массива value. Системные поля и навигационные ссылки (Поле@navigationLinkUrl)
+     * пропускаются без построения узлов.
+     *
+     * @param materialize false — строка только учитывается в отпечатке версии.
+     */
+    private ObjectNode readRow(JsonParser parser, VersionStamp stamp, boolean materialize) throws IOException {
+        ObjectNode row = materialize ? MAPPER.createObjectNode() : null;
+        String refKey = null;
+        String dataVersion = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            JsonToken value = parser.nextToken();
+            if (value.isScalarValue()) {
+                if (REF_KEY.equals(field)) {
+                    refKey = parser.getValueAsString();
+                } else if (DATA_VERSION.equals(field)) {
+                    dataVersion = parser.getValueAsString();
+                }
+            }
+            if (materialize && keepField(field)) {
+                row.set(field, MAPPER.readTree(parser));
+            } else {
+                parser.skipChildren();
+            }
+        }
+        stamp.add(refKey, dataVersion);
+        return row;
+    }
+
+    private boolean keepField(String field) {
+        return !dropFields.contains(field) && field.indexOf('@') < 0 && !field.startsWith("odata.");
+    }
+
+    /**
+     * Отпечаток набора строк по Ref_Key и DataVersion: меняется при любом изменении, добавлении или удалении строки.
+     * Нет строк или у первой строки нет DataVersion — отпечатка нет.
+     */
+    static final class VersionStamp {
+        private final MessageDigest digest;
+        private int rows;
+        private boolean supported = true;
+
+        VersionStamp() {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 недоступен", e);
+            }
+        }
+
+        void add(String refKey, String dataVersion) {
+            if (rows++ == 0 && dataVersion == null) {
+                supported = false;
+            }
+            if (supported) {
+                digest.update(((refKey == null ? "" : refKey) + ':' + (dataVersion == null ? "" : dataVersion) + '\n')
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        String value() {
+            return supported && rows > 0 ? HexFormat.of().formatHex(digest.digest()) : null;
+        }
+
+        static String of(JsonNode rows) {
+            if (!rows.isArray()) {
+                return null;
+            }
+            VersionStamp stamp = new VersionStamp();
+            for (JsonNode row : rows) {
+                stamp.add(textOrNull(row.get(REF_KEY)), textOrNull(row.get(DATA_VERSION)));
+            }
+            return stamp.value();
+        }
+
+        private static String textOrNull(JsonNode node) {
+            return node == null || node.isNull() ? null : node.asText();
+        }
+    }
+}
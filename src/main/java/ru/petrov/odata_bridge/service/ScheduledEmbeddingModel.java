@@ -0,0 +1,37 @@
+package ru.petrov.odata_bridge.service;
+
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.ai.embedding.EmbeddingRequest;
+import org.springframework.ai.embedding.EmbeddingResponse;
+
+/**
+ * Декоратор модели векторизации: каждый вызов Ollama проходит через {@link OllamaScheduler}.
+ * Класс вызова берется из потока ({@link OllamaScheduler#withEmbeddingPriority}): индексация помечает
+ * свои порции сама, все остальное — векторизация вопросов. Стоит под кешем векторов,
+ * поэтому попадания в кеш места в очереди не занимают.
+ */
+public class ScheduledEmbeddingModel implements EmbeddingModel {
+    private final EmbeddingModel delegate;
+    private final OllamaScheduler scheduler;
+
+    public ScheduledEmbeddingModel(EmbeddingModel delegate, OllamaScheduler scheduler) {
+        this.delegate = delegate;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public EmbeddingResponse call(EmbeddingRequest request) {
+        return scheduler.call(OllamaScheduler.embeddingPriority(), () -> delegate.call(request));
+    }
+
+    @Override
+    public float[] embed(Document document) {
+        return embed(document.getText());
+    }
+
+    @Override
+    public int dimensions() {
+        return delegate.dimensions();
+    }
+}
@@ -0,0 +1,57 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Объединение одинаковых одновременных операций: пока операция с ключом выполняется,
+ * все новые вызовы с тем же ключом подписываются на тот же {@link Mono} и получают тот же результат (или ошибку).
+ * После завершения ключ освобождается — следующий вызов выполнит операцию заново.
+ *
+ * @param <K> Ключ операции
+ * @param <V> Результат
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, Mono<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter started;
+    private final Counter coalesced;
+
+    public SingleFlight(String name, MeterRegistry meterRegistry) {
+        this.started = flightCounter(meterRegistry, name, "started");
+        this.coalesced = flightCounter(meterRegistry, name, "coalesced");
+    }
+
+    private static Counter flightCounter(MeterRegistry registry, String name, String outcome) {
+        return Counter.builder("odata.bridge.singleflight.calls")
+                .tag("name", name)
+                .tag("outcome", outcome)
+                .register(registry);
+    }
+
+    /**
+     * @param key       Ключ операции.
+     * @param operation Запуск операции; вызывается, только если такой же операции сейчас нет.
+     * @return Общий для всех одновременных вызовов результат.
+     */
+    public Mono<V> execute(K key, Supplier<Mono<V>> operation) {
+        return Mono.defer(() -> {
+            boolean[] created = {false};
+            Mono<V> shared = inFlight.computeIfAbsent(key, k -> {
+                created[0] = true;
+                return operation.get()
+                        .doFinally(signal -> inFlight.remove(k))
+                        .cache();
+            });
+            (created[0] ? started : coalesced).increment();
+            return shared;
+        });
+    }
+
+    public boolean isInFlight(K key) {
+        return inFlight.containsKey(key);
+    }
+}
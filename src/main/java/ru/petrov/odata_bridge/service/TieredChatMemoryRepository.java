@@ -0,0 +1,303 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.ai.chat.memory.ChatMemoryRepository;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.scheduling.annotation.Scheduled;
+import ru.petrov.odata_bridge.config.ChatMemoryConfig;
+import ru.petrov.odata_bridge.repository.ChatMemoryStoreRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Хранилище истории диалогов в два уровня: активные диалоги в памяти, неактивные — в Postgres.
+ * Диалог уходит из памяти после idle-ttl без обращений или раньше, если общее число сообщений
+ * в памяти превышает max-hot-messages (вытесняются самые давно неактивные). При следующем обращении
+ * история поднимается из Postgres. Объем памяти не растет с числом диалогов за время жизни процесса.
+ */
+public class TieredChatMemoryRepository implements ChatMemoryRepository {
+    private final ChatMemoryConfig config;
+    private final ChatMemoryStoreRepository store;
+    // Порядок доступа: первыми идут самые давно неактивные диалоги
+    private final LinkedHashMap<String, Session> hot = new LinkedHashMap<>(16, 0.75f, true);
+    // Вытесненные, но еще не записанные в Postgres диалоги — чтобы чтение в этот момент не потеряло историю
+    private final Map<String, List<Message>> spilling = new ConcurrentHashMap<>();
+    private int hotMessages;
+    private final Counter spills;
+    private final Counter restores;
+
+    // Метка текущего формата сериализации; число сообщений не бывает отрицательным, поэтому ранние записи отличимы
+    private static final int FORMAT_WITH_TOOLS = -2;
+
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TieredChatMemoryRepository.class);
+
+    private record Session(List<Message> messages, Instant lastAccess) {}
+
+    public TieredChatMemoryRepository(ChatMemoryConfig config, ChatMemoryStoreRepository store, MeterRegistry meterRegistry) {
+        this.config = config;
+        this.store = store;
+        this.spills = Counter.builder("odata.bridge.chat.memory.spills").register(meterRegistry);
+        this.restores = Counter.builder("odata.bridge.chat.memory.restores").register(meterRegistry);
+        Gauge.builder("odata.bridge.chat.memory.hot.sessions", this, TieredChatMemoryRepository::hotSessions)
+                .register(meterRegistry);
+        Gauge.builder("odata.bridge.chat.memory.hot.messages", this, TieredChatMemoryRepository::hotMessages)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public List<String> findConversationIds() {
+        Set<String> ids;
+        synchronized (this) {
+            ids = new LinkedHashSet<>(hot.keySet());
+        }
+        ids.addAll(spilling.keySet());
+        if (config.persist()) {
+            ids.addAll(store.findIds());
+        }
+        return List.copyOf(ids);
+    }
+
+    @Override
+    public List<Message> findByConversationId(String conversationId) {
+        synchronized (this) {
+            Session session = hot.get(conversationId);
+            if (session != null) {
+                hot.put(conversationId, new Session(session.messages(), Instant.now()));
+                return session.messages();
+            }
+        }
+        List<Message> messages = spilling.get(conversationId);
+        if (messages == null && config.persist()) {
+            messages = store.find(conversationId).map(TieredChatMemoryRepository::deserialize).orElse(null);
+            if (messages != null) {
+                restores.increment();
+            }
+        }
+        if (messages == null) {
+            return List.of();
+        }
+        put(conversationId, messages);
+        return messages;
+    }
+
+    @Override
+    public void saveAll(String conversationId, List<Message> messages) {
+        put(conversationId, List.copyOf(messages));
+    }
+
+    @Override
+    public void deleteByConversationId(String conversationId) {
+        synchronized (this) {
+            Session removed = hot.remove(conversationId);
+            if (removed != null) {
+                hotMessages -= removed.messages().size();
+            }
+        }
+        spilling.remove(conversationId);
+        if (config.persist()) {
+            store.delete(conversationId);
+        }
+    }
+
+    private void put(String conversationId, List<Message> messages) {
+        Map<String, List<Message>> evicted = new LinkedHashMap<>();
+        synchronized (this) {
+            Session previous = hot.put(conversationId, new Session(messages, Instant.now()));
+            hotMessages += messages.size() - (previous == null ? 0 : previous.messages().size());
+            // Общий предел: вытесняем самые давно неактивные диалоги, кроме текущего
+            Iterator<Map.Entry<String, Session>> it = hot.entrySet().iterator();
+            while (hotMessages > config.maxHotMessages() && it.hasNext()) {
+                Map.Entry<String, Session> eldest = it.next();
+                if (eldest.getKey().equals(conversationId)) {
+                    continue;
+                }
+                it.remove();
+                hotMessages -= eldest.getValue().messages().size();
+                evicted.put(eldest.getKey(), eldest.getValue().messages());
+            }
+        }
+        spill(evicted);
+    }
+
+    /**
+     * Переносит в Postgres диалоги без обращений дольше idle-ttl и удаляет сохраненные диалоги старше retention.
+     */
+    @Scheduled(fixedDelayString = "${app.chat-memory.sweep-interval:1m}")
+    public void sweep() {
+        Instant idleThreshold = Instant.now().minus(config.idleTtl());
+        Map<String, List<Message>> idle = new LinkedHashMap<>();
+        synchronized (this) {
+            Iterator<Map.Entry<String, Session>> it = hot.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Session> entry = it.next();
+                // Порядок доступа: дальше идут только более свежие диалоги
+                if (entry.getValue().lastAccess().isAfter(idleThreshold)) {
+                    break;
+                }
+                it.remove();
+                hotMessages -= entry.getValue().messages().size();
+                idle.put(entry.getKey(), entry.getValue().messages());
+            }
+        }
+        spill(idle);
+        if (config.persist()) {
+            int expired = store.deleteOlderThan(Instant.now().minus(config.retention()));
+            if (expired > 0) {
+                log.info("Удалено устаревших диалогов: {}", expired);
+            }
+        }
+    }
+
+    private void spill(Map<String, List<Message>> sessions) {
+        if (sessions.isEmpty() || !config.persist()) {
+            return;
+        }
+        spilling.putAll(sessions);
+        sessions.forEach((conversationId, messages) -> {
+            try {
+                store.save(conversationId, serialize(messages));
+                spills.increment();
+            } catch (Exception e) {
+                log.warn("Не удалось сохранить диалог {}: {}", conversationId, e.getMessage());
+            } finally {
+                spilling.remove(conversationId, messages);
+            }
+        });
+        log.debug("Диалогов вытеснено из памяти: {}", sessions.size());
+    }
+
+    private synchronized int hotSessions() {
+        return hot.size();
+    }
+
+    private synchronized int hotMessages() {
+        return hotMessages;
+    }
+
+    // Компактная форма, сжатая GZIP: метка формата, число сообщений, затем тип и текст каждого сообщения;
+    // у ответа модели — еще вызовы инструментов, у сообщения инструмента — его ответы. Без них восстановленная
+    // история содержала бы результат запроса к 1С без вызова, который его породил
+    static byte[] serialize(List<Message> messages) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(FORMAT_WITH_TOOLS);
+            out.writeInt(messages.size());
+            for (Message message : messages) {
+                out.writeByte(message.getMessageType().ordinal());
+                writeString(out, message.getText() == null ? "" : message.getText());
+                if (message instanceof AssistantMessage assistant) {
+                    List<AssistantMessage.ToolCall> calls = assistant.getToolCalls();
+                    out.writeInt(calls.size());
+                    for (AssistantMessage.ToolCall call : calls) {
+                        writeString(out, call.id());
+                        writeString(out, call.type());
+                        writeString(out, call.name());
+                        writeString(out, call.arguments());
+                    }
+                } else if (message instanceof ToolResponseMessage tool) {
+                    List<ToolResponseMessage.ToolResponse> responses = tool.getResponses();
+                    out.writeInt(responses.size());
+                    for (ToolResponseMessage.ToolResponse response : responses) {
+                        writeString(out, response.id());
+                        writeString(out, response.name());
+                        writeString(out, response.responseData());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static List<Message> deserialize(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)))) {
+            int first = in.readInt();
+            // Ранние записи начинаются сразу с числа сообщений и содержат только тип и текст
+            boolean withTools = first == FORMAT_WITH_TOOLS;
+            int count = withTools ? in.readInt() : first;
+            List<Message> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                MessageType type = MessageType.values()[in.readUnsignedByte()];
+                String content = withTools ? readString(in) : readLegacyText(in);
+                messages.add(switch (type) {
+                    case USER -> new UserMessage(content);
+                    case SYSTEM -> new SystemMessage(content);
+                    case TOOL -> readToolResponses(in, withTools);
+                    default -> readAssistant(in, content, withTools);
+                });
+            }
+            return List.copyOf(messages);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static AssistantMessage readAssistant(DataInputStream in, String content, boolean withTools) throws IOException {
+        int count = withTools ? in.readInt() : 0;
+        List<AssistantMessage.ToolCall> calls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            calls.add(new AssistantMessage.ToolCall(readString(in), readString(in), readString(in), readString(in)));
+        }
+        return AssistantMessage.builder().content(content).toolCalls(calls).build();
+    }
+
+    private static ToolResponseMessage readToolResponses(DataInputStream in, boolean withTools) throws IOException {
+        int count = withTools ? in.readInt() : 0;
+        List<ToolResponseMessage.ToolResponse> responses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            responses.add(new ToolResponseMessage.ToolResponse(readString(in), readString(in), readString(in)));
+        }
+        return ToolResponseMessage.builder().responses(responses).build();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readLegacyText(DataInputStream in) throws IOException {
+        byte[] text = new byte[in.readInt()];
+        in.readFully(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,142 @@
+package ru.petrov.odata_bridge.repository;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.document.Document;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.postgresql.PostgreSQLContainer;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * SQL индексации на настоящем Postgres с pgvector: таблица создается так же, как ее создает PgVectorStore.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class VectorStoreRepositoryTest {
+    private static final String TABLE = "vector_store";
+
+    @Container
+    static final PostgreSQLContainer POSTGRES = new PostgreSQLContainer(
+            DockerImageName.parse("pgvector/pgvector:pg16").asCompatibleSubstituteFor("postgres"));
+
+    private JdbcTemplate jdbcTemplate;
+    private VectorStoreRepository repository;
+
+    @BeforeEach
+    void setUp() {
+        jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword()));
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS vector");
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS \"uuid-ossp\"");
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + TABLE + "_staging");
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + TABLE);
+        jdbcTemplate.execute("CREATE TABLE " + TABLE + " (id uuid DEFAULT uuid_generate_v4() PRIMARY KEY, "
+                + "content text, metadata json, embedding vector(3))");
+        jdbcTemplate.execute("CREATE INDEX ON " + TABLE + " USING HNSW (embedding vector_cosine_ops)");
+        repository = new VectorStoreRepository(jdbcTemplate);
+        ReflectionTestUtils.setField(repository, "tableName", TABLE);
+    }
+
+    private static Document document(String id, String entity, String field, String fingerprint, String generation) {
+        return new Document(id, "[ПОЛЕ] " + field + " в таблице " + entity, Map.of(
+                "entity", entity,
+                "field", field,
+                "type", "Edm.String",
+                "is_header", false,
+                "fingerprint", fingerprint,
+                "generation", generation));
+    }
+
+    private static List<float[]> vectors(int count) {
+        List<float[]> vectors = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            vectors.add(new float[]{1f, i, 0.5f});
+        }
+        return vectors;
+    }
+
+    private List<String> fields(String table, String entity) {
+        return jdbcTemplate.queryForList("SELECT metadata->>'field' FROM " + table
+                + " WHERE metadata->>'entity' = ? ORDER BY 1", String.class, entity);
+    }
+
+    @Test
+    void stagedRowsReplaceEntityOnPublish() {
+        String old = UUID.randomUUID().toString();
+        repository.insertBatch(List.of(
+                document(old, "Catalog_Контрагенты", "ИНН", "fp-1", "gen-0"),
+                document(UUID.randomUUID().toString(), "Catalog_Склады", "Code", "fp-s", "gen-0")), vectors(2));
+
+        repository.resetStaging();
+        String inn = UUID.randomUUID().toString();
+        List<Document> staged = List.of(
+                document(inn, "Catalog_Контрагенты", "ИНН", "fp-2", "gen-1"),
+                document(UUID.randomUUID().toString(), "Catalog_Контрагенты", "КПП", "fp-2", "gen-1"));
+        assertThat(repository.stageBatch(staged, vectors(2))).isEqualTo(2);
+        // Повтор порции после сбоя перезаписывает строки, а не падает на дубликате
+        assertThat(repository.stageBatch(staged.subList(0, 1), vectors(1))).isEqualTo(1);
+
+        // До переноса поиск видит старые строки
+        assertThat(fields(TABLE, "Catalog_Контрагенты")).containsExactly("ИНН");
+        assertThat(repository.publishEntity("Catalog_Контрагенты", "gen-1")).isEqualTo(2);
+
+        assertThat(fields(TABLE, "Catalog_Контрагенты")).containsExactly("ИНН", "КПП");
+        assertThat(fields(TABLE, "Catalog_Склады")).containsExactly("Code");
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE + " WHERE id = ?::uuid", Long.class, old)).isZero();
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE + "_staging", Long.class)).isZero();
+        assertThat(repository.loadFingerprints()).containsEntry("Catalog_Контрагенты", "fp-2").containsEntry("Catalog_Склады", "fp-s");
+    }
+
+    @Test
+    void resetStagingRepairsTableCreatedWithoutUniqueIndex() {
+        // Так промежуточную таблицу создавала прежняя версия — ON CONFLICT по ней не работал
+        jdbcTemplate.execute("CREATE TABLE " + TABLE + "_staging (LIKE " + TABLE + " INCLUDING DEFAULTS)");
+        jdbcTemplate.update("INSERT INTO " + TABLE + "_staging (content) VALUES ('остаток прерванного запуска')");
+
+        repository.resetStaging();
+        repository.resetStaging();
+
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + TABLE + "_staging", Long.class)).isZero();
+        List<Document> staged = List.of(document(UUID.randomUUID().toString(), "Catalog_Склады", "Code", "fp", "gen-1"));
+        repository.stageBatch(staged, vectors(1));
+        repository.stageBatch(staged, vectors(1));
+        assertThat(fields(TABLE + "_staging", "Catalog_Склады")).containsExactly("Code");
+    }
+
+    @Test
+    void deleteGenerationRollsBackOnlyStagedRows() {
+        repository.insertBatch(List.of(document(UUID.randomUUID().toString(), "Catalog_Склады", "Code", "fp", "gen-0")), vectors(1));
+        repository.resetStaging();
+        repository.stageBatch(List.of(
+                document(UUID.randomUUID().toString(), "Catalog_Склады", "Code", "fp-new", "gen-1"),
+                document(UUID.randomUUID().toString(), "Catalog_Склады", "Description", "fp-new", "gen-1")), vectors(2));
+
+        assertThat(repository.deleteGeneration("gen-1")).isEqualTo(2);
+
+        assertThat(repository.count()).isEqualTo(1);
+        assertThat(repository.loadFingerprints()).containsEntry("Catalog_Склады", "fp");
+    }
+
+    @Test
+    void streamsRowsForSnapshot() {
+        repository.insertBatch(List.of(
+                document(UUID.randomUUID().toString(), "Catalog_Склады", "Code", "fp", "gen-0"),
+                document(UUID.randomUUID().toString(), "Catalog_Контрагенты", "ИНН", "fp", "gen-0")), vectors(2));
+        List<VectorStoreRepository.StoredRow> rows = new ArrayList<>();
+
+        repository.forEachRow(1, rows::add);
+
+        assertThat(rows).extracting(row -> row.metadata().get("entity")).containsExactly("Catalog_Контрагенты", "Catalog_Склады");
+        assertThat(rows.get(0).embedding()).containsExactly(1f, 1f, 0.5f);
+    }
+}
@@ -0,0 +1,63 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.embedding.EmbeddingModel;
+import ru.petrov.odata_bridge.config.ClassificationCacheConfig;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ClassificationCacheTest {
+    private final EmbeddingModel embeddingModel = mock(EmbeddingModel.class);
+    private final MetadataCatalogService catalogService = new MetadataCatalogService(null);
+
+    @Test
+    void exactHitIgnoresCaseAndPunctuationWithoutEmbedding() {
+        ClassificationCache cache = cache(false);
+
+        cache.put("Сколько контрагентов?", "Catalog_Контрагенты");
+
+        assertThat(cache.get("  сколько КОНТРАГЕНТОВ!! ")).contains("Catalog_Контрагенты");
+        verify(embeddingModel, never()).embed(anyString());
+    }
+
+    @Test
+    void approximateModeEmbedsTheSameTextAsHeaderSearch() {
+        ClassificationCache cache = cache(true);
+        String asked = "Сколько контрагентов?";
+        String similar = "Сколько у нас контрагентов?";
+        when(embeddingModel.embed(asked)).thenReturn(new float[]{1f, 0f});
+        when(embeddingModel.embed(similar)).thenReturn(new float[]{0.99f, 0.05f});
+
+        cache.put(asked, "Catalog_Контрагенты");
+
+        assertThat(cache.get(similar)).contains("Catalog_Контрагенты");
+        // Исходный текст, а не нормализованный ключ: вектор уже в кеше векторизации после поиска заголовков
+        verify(embeddingModel).embed(asked);
+        verify(embeddingModel).embed(similar);
+        verify(embeddingModel, never()).embed(ClassificationCache.normalize(similar));
+    }
+
+    @Test
+    void approximateModeMissesDistantQuestion() {
+        ClassificationCache cache = cache(true);
+        when(embeddingModel.embed("Сколько контрагентов?")).thenReturn(new float[]{1f, 0f});
+        when(embeddingModel.embed("Остатки на складе")).thenReturn(new float[]{0f, 1f});
+
+        cache.put("Сколько контрагентов?", "Catalog_Контрагенты");
+
+        assertThat(cache.get("Остатки на складе")).isEmpty();
+    }
+
+    private ClassificationCache cache(boolean approximate) {
+        return new ClassificationCache(new ClassificationCacheConfig(true, 100, Duration.ofHours(1), approximate, 0.95),
+                embeddingModel, catalogService, new SimpleMeterRegistry());
+    }
+}
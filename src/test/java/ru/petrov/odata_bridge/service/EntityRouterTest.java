@@ -0,0 +1,102 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.petrov.odata_bridge.config.RoutingConfig;
+import ru.petrov.odata_bridge.model.FieldInfo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EntityRouterTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MetadataCatalogService catalogService = new MetadataCatalogService(null);
+
+    @BeforeEach
+    void setUp() {
+        catalogService.load(fields("Catalog_Контрагенты", "Catalog_ВидыНоменклатуры", "Catalog_Номенклатура",
+                "Catalog_Склады", "Document_ЗаказКлиента"));
+    }
+
+    private static List<FieldInfo> fields(String... entities) {
+        return Arrays.stream(entities)
+                .map(entity -> new FieldInfo(entity, "Ref_Key", "Edm.Guid", "Ссылка", false))
+                .toList();
+    }
+
+    private EntityRouter router(Map<String, List<String>> synonyms) {
+        return new EntityRouter(catalogService, new RoutingConfig(true, synonyms), meterRegistry);
+    }
+
+    private double count(String outcome) {
+        return meterRegistry.counter("odata.bridge.router.requests", "outcome", outcome).count();
+    }
+
+    @Test
+    void matchesInflectedFormsOfTechnicalName() {
+        EntityRouter router = router(null);
+
+        assertThat(router.route("Покажи последних контрагентов")).contains("Catalog_Контрагенты");
+        assertThat(router.route("Сколько заказов клиентов за март?")).contains("Document_ЗаказКлиента");
+        assertThat(count("hit")).isEqualTo(2);
+    }
+
+    @Test
+    void prefersLongestFullyMatchedPhrase() {
+        EntityRouter router = router(null);
+
+        // "номенклатуры" совпадает и с Номенклатурой, но фраза "виды номенклатуры" длиннее
+        assertThat(router.route("Какие есть виды номенклатуры?")).contains("Catalog_ВидыНоменклатуры");
+        assertThat(router.route("Найди номенклатуру с артикулом 123")).contains("Catalog_Номенклатура");
+    }
+
+    @Test
+    void doesNotMatchLongerWordsSharingStem() {
+        EntityRouter router = router(null);
+
+        assertThat(router.route("Остатки на складах")).contains("Catalog_Склады");
+        assertThat(router.route("Правила складирования")).isEmpty();
+        assertThat(count("miss")).isEqualTo(1);
+    }
+
+    @Test
+    void returnsEmptyWhenSeveralEntitiesTie() {
+        EntityRouter router = router(null);
+
+        assertThat(router.route("Сравни контрагентов и склады")).isEmpty();
+        assertThat(count("ambiguous")).isEqualTo(1);
+    }
+
+    @Test
+    void usesSynonymsOnlyForKnownEntities() {
+        EntityRouter router = router(Map.of(
+                "Catalog_Контрагенты", List.of("Покупатели"),
+                "Catalog_Поставщики", List.of("Поставщики")));
+
+        assertThat(router.route("Список покупателей из Москвы")).contains("Catalog_Контрагенты");
+        assertThat(router.route("Список поставщиков")).isEmpty();
+    }
+
+    @Test
+    void rebuildsIndexWhenCatalogIsReplaced() {
+        EntityRouter router = router(null);
+        assertThat(router.route("Покажи склады")).contains("Catalog_Склады");
+
+        catalogService.load(fields("Catalog_Контрагенты"));
+
+        assertThat(router.route("Покажи склады")).isEmpty();
+        assertThat(router.route("Покажи контрагентов")).contains("Catalog_Контрагенты");
+    }
+
+    @Test
+    void returnsEmptyWhenDisabled() {
+        EntityRouter router = new EntityRouter(catalogService, new RoutingConfig(false, null), meterRegistry);
+
+        assertThat(router.route("Покажи контрагентов")).isEmpty();
+        assertThat(count("hit") + count("miss") + count("ambiguous")).isZero();
+    }
+}
@@ -0,0 +1,209 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.springframework.ai.document.Document;
+import org.springframework.ai.embedding.EmbeddingModel;
+import org.springframework.context.ApplicationEventPublisher;
+import reactor.core.publisher.Flux;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.model.EntityMetadata;
+import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.model.ReindexReport;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class IndexingServiceTest {
+    private final VectorStoreRepository repository = mock(VectorStoreRepository.class);
+    private final ODataService odataService = mock(ODataService.class);
+    private final EmbeddingModel embeddingModel = mock(EmbeddingModel.class);
+    private final ApplicationEventPublisher eventPublisher = mock(ApplicationEventPublisher.class);
+    private IndexingService service;
+
+    private static final EntityMetadata CONTRACTORS = entity("Catalog_Контрагенты",
+            field("Catalog_Контрагенты", "ИНН", "Edm.String", "ИНН контрагента"),
+            field("Catalog_Контрагенты", "Description", "Edm.String", "Наименование"));
+    private static final EntityMetadata WAREHOUSES = entity("Catalog_Склады",
+            field("Catalog_Склады", "Description", "Edm.String", "Наименование склада"));
+
+    @BeforeEach
+    void setUp() {
+        IndexingConfig config = new IndexingConfig(100, 10, 0.75, null, null, null, true, 2, 0, Duration.ofMillis(1));
+        service = new IndexingService(null, embeddingModel, odataService, config, repository, null, null,
+                eventPublisher, new SimpleMeterRegistry());
+        when(embeddingModel.embed(anyList())).thenAnswer(invocation -> {
+            List<?> texts = invocation.getArgument(0);
+            return texts.stream().map(text -> new float[]{1f}).toList();
+        });
+        when(repository.stageBatch(anyList(), anyList())).thenAnswer(invocation -> {
+            List<?> documents = invocation.getArgument(0);
+            return documents.size();
+        });
+    }
+
+    private static FieldInfo field(String entity, String name, String type, String description) {
+        return new FieldInfo(entity, name, type, description, false);
+    }
+
+    private static EntityMetadata entity(String name, FieldInfo... fields) {
+        List<FieldInfo> all = new ArrayList<>();
+        all.add(new FieldInfo(name, "TABLE_HEADER", "System", "[СУЩНОСТЬ] " + name, true));
+        all.addAll(List.of(fields));
+        return new EntityMetadata(name, all);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Document> stagedDocuments() {
+        ArgumentCaptor<List<Document>> captor = ArgumentCaptor.forClass(List.class);
+        verify(repository, atLeastOnce()).stageBatch(captor.capture(), anyList());
+        return captor.getAllValues().stream().flatMap(List::stream).toList();
+    }
+
+    @Test
+    void fingerprintChangesWithAnyFieldAttribute() {
+        List<FieldInfo> fields = CONTRACTORS.fields();
+        String fingerprint = IndexingService.fingerprint(fields);
+
+        assertThat(fingerprint).hasSize(64).isEqualTo(IndexingService.fingerprint(List.copyOf(fields)));
+        assertThat(IndexingService.fingerprint(replaceLast(fields, field("Catalog_Контрагенты", "Description", "Edm.Int32", "Наименование"))))
+                .isNotEqualTo(fingerprint);
+        assertThat(IndexingService.fingerprint(replaceLast(fields, field("Catalog_Контрагенты", "Description", "Edm.String", "Имя"))))
+                .isNotEqualTo(fingerprint);
+        assertThat(IndexingService.fingerprint(replaceLast(fields, field("Catalog_Контрагенты", "Code", "Edm.String", "Наименование"))))
+                .isNotEqualTo(fingerprint);
+        assertThat(IndexingService.fingerprint(fields.subList(0, fields.size() - 1))).isNotEqualTo(fingerprint);
+    }
+
+    private static List<FieldInfo> replaceLast(List<FieldInfo> fields, FieldInfo last) {
+        List<FieldInfo> copy = new ArrayList<>(fields);
+        copy.set(copy.size() - 1, last);
+        return copy;
+    }
+
+    @Test
+    void documentCarriesFingerprintAndGeneration() {
+        FieldInfo inn = CONTRACTORS.fields().get(1);
+
+        Document document = IndexingService.toDocument(inn, "abc", "gen-1");
+
+        assertThat(document.getText()).isEqualTo("ИНН контрагента");
+        assertThat(document.getMetadata())
+                .containsEntry("entity", "Catalog_Контрагенты")
+                .containsEntry("field", "ИНН")
+                .containsEntry("type", "Edm.String")
+                .containsEntry("is_header", false)
+                .containsEntry("fingerprint", "abc")
+                .containsEntry("generation", "gen-1");
+    }
+
+    @Test
+    void incrementalReindexStagesOnlyChangedEntitiesUnderOneGeneration() {
+        when(repository.loadFingerprints()).thenReturn(Map.of(
+                "Catalog_Контрагенты", IndexingService.fingerprint(CONTRACTORS.fields()),
+                "Catalog_Удаленный", "stale"));
+        when(odataService.streamMetadata()).thenReturn(Flux.just(CONTRACTORS, WAREHOUSES));
+
+        ReindexReport report = service.updateMetadataIndex(false);
+
+        assertThat(report).isEqualTo(new ReindexReport(2, 1, 1, 2));
+        List<Document> staged = stagedDocuments();
+        assertThat(staged).hasSize(2).allSatisfy(document -> {
+            assertThat(document.getMetadata()).containsEntry("entity", "Catalog_Склады");
+            assertThat(document.getMetadata()).containsEntry("fingerprint", IndexingService.fingerprint(WAREHOUSES.fields()));
+        });
+        Object generation = staged.get(0).getMetadata().get("generation");
+        assertThat(staged).allSatisfy(document -> assertThat(document.getMetadata()).containsEntry("generation", generation));
+
+        InOrder order = inOrder(repository);
+        order.verify(repository).resetStaging();
+        order.verify(repository).stageBatch(anyList(), anyList());
+        order.verify(repository).publishEntity("Catalog_Склады", (String) generation);
+        order.verify(repository).deleteEntity("Catalog_Удаленный");
+        verify(repository, never()).publishEntity(eq("Catalog_Контрагенты"), anyString());
+        verify(repository, never()).deleteGeneration(anyString());
+        verify(eventPublisher).publishEvent(new MetadataIndexRefreshedEvent(List.of("Catalog_Склады", "Catalog_Удаленный")));
+    }
+
+    @Test
+    void fullReindexRestagesUnchangedEntities() {
+        when(repository.loadFingerprints()).thenReturn(Map.of(
+                "Catalog_Контрагенты", IndexingService.fingerprint(CONTRACTORS.fields()),
+                "Catalog_Склады", IndexingService.fingerprint(WAREHOUSES.fields())));
+        when(odataService.streamMetadata()).thenReturn(Flux.just(CONTRACTORS, WAREHOUSES));
+
+        ReindexReport report = service.updateMetadataIndex(true);
+
+        assertThat(report).isEqualTo(new ReindexReport(2, 2, 0, 5));
+        verify(repository).publishEntity(eq("Catalog_Контрагенты"), anyString());
+        verify(repository).publishEntity(eq("Catalog_Склады"), anyString());
+    }
+
+    @Test
+    void unchangedMetadataPublishesNothing() {
+        when(repository.loadFingerprints()).thenReturn(Map.of(
+                "Catalog_Контрагенты", IndexingService.fingerprint(CONTRACTORS.fields())));
+        when(odataService.streamMetadata()).thenReturn(Flux.just(CONTRACTORS));
+
+        assertThat(service.updateMetadataIndex(false)).isEqualTo(new ReindexReport(1, 0, 0, 0));
+        verify(repository, never()).stageBatch(anyList(), anyList());
+        verify(repository, never()).publishEntity(anyString(), anyString());
+        verify(eventPublisher, never()).publishEvent(any(Object.class));
+    }
+
+    @Test
+    void failedEmbeddingRollsBackGenerationAndKeepsLiveRows() {
+        when(repository.loadFingerprints()).thenReturn(Map.of());
+        when(odataService.streamMetadata()).thenReturn(Flux.just(WAREHOUSES));
+        doThrow(new IllegalStateException("Ollama недоступна")).when(embeddingModel).embed(anyList());
+
+        assertThatThrownBy(() -> service.updateMetadataIndex(false)).isInstanceOf(IllegalStateException.class);
+
+        verify(repository).deleteGeneration(anyString());
+        verify(repository, never()).publishEntity(anyString(), anyString());
+        verify(repository, never()).deleteEntity(anyString());
+    }
+
+    @Test
+    void failedPublishRollsBackSameGeneration() {
+        when(repository.loadFingerprints()).thenReturn(Map.of("Catalog_Удаленный", "stale"));
+        when(odataService.streamMetadata()).thenReturn(Flux.just(WAREHOUSES));
+        doThrow(new IllegalStateException("сбой транзакции")).when(repository).publishEntity(anyString(), anyString());
+
+        assertThatThrownBy(() -> service.updateMetadataIndex(false)).isInstanceOf(IllegalStateException.class);
+
+        Object generation = stagedDocuments().get(0).getMetadata().get("generation");
+        verify(repository).deleteGeneration((String) generation);
+        verify(repository, never()).deleteEntity(anyString());
+    }
+
+    @Test
+    void emptyMetadataLeavesIndexUntouched() {
+        when(repository.loadFingerprints()).thenReturn(Map.of("Catalog_Контрагенты", "x"));
+        when(odataService.streamMetadata()).thenReturn(Flux.empty());
+
+        assertThat(service.updateMetadataIndex(false)).isEqualTo(ReindexReport.EMPTY);
+        verify(repository, never()).deleteEntity(anyString());
+        verify(repository, never()).publishEntity(anyString(), anyString());
+    }
+}
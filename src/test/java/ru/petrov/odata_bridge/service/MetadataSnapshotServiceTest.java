@@ -0,0 +1,200 @@
+package ru.petrov.odata_bridge.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.config.SnapshotConfig;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository;
+import ru.petrov.odata_bridge.repository.VectorStoreRepository.StoredRow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MetadataSnapshotServiceTest {
+    private static final String MODEL = "mxbai-embed-large";
+
+    @TempDir
+    Path dir;
+
+    private static StoredRow row(String id, String entity, String field, String content, boolean header, float... embedding) {
+        Map<String, Object> metadata = new HashMap<>();
+        metadata.put("entity", entity);
+        metadata.put("field", field);
+        metadata.put("type", header ? "System" : "Edm.String");
+        metadata.put("fingerprint", "fp-" + entity);
+        metadata.put("generation", "gen-1");
+        metadata.put("is_header", header);
+        return new StoredRow(id, content, metadata, embedding);
+    }
+
+    private static final List<StoredRow> ROWS = List.of(
+            row("1", "Catalog_Контрагенты", "TABLE_HEADER", "[СУЩНОСТЬ] Справочник Контрагенты", true, 0.5f, -0.25f, 1f),
+            row("2", "Catalog_Контрагенты", "ИНН", "ИНН контрагента", false, 0.1f, 0.2f, -0.3f),
+            row("3", "Catalog_Склады", "Description", null, false, 0f, 0f, 0f));
+
+    private Path writeSnapshot(List<StoredRow> rows, boolean quantize) throws IOException {
+        Path path = dir.resolve("index.snapshot");
+        try (OutputStream out = Files.newOutputStream(path)) {
+            MetadataSnapshotService.SnapshotWriter writer = new MetadataSnapshotService.SnapshotWriter(out, MODEL, quantize);
+            for (StoredRow row : rows) {
+                writer.write(row);
+            }
+            writer.finish();
+            assertThat(writer.rows()).isEqualTo(rows.size());
+        }
+        return path;
+    }
+
+    @Test
+    void roundTripsRowsExactly() throws IOException {
+        Path path = writeSnapshot(ROWS, false);
+
+        MetadataSnapshotService.Contents contents = MetadataSnapshotService.read(path).orElseThrow();
+
+        assertThat(contents.model()).isEqualTo(MODEL);
+        assertThat(contents.dimensions()).isEqualTo(3);
+        assertThat(contents.rows()).hasSize(ROWS.size());
+        for (int i = 0; i < ROWS.size(); i++) {
+            StoredRow expected = ROWS.get(i);
+            StoredRow actual = contents.rows().get(i);
+            assertThat(actual.id()).isEqualTo(expected.id());
+            assertThat(actual.content()).isEqualTo(expected.content());
+            assertThat(actual.metadata()).isEqualTo(expected.metadata());
+            assertThat(actual.embedding()).containsExactly(expected.embedding());
+        }
+    }
+
+    @Test
+    void keepsMissingMetadataMissing() throws IOException {
+        StoredRow row = row("1", "Catalog_Склады", "Description", "Наименование", false, 1f);
+        row.metadata().remove("generation");
+
+        StoredRow read = MetadataSnapshotService.read(writeSnapshot(List.of(row), false)).orElseThrow().rows().get(0);
+
+        assertThat(read.metadata()).doesNotContainKey("generation").containsEntry("entity", "Catalog_Склады");
+    }
+
+    @Test
+    void quantizedSnapshotKeepsVectorsWithinOneStep() throws IOException {
+        MetadataSnapshotService.Contents contents = MetadataSnapshotService.read(writeSnapshot(ROWS, true)).orElseThrow();
+
+        for (int i = 0; i < ROWS.size(); i++) {
+            float[] expected = ROWS.get(i).embedding();
+            float max = 0;
+            for (float x : expected) {
+                max = Math.max(max, Math.abs(x));
+            }
+            float step = max / 127f;
+            float[] actual = contents.rows().get(i).embedding();
+            for (int d = 0; d < expected.length; d++) {
+                assertThat(actual[d]).isCloseTo(expected[d], within(step / 2 + 1e-6f));
+            }
+        }
+    }
+
+    @Test
+    void rejectsRowsWithDifferentDimensions() throws IOException {
+        MetadataSnapshotService.SnapshotWriter writer =
+                new MetadataSnapshotService.SnapshotWriter(new ByteArrayOutputStream(), MODEL, false);
+        writer.write(ROWS.get(0));
+
+        assertThatThrownBy(() -> writer.write(row("9", "Catalog_Склады", "Code", "Код", false, 1f)))
+                .isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void rejectsTruncatedAndForeignFiles() throws IOException {
+        Path path = writeSnapshot(ROWS, false);
+        byte[] bytes = Files.readAllBytes(path);
+
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 10));
+        assertThat(MetadataSnapshotService.read(path)).isEmpty();
+
+        Files.write(path, "not a snapshot".getBytes());
+        assertThat(MetadataSnapshotService.read(path)).isEmpty();
+
+        Files.write(path, new byte[0]);
+        assertThat(MetadataSnapshotService.read(path)).isEmpty();
+    }
+
+    @Test
+    void fingerprintsFollowRepositoryRules() {
+        StoredRow conflicting = row("4", "Catalog_Склады", "Code", "Код", false, 1f, 1f, 1f);
+        conflicting.metadata().put("fingerprint", "other");
+
+        Map<String, String> fingerprints = MetadataSnapshotService.fingerprints(List.of(ROWS.get(0), ROWS.get(1), ROWS.get(2), conflicting));
+
+        assertThat(fingerprints).containsExactlyInAnyOrderEntriesOf(Map.of(
+                "Catalog_Контрагенты", "fp-Catalog_Контрагенты",
+                "Catalog_Склады", ""));
+    }
+
+    @Test
+    void startupLoadsCatalogFromSnapshotAndReseedsEmptyTable() {
+        VectorStoreRepository repository = mock(VectorStoreRepository.class);
+        doAnswer(invocation -> {
+            Consumer<StoredRow> consumer = invocation.getArgument(1);
+            ROWS.forEach(consumer);
+            return null;
+        }).when(repository).forEachRow(anyInt(), any());
+        MetadataCatalogService catalogService = new MetadataCatalogService(repository);
+        HeaderVectorIndex headerIndex = new HeaderVectorIndex(repository);
+        MetadataSnapshotService service = service(repository, catalogService, headerIndex);
+
+        service.write();
+        assertThat(dir.resolve("index.snapshot")).exists();
+        // В каталоге не остается временных файлов
+        assertThat(dir.toFile().list()).containsExactly("index.snapshot");
+
+        when(repository.count()).thenReturn(0L);
+        service.onStartup();
+
+        assertThat(catalogService.catalog().entityNames()).containsExactlyInAnyOrder("Catalog_Контрагенты", "Catalog_Склады");
+        verify(repository).insertBatch(anyList(), anyList());
+    }
+
+    @Test
+    void startupRewritesSnapshotThatDisagreesWithPostgres() throws IOException {
+        writeSnapshot(ROWS, false);
+        VectorStoreRepository repository = mock(VectorStoreRepository.class);
+        when(repository.count()).thenReturn(3L);
+        when(repository.loadFingerprints()).thenReturn(Map.of(
+                "Catalog_Контрагенты", "fp-new",
+                "Catalog_Склады", "fp-Catalog_Склады"));
+        MetadataCatalogService catalogService = new MetadataCatalogService(repository);
+
+        service(repository, catalogService, new HeaderVectorIndex(repository)).onStartup();
+
+        assertThat(catalogService.catalog().isEmpty()).isTrue();
+        verify(repository).forEachRow(anyInt(), any());
+        verify(repository, never()).insertBatch(anyList(), anyList());
+    }
+
+    private MetadataSnapshotService service(VectorStoreRepository repository, MetadataCatalogService catalogService,
+                                            HeaderVectorIndex headerIndex) {
+        IndexingConfig indexingConfig = new IndexingConfig(100, 10, 0.75, null, null, null, true, 2, 3, Duration.ofSeconds(2));
+        return new MetadataSnapshotService(new SnapshotConfig(true, dir.resolve("index.snapshot").toString(), false),
+                indexingConfig, repository, catalogService, headerIndex, MODEL);
+    }
+}
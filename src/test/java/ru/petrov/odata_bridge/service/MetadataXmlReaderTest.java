@@ -0,0 +1,108 @@
+package ru.petrov.odata_bridge.service;
+
+import org.junit.jupiter.api.Test;
+import ru.petrov.odata_bridge.model.EntityMetadata;
+import ru.petrov.odata_bridge.model.FieldInfo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetadataXmlReaderTest {
+    private static final List<String> SYSTEM_FIELDS = List.of("Ref_Key", "DataVersion", "DeletionMark", "Predefined", "PredefinedDataName");
+
+    private static InputStream fixture() {
+        return MetadataXmlReaderTest.class.getResourceAsStream("/metadata/odata-metadata.xml");
+    }
+
+    private static List<EntityMetadata> readAll(Predicate<String> entityFilter, Collection<String> excludeFields) throws Exception {
+        List<EntityMetadata> entities = new ArrayList<>();
+        try (MetadataXmlReader reader = new MetadataXmlReader(fixture(), entityFilter, excludeFields)) {
+            EntityMetadata entity;
+            while ((entity = reader.nextEntity()) != null) {
+                entities.add(entity);
+            }
+        }
+        return entities;
+    }
+
+    private static List<String> names(EntityMetadata entity) {
+        return entity.fields().stream().map(FieldInfo::name).toList();
+    }
+
+    @Test
+    void readsEntityTypesInDocumentOrderWithHeaderFirst() throws Exception {
+        List<EntityMetadata> entities = readAll(name -> !name.startsWith("Constant_"), SYSTEM_FIELDS);
+
+        assertThat(entities).extracting(EntityMetadata::entity)
+                .containsExactly("Catalog_Контрагенты", "Document_ЗаказКлиента", "InformationRegister_КурсыВалют_RecordType");
+        assertThat(entities).allSatisfy(entity -> {
+            FieldInfo header = entity.fields().get(0);
+            assertThat(header.isHeader()).isTrue();
+            assertThat(header.name()).isEqualTo("TABLE_HEADER");
+            assertThat(header.type()).isEqualTo("System");
+            assertThat(entity.fields().subList(1, entity.fields().size())).noneMatch(FieldInfo::isHeader);
+        });
+        assertThat(entities).extracting(entity -> entity.fields().get(0).description()).containsExactly(
+                "[СУЩНОСТЬ] Справочник Контрагенты",
+                "[СУЩНОСТЬ] Документ ЗаказКлиента",
+                "[СУЩНОСТЬ] InformationRegister_КурсыВалют_RecordType");
+    }
+
+    @Test
+    void keepsOnlyEntityPropertiesWithoutExcludedFields() throws Exception {
+        EntityMetadata contractors = readAll(name -> true, SYSTEM_FIELDS).get(0);
+
+        // Ключ, навигационные свойства и строки табличной части (ComplexType) в индекс не попадают
+        assertThat(names(contractors)).containsExactly("TABLE_HEADER", "Parent_Key", "IsFolder", "Code", "Description",
+                "ИНН", "КПП", "ГоловнойКонтрагент_Key", "КонтактнаяИнформация");
+        FieldInfo inn = contractors.fields().get(5);
+        assertThat(inn).isEqualTo(new FieldInfo("Catalog_Контрагенты", "ИНН", "Edm.String",
+                "[ПОЛЕ] ИНН в таблице Контрагенты", false));
+        assertThat(contractors.fields().get(8).type())
+                .isEqualTo("Collection(StandardODATA.Catalog_Контрагенты_КонтактнаяИнформация_RowType)");
+    }
+
+    @Test
+    void skippedEntityDoesNotLeakFieldsIntoNextOne() throws Exception {
+        List<EntityMetadata> entities = readAll(name -> !name.startsWith("Constant_"), SYSTEM_FIELDS);
+
+        EntityMetadata order = entities.get(1);
+        assertThat(names(order)).containsExactly("TABLE_HEADER", "Number", "Date", "Posted", "Контрагент_Key", "СуммаДокумента");
+        assertThat(order.fields()).extracting(FieldInfo::description)
+                .contains("[ПОЛЕ] СуммаДокумента в таблице ЗаказКлиента");
+        assertThat(entities).flatExtracting(EntityMetadata::fields).extracting(FieldInfo::name).doesNotContain("Value_Key");
+    }
+
+    @Test
+    void withoutExclusionsKeepsAllProperties() throws Exception {
+        List<EntityMetadata> entities = readAll(name -> name.startsWith("InformationRegister_"), null);
+
+        assertThat(entities).hasSize(1);
+        assertThat(names(entities.get(0))).containsExactly("TABLE_HEADER", "Period", "Валюта_Key", "Курс", "Кратность");
+    }
+
+    @Test
+    void closeReleasesSource() throws Exception {
+        boolean[] closed = {false};
+        InputStream source = new FilterInputStream(fixture()) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+
+        try (MetadataXmlReader reader = new MetadataXmlReader(source, name -> true, List.of())) {
+            assertThat(reader.nextEntity()).isNotNull();
+        }
+
+        assertThat(closed[0]).isTrue();
+    }
+}
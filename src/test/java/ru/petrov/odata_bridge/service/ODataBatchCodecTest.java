@@ -0,0 +1,113 @@
+package ru.petrov.odata_bridge.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ODataBatchCodecTest {
+    private static final String BOUNDARY = "batchresponse_1";
+
+    @Test
+    void encodesOneGetPartPerUriAndClosingDelimiter() {
+        String body = ODataBatchCodec.encode("batch_x", List.of(
+                URI.create("Catalog_%D0%9A%D0%BE?$top=5"),
+                URI.create("Document_Order/$count")));
+
+        assertThat(body).startsWith("--batch_x\r\nContent-Type: application/http\r\n");
+        assertThat(body).contains("GET Catalog_%D0%9A%D0%BE?$top=5 HTTP/1.1\r\nAccept: application/json\r\n\r\n");
+        assertThat(body).contains("GET Document_Order/$count HTTP/1.1\r\n");
+        assertThat(body.split("--batch_x\r\n", -1)).hasSize(3);
+        assertThat(body).endsWith("--batch_x--\r\n");
+    }
+
+    @Test
+    void decodesPartsInOrderWithStatusEtagAndBody() {
+        String body = "preamble\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "Content-Transfer-Encoding: binary\r\n"
+                + "\r\n"
+                + "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: application/json\r\n"
+                + "ETag: W/\"1\"\r\n"
+                + "\r\n"
+                + "{\"value\":[]}\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "\r\n"
+                + "HTTP/1.1 404 Not Found\r\n"
+                + "\r\n"
+                + "{\"odata.error\":{}}\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+
+        List<ODataBatchCodec.Part> parts = ODataBatchCodec.decode(BOUNDARY, body);
+
+        assertThat(parts).containsExactly(
+                new ODataBatchCodec.Part(200, "W/\"1\"", "{\"value\":[]}"),
+                new ODataBatchCodec.Part(404, null, "{\"odata.error\":{}}"));
+        assertThat(parts.get(0).isSuccess()).isTrue();
+        assertThat(parts.get(1).isSuccess()).isFalse();
+    }
+
+    @Test
+    void acceptsBareLineFeeds() {
+        String body = "--" + BOUNDARY + "\n"
+                + "Content-Type: application/http\n"
+                + "\n"
+                + "HTTP/1.1 200 OK\n"
+                + "Content-Type: text/plain\n"
+                + "\n"
+                + "42\n"
+                + "--" + BOUNDARY + "--\n";
+
+        assertThat(ODataBatchCodec.decode(BOUNDARY, body))
+                .containsExactly(new ODataBatchCodec.Part(200, null, "42"));
+    }
+
+    @Test
+    void keepsMalformedPartsInPlaceAsFailures() {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "\r\n"
+                + "garbage without status line\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "\r\n"
+                + "HTTP/1.1 abc Broken\r\n"
+                + "\r\n"
+                + "oops\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "\r\n"
+                + "HTTP/1.1 200 OK\r\n"
+                + "\r\n"
+                + "7\r\n"
+                + "--" + BOUNDARY + "--\r\n";
+
+        List<ODataBatchCodec.Part> parts = ODataBatchCodec.decode(BOUNDARY, body);
+
+        // Ответы сопоставляются с запросами по позиции, поэтому испорченная часть не выпадает из списка
+        assertThat(parts).hasSize(3);
+        assertThat(parts.get(0).status()).isEqualTo(ODataBatchCodec.MALFORMED);
+        assertThat(parts.get(0).isSuccess()).isFalse();
+        assertThat(parts.get(1).status()).isEqualTo(ODataBatchCodec.MALFORMED);
+        assertThat(parts.get(1).body()).isEqualTo("oops");
+        assertThat(parts.get(2)).isEqualTo(new ODataBatchCodec.Part(200, null, "7"));
+    }
+
+    @Test
+    void toleratesTruncatedResponseWithoutClosingDelimiter() {
+        String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/http\r\n"
+                + "\r\n"
+                + "HTTP/1.1 200 OK\r\n"
+                + "\r\n"
+                + "{\"value\":";
+
+        assertThat(ODataBatchCodec.decode(BOUNDARY, body))
+                .containsExactly(new ODataBatchCodec.Part(200, null, "{\"value\":"));
+    }
+}
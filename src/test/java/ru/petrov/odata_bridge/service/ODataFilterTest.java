@@ -0,0 +1,99 @@
+package ru.petrov.odata_bridge.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ODataFilterTest {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static JsonNode row(String json) throws Exception {
+        return MAPPER.readTree(json);
+    }
+
+    @Test
+    void stringComparisonIgnoresCaseLikeOneC() throws Exception {
+        JsonNode row = row("{\"Description\": \"ООО Ромашка\"}");
+
+        assertThat(ODataFilter.parse("Description eq 'ооо ромашка'").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Description ne 'ООО РОМАШКА'").test(row)).isFalse();
+        assertThat(ODataFilter.parse("Description gt 'ооо ромашка'").test(row)).isFalse();
+        assertThat(ODataFilter.parse("Description ge 'ооо ромашка'").test(row)).isTrue();
+    }
+
+    @Test
+    void substringOfIgnoresCaseAndSupportsEqFalse() throws Exception {
+        JsonNode row = row("{\"Description\": \"ООО Ромашка\"}");
+
+        assertThat(ODataFilter.parse("substringof('РОМАШ', Description)").test(row)).isTrue();
+        assertThat(ODataFilter.parse("substringof('ромаш', Description) eq true").test(row)).isTrue();
+        assertThat(ODataFilter.parse("substringof('ромаш', Description) eq false").test(row)).isFalse();
+        assertThat(ODataFilter.parse("substringof('лютик', Description)").test(row)).isFalse();
+    }
+
+    @Test
+    void comparesNumbersByValue() throws Exception {
+        JsonNode row = row("{\"Amount\": 100.50}");
+
+        assertThat(ODataFilter.parse("Amount eq 100.5").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Amount gt 100").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Amount le -1").test(row)).isFalse();
+    }
+
+    @Test
+    void comparesGuidsAndDatesAsOneCReturnsThem() throws Exception {
+        JsonNode row = row("{\"Ref_Key\": \"6F1C2A3B-0000-11EE-8000-000000000001\", \"Date\": \"2024-03-15T00:00:00\"}");
+
+        assertThat(ODataFilter.parse("Ref_Key eq guid'6f1c2a3b-0000-11ee-8000-000000000001'").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Date ge datetime'2024-01-01T00:00:00'").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Date lt datetime'2024-03-15T00:00:00'").test(row)).isFalse();
+    }
+
+    @Test
+    void missingAndNullValuesMatchOnlyNullChecksAndNe() throws Exception {
+        JsonNode row = row("{\"Comment\": null}");
+
+        assertThat(ODataFilter.parse("Comment eq null").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Absent eq null").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Comment ne 'x'").test(row)).isTrue();
+        assertThat(ODataFilter.parse("Comment eq 'x'").test(row)).isFalse();
+        assertThat(ODataFilter.parse("Comment gt 'x'").test(row)).isFalse();
+    }
+
+    @Test
+    void combinesConditionsWithPrecedenceAndParentheses() throws Exception {
+        JsonNode row = row("{\"DeletionMark\": false, \"IsFolder\": true, \"Code\": \"0001\"}");
+
+        // and связывает сильнее or
+        assertThat(ODataFilter.parse("Code eq '0002' or DeletionMark eq false and IsFolder eq true").test(row)).isTrue();
+        assertThat(ODataFilter.parse("(Code eq '0002' or DeletionMark eq false) and IsFolder eq false").test(row)).isFalse();
+        assertThat(ODataFilter.parse("not (Code eq '0002')").test(row)).isTrue();
+    }
+
+    @Test
+    void unescapesDoubledApostrophes() throws Exception {
+        JsonNode row = row("{\"Description\": \"Д'Артаньян\"}");
+
+        assertThat(ODataFilter.parse("Description eq 'д''артаньян'").test(row)).isTrue();
+    }
+
+    @Test
+    void collectsMentionedFields() {
+        ODataFilter filter = ODataFilter.parse("Code eq '1' and (substringof('a', Description) or Amount gt 5)");
+
+        assertThat(filter.fields()).containsExactlyInAnyOrder("Code", "Description", "Amount");
+    }
+
+    @Test
+    void rejectsExpressionsThatMustRunInOneC() {
+        assertThatThrownBy(() -> ODataFilter.parse("Owner/Description eq 'x'")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ODataFilter.parse("startswith(Description, 'x')")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ODataFilter.parse("Amount eq 10M")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ODataFilter.parse("Code eq Description")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ODataFilter.parse("Code eq 'open")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> ODataFilter.parse("Code eq '1' Code")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
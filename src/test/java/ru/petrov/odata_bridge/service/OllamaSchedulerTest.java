@@ -0,0 +1,155 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.petrov.odata_bridge.service.OllamaScheduler.Permit;
+import ru.petrov.odata_bridge.service.OllamaScheduler.Priority;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.fail;
+
+class OllamaSchedulerTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private OllamaScheduler scheduler(int maxConcurrent, int classMax, int indexingPauseQueueDepth, Duration acquireTimeout) {
+        return new OllamaScheduler(maxConcurrent, classMax, classMax, classMax, indexingPauseQueueDepth,
+                acquireTimeout, Duration.ofSeconds(10), meterRegistry);
+    }
+
+    private double gauge(String name, Priority priority) {
+        return meterRegistry.get(name).tag("priority", priority.name().toLowerCase(Locale.ROOT)).gauge().value();
+    }
+
+    private double indexingPaused() {
+        return meterRegistry.get("odata.bridge.ollama.indexing.paused").gauge().value();
+    }
+
+    // Ждет, пока в очереди класса окажется нужное число вызовов
+    private void awaitQueued(Priority priority, int depth) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (gauge("odata.bridge.ollama.queue", priority) < depth) {
+            if (System.nanoTime() > deadline) {
+                fail("В очереди " + priority + " не появилось " + depth + " вызовов");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void capsEachClassAndTheTotal() {
+        OllamaScheduler scheduler = scheduler(3, 1, 10, Duration.ofMillis(50));
+        assertThat(scheduler.limit(Priority.CHAT)).isEqualTo(3);
+        assertThat(scheduler.limit(Priority.QUERY_EMBEDDING)).isEqualTo(1);
+        // Лимит класса не больше общего
+        assertThat(new OllamaScheduler(2, 5, 5, 5, 10, Duration.ZERO, Duration.ZERO, new SimpleMeterRegistry())
+                .limit(Priority.BATCH)).isEqualTo(2);
+
+        Permit embedding = scheduler.acquire(Priority.QUERY_EMBEDDING);
+        assertThatThrownBy(() -> scheduler.acquire(Priority.QUERY_EMBEDDING)).isInstanceOf(BulkheadFullException.class);
+
+        Permit chat = scheduler.acquire(Priority.CHAT);
+        Permit batch = scheduler.acquire(Priority.BATCH);
+        assertThatThrownBy(() -> scheduler.acquire(Priority.CHAT)).isInstanceOf(BulkheadFullException.class);
+        assertThat(gauge("odata.bridge.ollama.queue", Priority.CHAT)).isZero();
+
+        embedding.close();
+        // Повторное закрытие не освобождает место второй раз
+        embedding.close();
+        Permit secondChat = scheduler.acquire(Priority.CHAT);
+        assertThat(gauge("odata.bridge.ollama.active", Priority.CHAT)).isEqualTo(2);
+        assertThatThrownBy(() -> scheduler.acquire(Priority.CHAT)).isInstanceOf(BulkheadFullException.class);
+
+        chat.close();
+        batch.close();
+        secondChat.close();
+    }
+
+    @Test
+    void admitsWaitersInPriorityOrder() throws Exception {
+        OllamaScheduler scheduler = scheduler(1, 1, 10, Duration.ofSeconds(5));
+        Permit holder = scheduler.acquire(Priority.CHAT);
+        List<Priority> admitted = new CopyOnWriteArrayList<>();
+        List<Future<?>> waiters = new CopyOnWriteArrayList<>();
+
+        // Встают в очередь в обратном порядке приоритета
+        for (Priority priority : List.of(Priority.INDEXING, Priority.BATCH, Priority.QUERY_EMBEDDING, Priority.CHAT)) {
+            waiters.add(executor.submit(() -> scheduler.call(priority, () -> admitted.add(priority))));
+            awaitQueued(priority, 1);
+        }
+        holder.close();
+        for (Future<?> waiter : waiters) {
+            waiter.get(5, TimeUnit.SECONDS);
+        }
+
+        assertThat(admitted).containsExactly(Priority.CHAT, Priority.QUERY_EMBEDDING, Priority.BATCH, Priority.INDEXING);
+    }
+
+    @Test
+    void pausesIndexingWhileQuestionsAreQueued() throws Exception {
+        OllamaScheduler scheduler = scheduler(3, 1, 1, Duration.ofSeconds(5));
+        Permit embedding = scheduler.acquire(Priority.QUERY_EMBEDDING);
+        Future<Permit> queuedQuestion = executor.submit(() -> scheduler.acquire(Priority.QUERY_EMBEDDING));
+        awaitQueued(Priority.QUERY_EMBEDDING, 1);
+
+        // Место есть, но вопрос ждет — порция индексации не запускается
+        Future<?> indexing = executor.submit(() -> scheduler.call(Priority.INDEXING, () -> null));
+        awaitQueued(Priority.INDEXING, 1);
+        assertThat(indexingPaused()).isEqualTo(1);
+        assertThat(indexing.isDone()).isFalse();
+
+        embedding.close();
+        Permit question = queuedQuestion.get(5, TimeUnit.SECONDS);
+        indexing.get(5, TimeUnit.SECONDS);
+        assertThat(indexingPaused()).isZero();
+        question.close();
+    }
+
+    @Test
+    void batchWaitersDoNotPauseIndexing() throws Exception {
+        OllamaScheduler scheduler = scheduler(3, 1, 1, Duration.ofSeconds(5));
+        Permit batch = scheduler.acquire(Priority.BATCH);
+        Future<Permit> queuedBatch = executor.submit(() -> scheduler.acquire(Priority.BATCH));
+        awaitQueued(Priority.BATCH, 1);
+
+        // Пакет уперся в свой лимит, общее место есть — индексация проходит сразу
+        Permit indexing = scheduler.acquire(Priority.INDEXING);
+        assertThat(indexingPaused()).isZero();
+        assertThat(queuedBatch.isDone()).isFalse();
+
+        indexing.close();
+        batch.close();
+        queuedBatch.get(5, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    void embeddingPriorityIsScopedToTheCall() {
+        assertThat(OllamaScheduler.embeddingPriority()).isEqualTo(Priority.QUERY_EMBEDDING);
+
+        Priority nested = OllamaScheduler.withEmbeddingPriority(Priority.INDEXING, () -> {
+            assertThat(OllamaScheduler.embeddingPriority()).isEqualTo(Priority.INDEXING);
+            Priority inner = OllamaScheduler.withEmbeddingPriority(Priority.BATCH, OllamaScheduler::embeddingPriority);
+            assertThat(OllamaScheduler.embeddingPriority()).isEqualTo(Priority.INDEXING);
+            return inner;
+        });
+
+        assertThat(nested).isEqualTo(Priority.BATCH);
+        assertThat(OllamaScheduler.embeddingPriority()).isEqualTo(Priority.QUERY_EMBEDDING);
+    }
+}
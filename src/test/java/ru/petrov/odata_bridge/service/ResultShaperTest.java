@@ -0,0 +1,135 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import ru.petrov.odata_bridge.config.IndexingConfig;
+import ru.petrov.odata_bridge.config.ODataConfig;
+import ru.petrov.odata_bridge.model.FieldInfo;
+import ru.petrov.odata_bridge.model.QueryResult;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResultShaperTest {
+    private static final String ENTITY = "Catalog_Контрагенты";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void selectsMatchedFilterAndPresentationFieldsWithVersionKeys() {
+        ResultShaper shaper = shaper(16384, 1024);
+
+        assertThat(shaper.selectFor(ENTITY, "ИНН eq '7701234567'", Set.of("КПП", "НетТакогоПоля")))
+                .isEqualTo("КПП,ИНН,Description,Ref_Key,DataVersion");
+    }
+
+    @Test
+    void doesNotNarrowWithoutMatchedFields() {
+        ResultShaper shaper = shaper(16384, 1024);
+
+        assertThat(shaper.selectFor(ENTITY, "ИНН eq '7701234567'", null)).isNull();
+        assertThat(shaper.selectFor(ENTITY, "ИНН eq '7701234567'", Set.of())).isNull();
+        // Найденные поля не относятся к сущности — например, индекс старше справочника
+        assertThat(shaper.selectFor(ENTITY, null, Set.of("Сумма"))).isNull();
+    }
+
+    @Test
+    void doesNotNarrowUnknownEntity() {
+        assertThat(shaper(16384, 1024).selectFor("Catalog_Номенклатура", null, Set.of("КПП"))).isNull();
+    }
+
+    @Test
+    void addsVersionKeysOnlyForReferenceTypes() {
+        ResultShaper shaper = shaper(16384, 1024);
+
+        assertThat(shaper.selectFor("InformationRegister_Курсы", null, Set.of("Курс")))
+                .isEqualTo("Курс");
+    }
+
+    @Test
+    void dropsSelectThatExceedsEncodedLengthBudget() {
+        // "КПП,Description,Ref_Key,DataVersion" после кодирования: 3 буквы по 6 байт, 3 запятые по 3 байта — 56 байт
+        assertThat(shaper(16384, 56).selectFor(ENTITY, null, Set.of("КПП")))
+                .isEqualTo("КПП,Description,Ref_Key,DataVersion");
+        assertThat(shaper(16384, 55).selectFor(ENTITY, null, Set.of("КПП"))).isNull();
+    }
+
+    @Test
+    void truncatesRowsBeyondByteBudget() {
+        ResultShaper shaper = shaper(300, 1024);
+
+        QueryResult result = shaper.shape(response(20), null);
+
+        assertThat(result.body()).contains("\"Description\" : \"Контрагент 0\"")
+                .doesNotContain("Контрагент 19")
+                .doesNotContain("odata.metadata")
+                .doesNotContain("Predefined")
+                .contains("[Результат усечен: показано");
+        assertThat(result.body().lines().filter(line -> line.contains("\"Description\"")).count()).isLessThan(20);
+        assertThat(meterRegistry.counter("odata.bridge.result.truncated").count()).isEqualTo(1.0);
+        assertThat(meterRegistry.summary("odata.bridge.result.omitted.rows").totalAmount()).isPositive();
+    }
+
+    @Test
+    void versionStampCoversRowsOmittedByBudget() {
+        String full = shaper(1 << 20, 1024).shape(response(20), null).versionStamp();
+        String truncated = shaper(300, 1024).shape(response(20), null).versionStamp();
+
+        assertThat(truncated).isNotNull().isEqualTo(full);
+        assertThat(shaper(300, 1024).shape(response(21), null).versionStamp()).isNotEqualTo(truncated);
+    }
+
+    @Test
+    void showsFirstRowEvenIfItExceedsBudget() {
+        QueryResult result = shaper(10, 1024).shape(response(2), null);
+
+        assertThat(result.body()).contains("Контрагент 0").doesNotContain("Контрагент 1\"")
+                .contains("показано 1 строк, еще 1 не показано");
+    }
+
+    @Test
+    void keepsSmallResponseIntact() {
+        QueryResult result = shaper(16384, 1024).shape(response(2), "W/\"1\"");
+
+        assertThat(result.body()).contains("Контрагент 0").contains("Контрагент 1").doesNotContain("усечен");
+        assertThat(result.etag()).isEqualTo("W/\"1\"");
+        assertThat(meterRegistry.counter("odata.bridge.result.truncated").count()).isZero();
+    }
+
+    private ResultShaper shaper(int maxBytes, int maxSelectLength) {
+        ODataConfig config = new ODataConfig("http://1c", "user", "password",
+                new ODataConfig.Cache(false, 0, Duration.ZERO, null, false),
+                new ODataConfig.Shaping(true, true, maxBytes, List.of("Description", "Number", "Date"), maxSelectLength),
+                new ODataConfig.Batch(false, 0),
+                null);
+        IndexingConfig indexingConfig = new IndexingConfig(100, 10, 0.75, null, List.of("Predefined", "PredefinedDataName"),
+                null, true, 2, 3, Duration.ofSeconds(2));
+        MetadataCatalogService catalogService = new MetadataCatalogService(null);
+        catalogService.load(List.of(
+                new FieldInfo(ENTITY, "TABLE_HEADER", "System", "[СУЩНОСТЬ] Контрагенты", true),
+                new FieldInfo(ENTITY, "Description", "Edm.String", "Наименование", false),
+                new FieldInfo(ENTITY, "ИНН", "Edm.String", "ИНН", false),
+                new FieldInfo(ENTITY, "КПП", "Edm.String", "КПП", false),
+                new FieldInfo("InformationRegister_Курсы", "Курс", "Edm.Double", "Курс", false),
+                new FieldInfo("InformationRegister_Курсы", "Period", "Edm.DateTime", "Период", false)));
+        return new ResultShaper(config, indexingConfig, catalogService, meterRegistry);
+    }
+
+    private static String response(int rows) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            values.add("{\"Ref_Key\":\"00000000-0000-0000-0000-" + String.format("%012d", i) + "\","
+                    + "\"DataVersion\":\"AAAAAQ" + i + "\","
+                    + "\"Description\":\"Контрагент " + i + "\","
+                    + "\"ИНН\":\"77" + String.format("%08d", i) + "\","
+                    + "\"Predefined\":false,"
+                    + "\"Parent@navigationLinkUrl\":\"Catalog_Контрагенты(guid'0')/Parent\"}");
+        }
+        return "{\"odata.metadata\":\"http://1c/odata/standard.odata/$metadata#Catalog_Контрагенты\","
+                + "\"value\":[" + String.join(",", values) + "]}";
+    }
+}
@@ -0,0 +1,111 @@
+package ru.petrov.odata_bridge.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final SingleFlight<String, String> flight = new SingleFlight<>("test", meterRegistry);
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private CompletableFuture<String> call(String key, Sinks.One<String> sink) {
+        return flight.execute(key, () -> {
+            runs.incrementAndGet();
+            return sink.asMono();
+        }).toFuture();
+    }
+
+    private double count(String outcome) {
+        return meterRegistry.counter("odata.bridge.singleflight.calls", "name", "test", "outcome", outcome).count();
+    }
+
+    @Test
+    void concurrentCallsWithSameKeyShareOneRun() throws Exception {
+        Sinks.One<String> sink = Sinks.one();
+        CompletableFuture<String> first = call("reindex", sink);
+        CompletableFuture<String> second = call("reindex", Sinks.one());
+
+        assertThat(flight.isInFlight("reindex")).isTrue();
+        assertThat(first).isNotDone();
+        sink.tryEmitValue("done");
+
+        assertThat(first.get(1, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(second.get(1, TimeUnit.SECONDS)).isEqualTo("done");
+        assertThat(runs).hasValue(1);
+        assertThat(count("started")).isEqualTo(1);
+        assertThat(count("coalesced")).isEqualTo(1);
+    }
+
+    @Test
+    void errorReachesEveryJoinedCallerAndReleasesKey() throws Exception {
+        Sinks.One<String> failing = Sinks.one();
+        CompletableFuture<String> first = call("reindex", failing);
+        CompletableFuture<String> second = call("reindex", Sinks.one());
+
+        failing.tryEmitError(new IllegalStateException("1С недоступна"));
+
+        for (CompletableFuture<String> caller : List.of(first, second)) {
+            assertThatThrownBy(() -> caller.get(1, TimeUnit.SECONDS))
+                    .isInstanceOf(ExecutionException.class)
+                    .cause().isInstanceOf(IllegalStateException.class).hasMessage("1С недоступна");
+        }
+        assertThat(flight.isInFlight("reindex")).isFalse();
+
+        // Ошибка не запоминается: следующий вызов выполняет операцию заново
+        assertThat(call("reindex", sinkWith("retry")).get(1, TimeUnit.SECONDS)).isEqualTo("retry");
+        assertThat(runs).hasValue(2);
+    }
+
+    @Test
+    void completedRunIsNotReused() throws Exception {
+        assertThat(call("reindex", sinkWith("first")).get(1, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(flight.isInFlight("reindex")).isFalse();
+
+        assertThat(call("reindex", sinkWith("second")).get(1, TimeUnit.SECONDS)).isEqualTo("second");
+        assertThat(runs).hasValue(2);
+        assertThat(count("coalesced")).isZero();
+    }
+
+    @Test
+    void differentKeysRunIndependently() throws Exception {
+        Sinks.One<String> full = Sinks.one();
+        CompletableFuture<String> incremental = call("reindex", sinkWith("incremental"));
+        CompletableFuture<String> fullRun = call("reindex-full", full);
+
+        assertThat(incremental.get(1, TimeUnit.SECONDS)).isEqualTo("incremental");
+        assertThat(fullRun).isNotDone();
+        full.tryEmitValue("full");
+        assertThat(fullRun.get(1, TimeUnit.SECONDS)).isEqualTo("full");
+        assertThat(runs).hasValue(2);
+    }
+
+    @Test
+    void operationIsNotStartedUntilSubscribed() {
+        Mono<String> pending = flight.execute("reindex", () -> {
+            runs.incrementAndGet();
+            return Mono.just("x");
+        });
+
+        assertThat(runs).hasValue(0);
+        assertThat(flight.isInFlight("reindex")).isFalse();
+        assertThat(pending.block()).isEqualTo("x");
+        assertThat(runs).hasValue(1);
+    }
+
+    private static Sinks.One<String> sinkWith(String value) {
+        Sinks.One<String> sink = Sinks.one();
+        sink.tryEmitValue(value);
+        return sink;
+    }
+}
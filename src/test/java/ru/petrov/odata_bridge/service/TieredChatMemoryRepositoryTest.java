@@ -0,0 +1,67 @@
+package ru.petrov.odata_bridge.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.MessageType;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.ToolResponseMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TieredChatMemoryRepositoryTest {
+
+    @Test
+    void roundTripsEveryMessageTypeInOrder() {
+        AssistantMessage.ToolCall call = new AssistantMessage.ToolCall("call-1", "function", "executeSmartQuery",
+                "{\"entity\":\"Catalog_Контрагенты\",\"top\":5}");
+        ToolResponseMessage.ToolResponse response = new ToolResponseMessage.ToolResponse("call-1", "executeSmartQuery",
+                "{\"value\":[{\"Description\":\"ООО Ромашка\"}]}");
+        List<Message> messages = List.of(
+                new SystemMessage("Ты помощник по данным 1С"),
+                new UserMessage("Покажи 5 контрагентов"),
+                AssistantMessage.builder().content("").toolCalls(List.of(call)).build(),
+                ToolResponseMessage.builder().responses(List.of(response)).build(),
+                new AssistantMessage("ООО Ромашка"));
+
+        List<Message> restored = TieredChatMemoryRepository.deserialize(TieredChatMemoryRepository.serialize(messages));
+
+        assertThat(restored).extracting(Message::getMessageType).containsExactly(MessageType.SYSTEM, MessageType.USER,
+                MessageType.ASSISTANT, MessageType.TOOL, MessageType.ASSISTANT);
+        assertThat(restored.get(1).getText()).isEqualTo("Покажи 5 контрагентов");
+        assertThat(((AssistantMessage) restored.get(2)).getToolCalls()).containsExactly(call);
+        assertThat(((ToolResponseMessage) restored.get(3)).getResponses()).containsExactly(response);
+        assertThat(((AssistantMessage) restored.get(4)).getToolCalls()).isEmpty();
+        assertThat(restored.get(4).getText()).isEqualTo("ООО Ромашка");
+    }
+
+    @Test
+    void readsRecordsWrittenBeforeToolMessagesWereKept() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(2);
+            writeLegacy(out, MessageType.USER, "Сколько складов?");
+            writeLegacy(out, MessageType.ASSISTANT, "Складов: 3");
+        }
+
+        List<Message> restored = TieredChatMemoryRepository.deserialize(bytes.toByteArray());
+
+        assertThat(restored).extracting(Message::getMessageType).containsExactly(MessageType.USER, MessageType.ASSISTANT);
+        assertThat(restored).extracting(Message::getText).containsExactly("Сколько складов?", "Складов: 3");
+    }
+
+    private static void writeLegacy(DataOutputStream out, MessageType type, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(type.ordinal());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}